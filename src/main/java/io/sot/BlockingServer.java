@@ -0,0 +1,233 @@
+package io.sot;
+
+import io.sot.lang.PacketCapture;
+import io.sot.lang.PacketReader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@code BlockingServer} runs each session, i.e. PreLogin, Login7 and then the request loop, as plain blocking code on
+ * its own thread.
+ * <p>
+ * Session threads are taken from {@link #sessions}. With {@link #newSessionExecutor()} on a runtime that provides
+ * virtual threads, a session costs a virtual thread parked on its socket while idle, so blocking code scales to large
+ * connection counts. Otherwise it falls back to a platform thread per session, which suits moderate counts, and
+ * {@link NioServer} is the alternative beyond them.
+ *
+ * @author user
+ * @see BlockingSocket
+ */
+public class BlockingServer
+        implements Closeable, Runnable
+{
+    private static final Logger LOG = LogManager.getLogger(BlockingServer.class);
+
+    private final SocketAddress address;
+
+    private final ExecutorService sessions;
+
+    private final MessageHandler handler;
+
+    private final Set<BlockingSocket> sockets = ConcurrentHashMap.newKeySet();
+
+    private ServerSocketChannel server;
+
+    private Thread thread;
+
+    private volatile boolean running;
+
+    private volatile PacketCapture capture;
+
+    private volatile SSLContext sslContext;
+
+    private volatile PacketSizePolicy packetSizePolicy = PacketSizePolicy.DEFAULT;
+
+    /**
+     * @param address
+     * @param sessions executor which gives each session its own thread
+     * @param handler
+     */
+    public BlockingServer(SocketAddress address, ExecutorService sessions, MessageHandler handler)
+    {
+        this.address = address;
+        this.sessions = sessions;
+        this.handler = handler;
+    }
+
+    /**
+     * Negotiate packet size of sessions accepted from now on with {@code packetSizePolicy}.
+     *
+     * @param packetSizePolicy
+     */
+    public void setPacketSizePolicy(PacketSizePolicy packetSizePolicy)
+    {
+        this.packetSizePolicy = packetSizePolicy;
+    }
+
+    /**
+     * Support TLS for sessions accepted from now on, with engines created from {@code sslContext}.
+     *
+     * @param sslContext
+     * @see TlsEngine
+     */
+    public void setSslContext(SSLContext sslContext)
+    {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Give packets of sessions accepted from now on to {@code capture}, or stop doing so if null.
+     *
+     * @param capture
+     */
+    public void setCapture(PacketCapture capture)
+    {
+        this.capture = capture;
+    }
+
+    /**
+     * Create an executor running each task in a new virtual thread if supported by runtime, or in a cached platform
+     * thread otherwise.
+     *
+     * @return
+     */
+    public static ExecutorService newSessionExecutor()
+    {
+        try {
+            // Java 21+, looked up so that this class still runs on older runtimes
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            LOG.info("Virtual threads are not available, sessions run on platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Bind server address and start accepting thread.
+     *
+     * @throws IOException
+     */
+    public void start()
+            throws IOException
+    {
+        server = ServerSocketChannel.open();
+        server.bind(address);
+
+        running = true;
+        thread = new Thread(this, "sot-acceptor");
+        thread.start();
+
+        LOG.info("Listening on {}.", server.getLocalAddress());
+    }
+
+    /**
+     * Get the bound address, useful when started on port 0.
+     *
+     * @return
+     * @throws IOException
+     */
+    public InetSocketAddress getLocalAddress()
+            throws IOException
+    {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    @Override
+    public void run()
+    {
+        while (running) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+
+                Session session = new Session();
+                session.setCapture(capture);
+                session.setSslContext(sslContext);
+                session.setPacketSizePolicy(packetSizePolicy);
+                BlockingSocket socket = new BlockingSocket(session, channel, sessions, handler);
+                session.setSocket(socket);
+                sockets.add(socket);
+                sessions.execute(() -> serve(socket));
+            }
+            catch (AsynchronousCloseException e) {
+                // closed
+            }
+            catch (IOException e) {
+                LOG.error("Failed to accept connection.", e);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting and close all connections, session threads end as their sockets fail.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        running = false;
+        server.close();
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (BlockingSocket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Handle messages of a session until its connection is closed, on session thread.
+     *
+     * @param socket
+     */
+    private void serve(BlockingSocket socket)
+    {
+        Session session = socket.getSession();
+        try {
+            while (running) {
+                try (PacketReader reader = new PacketReader(session)) {
+                    handler.handle(session, reader);
+                }
+            }
+        }
+        catch (EOFException | AsynchronousCloseException e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Session closed.");
+            }
+        }
+        catch (Exception e) {
+            LOG.error("Failed to handle message, closing connection.", e);
+        }
+        finally {
+            sockets.remove(socket);
+            try {
+                socket.close();
+                socket.release();
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to close connection.", e);
+            }
+        }
+    }
+}
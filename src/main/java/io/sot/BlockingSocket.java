@@ -0,0 +1,285 @@
+package io.sot;
+
+import io.sot.lang.PacketBufferPool;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketRWException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * {@code BlockingSocket} is the {@link Socket} of a connection served by {@link BlockingServer}, whose I/O blocks the
+ * session thread.
+ * <p>
+ * A connection is only used by its session thread, so there is no lock at all, and no {@code synchronized} which
+ * would pin a virtual thread to its carrier. Once TLS is set, packets are decrypted from and encrypted into buffers
+ * held by the connection.
+ * <p>
+ * Once client runs MARS, {@link #read()} gives SMP frames to {@link SmpConnection} rather than returning them, so the
+ * session thread keeps demultiplexing until the connection closes, while logical sessions run messages on threads of
+ * their own. Their writes are then serialized by the {@code SmpConnection} lock.
+ * <p>
+ * Since the session thread does not read while it writes a response, {@link #pollAttention()} checks for input after
+ * each packet written. A client only sends an attention while waiting for a response, so input arriving then is read
+ * ahead, and returned by next {@link #read()}.
+ *
+ * @author user
+ */
+public class BlockingSocket
+        extends Socket
+{
+    private final Session session;
+
+    private final SocketChannel channel;
+
+    private final InputStream input;
+
+    private final Executor workers;
+
+    private final MessageHandler handler;
+    /**
+     * Created at the first SMP frame.
+     */
+    private SmpConnection smp;
+    /**
+     * Packet read ahead by {@link #pollAttention()}.
+     */
+    private ByteBuffer ahead;
+
+    private TlsEngine tls;
+    /**
+     * Encrypted output, while {@link #tls} is set.
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * @param session
+     * @param channel
+     * @param workers executor running messages of MARS logical sessions
+     * @param handler handler of MARS logical sessions
+     */
+    BlockingSocket(Session session, SocketChannel channel, Executor workers, MessageHandler handler)
+    {
+        this.session = session;
+        this.channel = channel;
+        this.workers = workers;
+        this.handler = handler;
+        try {
+            input = channel.socket().getInputStream();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Session getSession()
+    {
+        return session;
+    }
+
+    /**
+     * Read next packet, block until it is complete.
+     *
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public ByteBuffer read()
+            throws IOException
+    {
+        if (ahead != null) {
+            ByteBuffer b = ahead;
+            ahead = null;
+            return b;
+        }
+
+        while (true) {
+            ByteBuffer b = readFrame();
+            if (!SmpConnection.isFrame(b)) {
+                return b;
+            }
+            if (smp == null) {
+                smp = new SmpConnection(session, workers, handler);
+            }
+            try {
+                smp.receive(b);
+            }
+            catch (PacketRWException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Write {@code packets}, block until all are written.
+     *
+     * @param packets
+     * @throws IOException
+     */
+    @Override
+    public void write(ByteBuffer... packets)
+            throws IOException
+    {
+        ByteBuffer last = packets[packets.length - 1];
+        if (tls == null) {
+            do {
+                channel.write(packets);
+            }
+            while (last.hasRemaining());
+            return;
+        }
+
+        do {
+            netOut.clear();
+            tls.wrap(packets, netOut);
+            netOut.flip();
+            while (netOut.hasRemaining()) {
+                channel.write(netOut);
+            }
+        }
+        while (last.hasRemaining());
+    }
+
+    @Override
+    public void flush(PacketHeader header)
+            throws IOException
+    {
+        // nothing is buffered
+    }
+
+    /**
+     * Read ahead next packet if any input is available, e.g. an attention sent while the response is being written,
+     * including input which TLS engine holds already and the channel no longer tells.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void pollAttention()
+            throws IOException
+    {
+        if (ahead != null || (input.available() == 0 && (tls == null || !tls.hasBufferedInput()))) {
+            return;
+        }
+
+        ahead = read();
+        if ((ahead.get(PacketHeader.TYPE_POS) & 0xFF) == PacketHeader.Type.ATTENTION.getValue().intValue()) {
+            session.signalAttention();
+            session.cancelStatement();
+        }
+    }
+
+    @Override
+    public void setTls(TlsEngine tls)
+            throws IOException
+    {
+        if (this.tls != null) {
+            this.tls.close();
+            session.getBufferPool().release(netOut);
+            netOut = null;
+        }
+        this.tls = tls;
+        if (tls != null) {
+            netOut = session.getBufferPool().acquire(tls.getPacketBufferSize());
+        }
+    }
+
+    /**
+     * Close connection, can be called from any thread.
+     *
+     * @throws IOException
+     */
+    public void close()
+            throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * Release buffers of this connection, on session thread once it is done with the connection.
+     *
+     * @throws IOException
+     */
+    void release()
+            throws IOException
+    {
+        TlsEngine t = session.getTls();
+        if (t != null && t != tls) {
+            // handshake not finished
+            t.close();
+        }
+        if (smp != null) {
+            smp.close();
+        }
+        setTls(null);
+        session.setTls(null);
+        if (ahead != null) {
+            session.getBufferPool().release(ahead);
+            ahead = null;
+        }
+    }
+
+    /**
+     * Read next packet or SMP frame, block until it is complete.
+     *
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer readFrame()
+            throws IOException
+    {
+        PacketBufferPool pool = session.getBufferPool();
+        ByteBuffer b = pool.acquire(session.getPacketSize());
+        try {
+            b.limit(PacketHeader.LENGTH);
+            readFully(b);
+
+            int length;
+            int max;
+            if (SmpConnection.isFrame(b)) {
+                length = SmpConnection.getFrameLength(b);
+                max = SmpConnection.getMaxFrameLength(session);
+                if (length > b.capacity() && length <= max) {
+                    ByteBuffer c = pool.acquire(max).put(b.flip());
+                    pool.release(b);
+                    b = c;
+                }
+            }
+            else {
+                length = ((b.get(PacketHeader.LENGTH_POS) & 0xFF) << 8) | (b.get(PacketHeader.LENGTH_POS + 1) & 0xFF);
+                max = b.capacity();
+            }
+            if (length < PacketHeader.LENGTH || length > max) {
+                throw new IOException(new PacketRWException("Packet length %d is out of range [%d, %d].", length,
+                        PacketHeader.LENGTH, max));
+            }
+            b.limit(length);
+            readFully(b);
+        }
+        catch (IOException | RuntimeException e) {
+            pool.release(b);
+            throw e;
+        }
+
+        return b.flip();
+    }
+
+    private void readFully(ByteBuffer b)
+            throws IOException
+    {
+        while (b.hasRemaining()) {
+            if (tls == null) {
+                if (channel.read(b) < 0) {
+                    throw new EOFException("Connection closed by client.");
+                }
+            }
+            else if (tls.unwrap(b) == 0 && tls.read(channel) < 0) {
+                throw new EOFException("Connection closed by client.");
+            }
+        }
+    }
+}
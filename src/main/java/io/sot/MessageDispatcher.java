@@ -0,0 +1,87 @@
+package io.sot;
+
+import io.sot.lang.PacketDataReader;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketRWException;
+import io.sot.lang.PacketReader;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * {@code MessageDispatcher} routes inbound messages to the handler registered for their {@link PacketHeader.Type}, e.g.
+ * SQL batch, RPC, attention, bulk load and transaction manager requests.
+ * <p>
+ * Handlers are kept in a 256-entry array indexed by the type byte of packet header, so routing a message is a single
+ * array load, without reflection or map lookup.
+ * <p>
+ * PRELOGIN messages of a session negotiating TLS, i.e. in {@link Session.State#SSL_NEG}, carry the TLS handshake and
+ * are passed to {@link TlsEngine#handshake(Session, PacketReader)} rather than to the PRELOGIN handler.
+ *
+ * @author user
+ */
+public class MessageDispatcher
+        implements MessageHandler
+{
+    private final MessageHandler[] handlers = new MessageHandler[256];
+
+    /**
+     * Register {@code handler} for messages of {@code type}, replacing any previous one.
+     *
+     * @param type
+     * @param handler
+     * @return this dispatcher
+     */
+    public MessageDispatcher register(PacketHeader.Type type, MessageHandler handler)
+    {
+        handlers[type.getValue().intValue()] = handler;
+        return this;
+    }
+
+    /**
+     * Register {@code processor} for messages of {@code type}, each message is parsed into a new instance given by
+     * {@code factory} before being processed, e.g. {@code register(Type.SQL_BATCH, SqlBatch::new, this::execute)}.
+     *
+     * @param type
+     * @param factory
+     * @param processor
+     * @param <T>
+     * @return this dispatcher
+     */
+    public <T extends PacketDataReader> MessageDispatcher register(PacketHeader.Type type,
+            Function<Session, T> factory, Processor<T> processor)
+    {
+        return register(type, (session, reader) -> processor.process(session, reader.read(factory.apply(session))));
+    }
+
+    @Override
+    public void handle(Session session, PacketReader reader)
+            throws PacketRWException, IOException
+    {
+        PacketHeader.Type type = reader.getHeader().getType();
+        if (type == PacketHeader.Type.PRE_LOGIN && session.getState() == Session.State.SSL_NEG) {
+            // TLS handshake, once PRELOGIN is answered with encryption on, see PreLogin#respond()
+            TlsEngine.handshake(session, reader);
+            return;
+        }
+
+        MessageHandler h = handlers[type.getValue().intValue()];
+        if (h == null) {
+            throw new PacketRWException("No handler for %s message.", type);
+        }
+        h.handle(session, reader);
+    }
+
+    /**
+     * {@code Processor} processes a parsed message.
+     *
+     * @param <T>
+     * @author user
+     */
+    @FunctionalInterface
+    public interface Processor<T extends PacketDataReader>
+    {
+        void process(Session session, T message)
+                throws PacketRWException, IOException;
+    }
+}
@@ -0,0 +1,31 @@
+package io.sot;
+
+import io.sot.lang.PacketRWException;
+import io.sot.lang.PacketReader;
+
+import java.io.IOException;
+
+/**
+ * {@code MessageHandler} processes an inbound message of a session, which it reads with the given {@link PacketReader}
+ * and answers with {@link io.sot.lang.PacketWriter}.
+ * <p>
+ * It is called by a transport, e.g. {@link NioServer}, on a worker thread, once per message and never concurrently for
+ * the same session. The first packet of message has been read, so {@link PacketReader#getHeader()} tells the message
+ * type. The transport closes the reader afterwards, which drops any packet left unread.
+ *
+ * @author user
+ */
+@FunctionalInterface
+public interface MessageHandler
+{
+    /**
+     * Handle message of {@code reader}.
+     *
+     * @param session
+     * @param reader
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    void handle(Session session, PacketReader reader)
+            throws PacketRWException, IOException;
+}
@@ -0,0 +1,330 @@
+package io.sot;
+
+import io.sot.lang.PacketCapture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * {@code NioServer} is a non-blocking TDS transport, all connections are served by one selector thread.
+ * <p>
+ * The selector thread reads whatever bytes are available into a shared staging buffer, and {@link NioSocket} of the
+ * connection cuts them into packets. Once a message is complete, or too large to be held in memory, it is dispatched to
+ * {@link #workers}, where {@link #handler} parses it through the usual {@link io.sot.lang.PacketReader}. Responses are
+ * written by workers directly as long as the connection accepts them, and write interest is registered only while some
+ * output is pending. An idle connection hence costs a selection key and a few objects, but no thread.
+ *
+ * @author user
+ * @see NioSocket
+ */
+public class NioServer
+        implements Closeable, Runnable
+{
+    private static final Logger LOG = LogManager.getLogger(NioServer.class);
+
+    /**
+     * Size of the staging buffer each read goes through.
+     */
+    static final int STAGING_SIZE = 64 * 1024;
+
+    private final SocketAddress address;
+
+    private final Executor workers;
+
+    private final MessageHandler handler;
+
+    private final ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+
+    /**
+     * Tasks to run on selector thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+
+    private ServerSocketChannel server;
+
+    private Thread thread;
+
+    private volatile boolean running;
+
+    private volatile PacketCapture capture;
+
+    private volatile SSLContext sslContext;
+
+    private volatile PacketSizePolicy packetSizePolicy = PacketSizePolicy.DEFAULT;
+
+    /**
+     * @param address
+     * @param workers executor running {@code handler}
+     * @param handler
+     */
+    public NioServer(SocketAddress address, Executor workers, MessageHandler handler)
+    {
+        this.address = address;
+        this.workers = workers;
+        this.handler = handler;
+    }
+
+    /**
+     * Give packets of sessions accepted from now on to {@code capture}, or stop doing so if null.
+     *
+     * @param capture
+     */
+    public void setCapture(PacketCapture capture)
+    {
+        this.capture = capture;
+    }
+
+    /**
+     * Negotiate packet size of sessions accepted from now on with {@code packetSizePolicy}.
+     *
+     * @param packetSizePolicy
+     */
+    public void setPacketSizePolicy(PacketSizePolicy packetSizePolicy)
+    {
+        this.packetSizePolicy = packetSizePolicy;
+    }
+
+    /**
+     * Support TLS for sessions accepted from now on, with engines created from {@code sslContext}.
+     *
+     * @param sslContext
+     * @see TlsEngine
+     */
+    public void setSslContext(SSLContext sslContext)
+    {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Bind server address and start selector thread.
+     *
+     * @throws IOException
+     */
+    public void start()
+            throws IOException
+    {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(address);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        thread = new Thread(this, "sot-selector");
+        thread.start();
+
+        LOG.info("Listening on {}.", server.getLocalAddress());
+    }
+
+    /**
+     * Get the bound address, useful when started on port 0.
+     *
+     * @return
+     * @throws IOException
+     */
+    public InetSocketAddress getLocalAddress()
+            throws IOException
+    {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    @Override
+    public void run()
+    {
+        while (running) {
+            try {
+                selector.select();
+
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    // one failing key must not end the loop, which serves all connections
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept();
+                        }
+                        else {
+                            ready(key);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        LOG.error("Selector failed on a connection.", e);
+                    }
+                }
+            }
+            catch (IOException e) {
+                LOG.error("Selector failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Run tasks queued by {@link #execute(Runnable)}, each failure is logged without ending the selector loop, e.g. a
+     * {@code CancelledKeyException} of a connection closed meanwhile by a worker.
+     */
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                LOG.error("Selector task failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Stop selector thread and close all connections.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioSocket) {
+                ((NioSocket) key.attachment()).close();
+            }
+        }
+        runTasks();
+        server.close();
+        selector.close();
+    }
+
+    MessageHandler getHandler()
+    {
+        return handler;
+    }
+
+    /**
+     * Run {@code task} on a worker thread.
+     *
+     * @param task
+     */
+    void dispatch(Runnable task)
+    {
+        workers.execute(task);
+    }
+
+    /**
+     * Run {@code task} on selector thread.
+     *
+     * @param task
+     */
+    void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Get the staging buffer shared by connections, on selector thread.
+     *
+     * @return
+     */
+    ByteBuffer getStaging()
+    {
+        return staging;
+    }
+
+    /**
+     * Wake up selector so that changed interest ops are taken into account.
+     */
+    void wakeup()
+    {
+        selector.wakeup();
+    }
+
+    private void accept()
+            throws IOException
+    {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            try {
+                register(channel);
+            }
+            catch (IOException | RuntimeException e) {
+                LOG.warn("Failed to set up accepted connection, closing it.", e);
+                try {
+                    channel.close();
+                }
+                catch (IOException ce) {
+                    LOG.warn("Failed to close connection.", ce);
+                }
+            }
+        }
+    }
+
+    private void register(SocketChannel channel)
+            throws IOException
+    {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        Session session = new Session();
+        session.setCapture(capture);
+        session.setSslContext(sslContext);
+        session.setPacketSizePolicy(packetSizePolicy);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        NioSocket socket = new NioSocket(this, session, channel, key);
+        session.setSocket(socket);
+        key.attach(socket);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Accepted connection from {}.", channel.getRemoteAddress());
+        }
+    }
+
+    private void ready(SelectionKey key)
+    {
+        NioSocket socket = (NioSocket) key.attachment();
+        try {
+            if (key.isReadable()) {
+                socket.onReadable(staging);
+            }
+            if (key.isValid() && key.isWritable()) {
+                socket.onWritable();
+            }
+        }
+        catch (CancelledKeyException e) {
+            // closed by worker meanwhile
+        }
+        catch (Exception e) {
+            LOG.warn("Connection failed, closing it.", e);
+            socket.close();
+        }
+    }
+}
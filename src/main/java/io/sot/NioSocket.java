@@ -0,0 +1,649 @@
+package io.sot;
+
+import io.sot.lang.PacketBufferPool;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketRWException;
+import io.sot.lang.PacketReader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@code NioSocket} is the {@link Socket} of a connection served by {@link NioServer}.
+ * <p>
+ * Inbound bytes are decoded on selector thread: packet header first, whose length tells how many bytes to wait for,
+ * then the rest of packet. Complete packets are queued for worker, and a message is dispatched to worker either when
+ * its EOM packet arrives, or when its queued packets reach the session message budget, so that large messages are
+ * streamed into {@link io.sot.lang.MessageStore} rather than held here. Reading is paused while queued packets exceed
+ * the budget, and resumed as worker takes them.
+ * <p>
+ * Outbound packets are written by worker without waiting for selector, the bytes which the connection does not accept
+ * right away are copied into pooled buffers and written on selector thread when the connection becomes writable. A
+ * worker blocks while pending output exceeds the session message budget.
+ * <p>
+ * Framing stops after a PRELOGIN message, until worker has handled it, since the bytes which follow may be TLS records
+ * that are only to be decrypted once the handshake is finished. Once {@link TlsEngine} is set, bytes read are decrypted
+ * into staging buffer on selector thread before framing, and packets are encrypted by worker into pooled buffers.
+ * <p>
+ * An ATTENTION packet is signalled to session as soon as it is framed, so that the request being answered by worker
+ * stops without waiting for the message to be dispatched.
+ * <p>
+ * Once client runs MARS, SMP frames are framed alike, sized by the length of their own header, and given to
+ * {@link SmpConnection} on selector thread, whose logical sessions are served by workers as well. The budget does not
+ * apply to them, they are bounded by their SMP windows.
+ *
+ * @author user
+ */
+public class NioSocket
+        extends Socket
+{
+    private static final Logger LOG = LogManager.getLogger(NioSocket.class);
+
+    /**
+     * Marks the end of {@link #packets} once connection is closed.
+     */
+    private static final ByteBuffer CLOSED = ByteBuffer.allocate(0);
+
+    private final NioServer server;
+
+    private final Session session;
+
+    private final SocketChannel channel;
+
+    private final SelectionKey key;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // inbound, fields without atomic type are confined to selector thread
+
+    /**
+     * Packet being received.
+     */
+    private ByteBuffer packet;
+    /**
+     * Scattering read targets, packet body then staging.
+     */
+    private final ByteBuffer[] scatter = new ByteBuffer[2];
+    /**
+     * Bytes queued of the message being received.
+     */
+    private long messageQueued;
+    /**
+     * Whether the message being received has been dispatched.
+     */
+    private boolean messageDispatched;
+
+    private final BlockingQueue<ByteBuffer> packets = new LinkedBlockingQueue<>();
+    /**
+     * Bytes queued in {@link #packets}.
+     */
+    private final AtomicLong queued = new AtomicLong();
+    /**
+     * Number of dispatched messages not yet handled.
+     */
+    private final AtomicInteger ready = new AtomicInteger();
+
+    private final AtomicBoolean readPaused = new AtomicBoolean();
+    /**
+     * Whether framing stopped after a PRELOGIN message.
+     */
+    private final AtomicBoolean framingPaused = new AtomicBoolean();
+    /**
+     * Bytes read after the PRELOGIN message which paused framing.
+     */
+    private ByteBuffer residue;
+
+    /**
+     * Read by selector thread, written by worker at a message boundary.
+     */
+    private volatile TlsEngine tls;
+
+    /**
+     * Created by selector thread at the first SMP frame.
+     */
+    private volatile SmpConnection smp;
+
+    // outbound, guarded by lock
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition drained = lock.newCondition();
+
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+    private long pendingBytes;
+
+    NioSocket(NioServer server, Session session, SocketChannel channel, SelectionKey key)
+    {
+        this.server = server;
+        this.session = session;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    public Session getSession()
+    {
+        return session;
+    }
+
+    /**
+     * Take next packet received, wait until it arrives.
+     *
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public ByteBuffer read()
+            throws IOException
+    {
+        ByteBuffer b;
+        try {
+            b = packets.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for packet.");
+        }
+
+        if (b == CLOSED) {
+            // keep end mark for other reads
+            packets.add(CLOSED);
+            throw new ClosedChannelException();
+        }
+
+        if (queued.addAndGet(-b.limit()) < session.getMessageBudget() && readPaused.compareAndSet(true, false)) {
+            key.interestOpsOr(SelectionKey.OP_READ);
+            server.wakeup();
+        }
+        return b;
+    }
+
+    /**
+     * Write {@code packets} if connection accepts them, otherwise copy what remains for selector thread to write.
+     *
+     * @param packets
+     * @throws IOException
+     */
+    @Override
+    public void write(ByteBuffer... packets)
+            throws IOException
+    {
+        lock.lock();
+        try {
+            if (closed.get()) {
+                throw new ClosedChannelException();
+            }
+
+            TlsEngine t = tls;
+            if (t != null) {
+                writeTls(t, packets);
+            }
+            else {
+                if (pending.isEmpty()) {
+                    channel.write(packets);
+                }
+
+                for (ByteBuffer p : packets) {
+                    if (p.hasRemaining()) {
+                        ByteBuffer c = session.getBufferPool().acquire(p.capacity());
+                        pendingBytes += p.remaining();
+                        pending.add(c.put(p).flip());
+                    }
+                }
+            }
+
+            if (!pending.isEmpty()) {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                server.wakeup();
+
+                while (pendingBytes >= session.getMessageBudget() && !closed.get()) {
+                    drained.await();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for output to drain.");
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush(PacketHeader header)
+            throws IOException
+    {
+        // packets are already written or pending on selector, nothing is buffered here
+    }
+
+    @Override
+    public void pollAttention()
+    {
+        // attention is signalled by selector thread as soon as it arrives
+    }
+
+    @Override
+    public void setTls(TlsEngine tls)
+    {
+        TlsEngine old = this.tls;
+        this.tls = tls;
+        if (old != null) {
+            // its buffers are used by selector thread
+            server.execute(old::close);
+        }
+    }
+
+    /**
+     * Close connection, can be called from any thread.
+     */
+    public void close()
+    {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        key.cancel();
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to close connection.", e);
+        }
+
+        // wake up worker waiting for packet
+        packets.add(CLOSED);
+        SmpConnection m = smp;
+        if (m != null) {
+            m.close();
+        }
+
+        PacketBufferPool pool = session.getBufferPool();
+        lock.lock();
+        try {
+            for (ByteBuffer b : pending) {
+                pool.release(b);
+            }
+            pending.clear();
+            pendingBytes = 0;
+            drained.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        // packet being received is confined to selector thread
+        server.execute(() -> {
+            if (packet != null) {
+                pool.release(packet);
+                packet = null;
+            }
+            if (residue != null) {
+                pool.release(residue);
+                residue = null;
+            }
+            TlsEngine t = tls;
+            if (t != null) {
+                t.close();
+            }
+
+            ByteBuffer b;
+            while ((b = packets.poll()) != null) {
+                if (b != CLOSED) {
+                    pool.release(b);
+                }
+            }
+            packets.add(CLOSED);
+        });
+    }
+
+    /**
+     * Read available bytes, and queue complete packets.
+     *
+     * @param staging empty buffer shared by all connections of selector
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    void onReadable(ByteBuffer staging)
+            throws PacketRWException, IOException
+    {
+        if (framingPaused.get()) {
+            key.interestOpsAnd(~SelectionKey.OP_READ);
+            return;
+        }
+
+        TlsEngine t = tls;
+        if (t != null) {
+            if (t.read(channel) < 0) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Connection closed by client.");
+                }
+                close();
+                return;
+            }
+            decrypt(t, staging);
+            return;
+        }
+
+        staging.clear();
+        long read;
+        if (packet != null && packet.limit() > PacketHeader.LENGTH) {
+            // body in progress, its bytes land in packet buffer directly and only what follows goes to staging
+            scatter[0] = packet;
+            scatter[1] = staging;
+            read = channel.read(scatter);
+            scatter[0] = null;
+            scatter[1] = null;
+        }
+        else {
+            read = channel.read(staging);
+        }
+        if (read < 0) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Connection closed by client.");
+            }
+            close();
+            return;
+        }
+        staging.flip();
+
+        if (packet != null && !packet.hasRemaining() && packet.limit() > PacketHeader.LENGTH) {
+            receive(packet.flip());
+            packet = null;
+        }
+        frame(staging);
+    }
+
+    /**
+     * Write pending output, and drop write interest once all is written.
+     *
+     * @throws IOException
+     */
+    void onWritable()
+            throws IOException
+    {
+        PacketBufferPool pool = session.getBufferPool();
+        lock.lock();
+        try {
+            ByteBuffer b;
+            while ((b = pending.peek()) != null) {
+                pendingBytes -= channel.write(b);
+                if (b.hasRemaining()) {
+                    return;
+                }
+                pool.release(pending.poll());
+            }
+
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            drained.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decrypt received records through {@code staging}, and frame them.
+     *
+     * @param t
+     * @param staging
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void decrypt(TlsEngine t, ByteBuffer staging)
+            throws PacketRWException, IOException
+    {
+        while (t.unwrap(staging.clear()) > 0) {
+            frame(staging.flip());
+        }
+    }
+
+    /**
+     * Cut {@code src} into packets, and queue complete ones. If a PRELOGIN message pauses framing, the rest of
+     * {@code src} is kept in {@link #residue}.
+     *
+     * @param src
+     * @throws PacketRWException
+     */
+    private void frame(ByteBuffer src)
+            throws PacketRWException
+    {
+        // staging is shared, consume all of it
+        while (src.hasRemaining()) {
+            if (framingPaused.get()) {
+                residue = session.getBufferPool().acquire(server.getStaging().capacity()).put(src).flip();
+                key.interestOpsAnd(~SelectionKey.OP_READ);
+                return;
+            }
+
+            if (packet == null) {
+                packet = session.getBufferPool().acquire(session.getPacketSize());
+                packet.limit(PacketHeader.LENGTH);
+            }
+
+            int n = Math.min(src.remaining(), packet.remaining());
+            packet.put(packet.position(), src, src.position(), n);
+            packet.position(packet.position() + n);
+            src.position(src.position() + n);
+
+            if (packet.hasRemaining()) {
+                break;
+            }
+
+            if (packet.limit() == PacketHeader.LENGTH) {
+                // header complete, wait for the rest of packet
+                if (SmpConnection.isFrame(packet)) {
+                    frameSmp();
+                }
+                else {
+                    int length = ((packet.get(PacketHeader.LENGTH_POS) & 0xFF) << 8)
+                            | (packet.get(PacketHeader.LENGTH_POS + 1) & 0xFF);
+                    if (length < PacketHeader.LENGTH || length > packet.capacity()) {
+                        throw new PacketRWException("Packet length %d is out of range [%d, %d].", length,
+                                PacketHeader.LENGTH, packet.capacity());
+                    }
+                    packet.limit(length);
+                }
+                if (packet.hasRemaining()) {
+                    continue;
+                }
+            }
+
+            receive(packet.flip());
+            packet = null;
+        }
+    }
+
+    /**
+     * Size {@link #packet}, whose first bytes are an SMP header, to the frame length, growing it to hold a header and
+     * a packet of session size.
+     *
+     * @throws PacketRWException
+     */
+    private void frameSmp()
+            throws PacketRWException
+    {
+        int length = SmpConnection.getFrameLength(packet);
+        int max = SmpConnection.getMaxFrameLength(session);
+        if (length < SmpConnection.HEADER_LENGTH || length > max) {
+            throw new PacketRWException("SMP frame length %d is out of range [%d, %d].", length,
+                    SmpConnection.HEADER_LENGTH, max);
+        }
+        if (length > packet.capacity()) {
+            PacketBufferPool pool = session.getBufferPool();
+            ByteBuffer b = pool.acquire(max).put(packet.flip());
+            pool.release(packet);
+            packet = b;
+        }
+        packet.limit(length);
+    }
+
+    /**
+     * Encrypt {@code packets} record by record, writing records if connection accepts them and queueing the rest, with
+     * lock held.
+     *
+     * @param t
+     * @param packets
+     * @throws IOException
+     */
+    private void writeTls(TlsEngine t, ByteBuffer[] packets)
+            throws IOException
+    {
+        PacketBufferPool pool = session.getBufferPool();
+        ByteBuffer last = packets[packets.length - 1];
+        do {
+            ByteBuffer net = pool.acquire(t.getPacketBufferSize());
+            t.wrap(packets, net);
+            net.flip();
+            if (pending.isEmpty()) {
+                channel.write(net);
+            }
+            if (net.hasRemaining()) {
+                pendingBytes += net.remaining();
+                pending.add(net);
+            }
+            else {
+                pool.release(net);
+            }
+        }
+        while (last.hasRemaining());
+    }
+
+    /**
+     * Frame bytes read after the PRELOGIN message which paused framing, through {@link TlsEngine} if the handshake is
+     * finished, and read again. Run on selector thread.
+     */
+    private void resumeFraming()
+    {
+        // a message still to handle is the PRELOGIN one, whose worker calls again
+        if (closed.get() || ready.get() != 0 || !framingPaused.compareAndSet(true, false)) {
+            return;
+        }
+
+        ByteBuffer r = residue;
+        residue = null;
+        if (r != null) {
+            try {
+                TlsEngine t = tls;
+                if (t == null) {
+                    frame(r);
+                }
+                else {
+                    // records, which may not fit in network buffer at once
+                    ByteBuffer netIn = t.getNetIn();
+                    while (r.hasRemaining()) {
+                        int n = Math.min(r.remaining(), netIn.remaining());
+                        netIn.put(netIn.position(), r, r.position(), n);
+                        netIn.position(netIn.position() + n);
+                        r.position(r.position() + n);
+                        decrypt(t, server.getStaging());
+                    }
+                }
+            }
+            catch (Exception e) {
+                LOG.warn("Connection failed, closing it.", e);
+                close();
+                return;
+            }
+            finally {
+                session.getBufferPool().release(r);
+            }
+        }
+
+        if (!framingPaused.get() && !readPaused.get()) {
+            key.interestOpsOr(SelectionKey.OP_READ);
+        }
+    }
+
+    private void receive(ByteBuffer b)
+            throws PacketRWException
+    {
+        if (SmpConnection.isFrame(b)) {
+            if (smp == null) {
+                smp = new SmpConnection(session, server::dispatch, server.getHandler());
+                if (closed.get()) {
+                    // close() may have missed it
+                    smp.close();
+                }
+            }
+            smp.receive(b);
+            return;
+        }
+
+        boolean eom = (b.get(PacketHeader.STATUS_POS) & PacketHeader.StatusFlag.EOM.getValue()) != 0;
+        long budget = session.getMessageBudget();
+        int type = b.get(PacketHeader.TYPE_POS) & 0xFF;
+        if (eom && tls == null && type == PacketHeader.Type.PRE_LOGIN.getValue().intValue()) {
+            // following bytes may be TLS records, wait until worker has handled it
+            framingPaused.set(true);
+        }
+        else if (type == PacketHeader.Type.ATTENTION.getValue().intValue()) {
+            // out of band: running request stops at next token, while the message is queued behind it
+            session.signalAttention();
+            server.dispatch(session::cancelStatement);
+        }
+
+        messageQueued += b.limit();
+        packets.add(b);
+
+        if (!messageDispatched && (eom || messageQueued >= budget)) {
+            messageDispatched = true;
+            if (ready.getAndIncrement() == 0) {
+                server.dispatch(this::serve);
+            }
+        }
+        if (eom) {
+            messageDispatched = false;
+            messageQueued = 0;
+        }
+
+        // dispatch above guarantees that worker is going to take packets
+        if (queued.addAndGet(b.limit()) >= budget) {
+            key.interestOpsAnd(~SelectionKey.OP_READ);
+            readPaused.set(true);
+            // worker may have taken packets meanwhile
+            if (queued.get() < budget && readPaused.compareAndSet(true, false)) {
+                key.interestOpsOr(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Handle dispatched messages one by one, on worker thread.
+     */
+    private void serve()
+    {
+        do {
+            try (PacketReader reader = new PacketReader(session)) {
+                server.getHandler().handle(session, reader);
+            }
+            catch (Exception e) {
+                if (!closed.get()) {
+                    LOG.error("Failed to handle message, closing connection.", e);
+                    close();
+                }
+                return;
+            }
+        }
+        while (ready.decrementAndGet() > 0);
+
+        if (framingPaused.get() && ready.get() == 0) {
+            // the PRELOGIN message which paused framing is handled
+            server.execute(this::resumeFraming);
+        }
+    }
+}
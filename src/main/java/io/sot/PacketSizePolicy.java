@@ -0,0 +1,55 @@
+package io.sot;
+
+import io.sot.lang.PacketHeader;
+import io.sot.message.Login7;
+
+/**
+ * {@code PacketSizePolicy} decides the packet size of a session at login, from the size requested in {@link Login7}.
+ * <p>
+ * The decided size is sent to client in a {@code PACKET_SIZE} {@link io.sot.message.EnvChange}, see
+ * {@link Login7#negotiatePacketSize()}, and is used by both sides from the next message on. Sizes can be capped or raised
+ * per application, e.g.
+ * <pre>
+ * server.setPacketSizePolicy((login, requested) -&gt; "loader".equals(login.getAppName())
+ *         ? PacketHeader.MAX_NEG_LENGTH
+ *         : Math.min(requested, 8192));
+ * </pre>
+ *
+ * @author user
+ */
+@FunctionalInterface
+public interface PacketSizePolicy
+{
+    /**
+     * Honour requested sizes up to {@link PacketHeader#MAX_NEG_LENGTH}.
+     */
+    PacketSizePolicy DEFAULT = range(PacketHeader.MIN_NEG_LENGTH, PacketHeader.MAX_NEG_LENGTH);
+
+    /**
+     * Decide packet size of session logging in with {@code login}.
+     *
+     * @param login
+     * @param requested size requested by client, 0 if it leaves the choice to server
+     * @return packet size, including header, within [{@link PacketHeader#MIN_NEG_LENGTH},
+     * {@link PacketHeader#MAX_NEG_LENGTH}]
+     */
+    int negotiate(Login7 login, int requested);
+
+    /**
+     * Get a policy which bounds requested sizes to [{@code min}, {@code max}], and gives
+     * {@link Session#INITIAL_PACKET_SIZE}, also bounded, to clients leaving the choice to server.
+     *
+     * @param min
+     * @param max
+     * @return
+     */
+    static PacketSizePolicy range(int min, int max)
+    {
+        if (min < PacketHeader.MIN_NEG_LENGTH || max > PacketHeader.MAX_NEG_LENGTH || min > max) {
+            throw new IllegalArgumentException(String.format("Packet size range [%d, %d] is not within [%d, %d].", min,
+                    max, PacketHeader.MIN_NEG_LENGTH, PacketHeader.MAX_NEG_LENGTH));
+        }
+        return (login, requested) -> Math.max(min, Math.min(max,
+                requested == 0 ? Session.INITIAL_PACKET_SIZE : requested));
+    }
+}
@@ -1,13 +1,126 @@
 package io.sot;
 
+import io.sot.lang.PacketBufferPool;
+import io.sot.lang.PacketCapture;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.TdsVersion;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Session
 {
+    private static final Logger LOG = LogManager.getLogger(Session.class);
+
+    /**
+     * Default in-memory bytes an inbound message may hold before spilling to file.
+     */
+    public static final long DEFAULT_MESSAGE_BUDGET = 4 * 1024 * 1024;
+
+    /**
+     * Packet size used by both sides until a size is negotiated at login.
+     */
+    public static final int INITIAL_PACKET_SIZE = 4096;
+
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    private final int id = IDS.incrementAndGet();
+
+    /**
+     * Session of the physical connection, this session itself unless it is multiplexed by {@link SmpConnection}.
+     */
+    private final Session connection;
+
     private Socket socket;
 
-    private State state;
+    private long messageBudget = DEFAULT_MESSAGE_BUDGET;
+
+    private PacketBufferPool bufferPool = PacketBufferPool.SHARED;
+
+    private PacketCapture capture;
+
+    private SSLContext sslContext;
+
+    private PacketSizePolicy packetSizePolicy = PacketSizePolicy.DEFAULT;
+
+    /**
+     * Read by selector thread of {@link NioServer} to size inbound packets, only that of {@link #connection} is used.
+     */
+    private volatile int packetSize = INITIAL_PACKET_SIZE;
+
+    /**
+     * Packet size negotiated at login, 0 once applied, only that of {@link #connection} is used.
+     */
+    private int pendingPacketSize;
+
+    /**
+     * Set at login, only that of {@link #connection} is used.
+     */
+    private volatile TdsVersion tdsVersion;
+
+    /**
+     * Whether UTF-8 collations are acknowledged to client at login, only that of {@link #connection} is used.
+     */
+    private volatile boolean utf8Supported;
+
+    /**
+     * Set by transport as soon as an ATTENTION packet arrives, ahead of the message itself.
+     */
+    private final AtomicBoolean attention = new AtomicBoolean();
+
+    private volatile boolean attentionAcknowledged;
+
+    private volatile Statement statement;
+
+    private TlsEngine tls;
+
+    private State state = State.INITIAL;
 
     public Session()
     {
+        connection = this;
+    }
+
+    /**
+     * Create a logical session multiplexed over the connection of {@code connection}, with the same settings. Packet
+     * size is that of the connection, shared by all its sessions.
+     *
+     * @param connection
+     */
+    public Session(Session connection)
+    {
+        this.connection = connection.connection;
+        messageBudget = connection.messageBudget;
+        bufferPool = connection.bufferPool;
+        capture = connection.capture;
+        sslContext = connection.sslContext;
+        packetSizePolicy = connection.packetSizePolicy;
+        state = connection.state;
+    }
+
+    /**
+     * Get the id of this session, unique within the process.
+     *
+     * @return
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Get the session of the physical connection, which is this session unless it is a logical session of MARS.
+     *
+     * @return
+     */
+    public Session getConnection()
+    {
+        return connection;
     }
 
     public Socket getSocket()
@@ -20,15 +133,257 @@ public class Session
         this.socket = socket;
     }
 
+    public long getMessageBudget()
+    {
+        return messageBudget;
+    }
+
+    public void setMessageBudget(long messageBudget)
+    {
+        this.messageBudget = messageBudget;
+    }
+
+    public PacketBufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    public void setBufferPool(PacketBufferPool bufferPool)
+    {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Get the capture which packets of this session are given to, null if not captured.
+     *
+     * @return
+     */
+    public PacketCapture getCapture()
+    {
+        return capture;
+    }
+
+    public void setCapture(PacketCapture capture)
+    {
+        this.capture = capture;
+    }
+
+    /**
+     * Get the context which TLS engines of this session are created from, null if encryption is not supported.
+     *
+     * @return
+     */
+    public SSLContext getSslContext()
+    {
+        return sslContext;
+    }
+
+    public void setSslContext(SSLContext sslContext)
+    {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Get the TLS engine of this session, null before TLS negotiation.
+     *
+     * @return
+     */
+    public TlsEngine getTls()
+    {
+        return tls;
+    }
+
+    public void setTls(TlsEngine tls)
+    {
+        this.tls = tls;
+    }
+
     public State getState()
     {
         return this.state;
     }
 
+    public void setState(State state)
+    {
+        this.state = state;
+    }
+
+    public PacketSizePolicy getPacketSizePolicy()
+    {
+        return packetSizePolicy;
+    }
+
+    public void setPacketSizePolicy(PacketSizePolicy packetSizePolicy)
+    {
+        this.packetSizePolicy = packetSizePolicy;
+    }
+
+    /**
+     * Get the packet size, including header, of this session.
+     *
+     * @return
+     */
     public int getPacketSize()
     {
-        // TODO
-        return 8196;
+        return connection.packetSize;
+    }
+
+    /**
+     * Set the packet size negotiated at login. Inbound packets are sized with it from now on, and outbound ones from
+     * the next message of each {@link io.sot.lang.PacketWriter}.
+     *
+     * @param packetSize
+     */
+    public void setPacketSize(int packetSize)
+    {
+        if (packetSize < PacketHeader.MIN_NEG_LENGTH || packetSize > PacketHeader.MAX_NEG_LENGTH) {
+            throw new IllegalArgumentException(String.format("Packet size %d is not within [%d, %d].", packetSize,
+                    PacketHeader.MIN_NEG_LENGTH, PacketHeader.MAX_NEG_LENGTH));
+        }
+        connection.packetSize = packetSize;
+    }
+
+    /**
+     * Set the packet size negotiated at login, to apply once the current message, i.e. the login response, is written,
+     * so that it is sent in the packet size client expects, see {@link #applyPendingPacketSize()}.
+     *
+     * @param packetSize
+     */
+    public void setPendingPacketSize(int packetSize)
+    {
+        if (packetSize < PacketHeader.MIN_NEG_LENGTH || packetSize > PacketHeader.MAX_NEG_LENGTH) {
+            throw new IllegalArgumentException(String.format("Packet size %d is not within [%d, %d].", packetSize,
+                    PacketHeader.MIN_NEG_LENGTH, PacketHeader.MAX_NEG_LENGTH));
+        }
+        connection.pendingPacketSize = packetSize;
+    }
+
+    /**
+     * Apply the packet size negotiated at login if any, called by {@link io.sot.lang.PacketWriter} before the last
+     * packet of a message is written, so that it applies before client may answer.
+     */
+    public void applyPendingPacketSize()
+    {
+        if (connection.pendingPacketSize != 0) {
+            setPacketSize(connection.pendingPacketSize);
+            connection.pendingPacketSize = 0;
+        }
+    }
+
+    /**
+     * Get the TDS version of client, null before login. It tells which tokens and types the client understands.
+     *
+     * @return
+     */
+    public TdsVersion getTdsVersion()
+    {
+        return connection.tdsVersion;
+    }
+
+    /**
+     * Set the TDS version of client, at login. It is shared by all sessions of a MARS connection.
+     *
+     * @param tdsVersion
+     */
+    public void setTdsVersion(TdsVersion tdsVersion)
+    {
+        connection.tdsVersion = tdsVersion;
+    }
+
+    /**
+     * Check whether client was acknowledged UTF-8 support at login, so that VARCHAR and CHAR values may be sent UTF-8
+     * encoded, under a UTF-8 collation.
+     *
+     * @return
+     */
+    public boolean isUtf8Supported()
+    {
+        return connection.utf8Supported;
+    }
+
+    /**
+     * Set whether client was acknowledged UTF-8 support, at login. It is shared by all sessions of a MARS connection.
+     *
+     * @param utf8Supported
+     */
+    public void setUtf8Supported(boolean utf8Supported)
+    {
+        connection.utf8Supported = utf8Supported;
+    }
+
+    /**
+     * Tell that client has sent an attention, called by transport when the packet arrives, which may be while a request
+     * is still being answered. Running request is to stop at next token boundary, see {@link #isAttention()}.
+     */
+    public void signalAttention()
+    {
+        attention.set(true);
+    }
+
+    /**
+     * Check whether client has sent an attention that is not yet answered, at token boundaries of a response.
+     *
+     * @return
+     */
+    public boolean isAttention()
+    {
+        return attention.get();
+    }
+
+    /**
+     * Tell that the response being written is ended with a {@code DONE_ATTN}, so the ATTENTION message itself needs no
+     * answer.
+     */
+    public void acknowledgeAttention()
+    {
+        attentionAcknowledged = true;
+    }
+
+    /**
+     * Clear attention once its message is handled.
+     *
+     * @return whether the attention has been acknowledged by the response it interrupted
+     */
+    public boolean resetAttention()
+    {
+        boolean acknowledged = attentionAcknowledged;
+        attentionAcknowledged = false;
+        attention.set(false);
+        return acknowledged;
+    }
+
+    /**
+     * Register the backend statement executing current request, or null once it is done, so that an attention cancels
+     * it. It is cancelled at once if an attention has already arrived.
+     *
+     * @param statement
+     */
+    public void setStatement(Statement statement)
+    {
+        this.statement = statement;
+        if (statement != null && attention.get()) {
+            cancelStatement();
+        }
+    }
+
+    /**
+     * Cancel the registered backend statement, if any, upon attention. It may block on backend, so transports call it
+     * off their I/O thread.
+     */
+    public void cancelStatement()
+    {
+        Statement s = statement;
+        if (s != null && attention.get()) {
+            try {
+                s.cancel();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Statement of session {} cancelled by attention.", id);
+                }
+            }
+            catch (SQLException e) {
+                LOG.warn("Failed to cancel statement upon attention.", e);
+            }
+        }
     }
 
     public enum State
@@ -0,0 +1,281 @@
+package io.sot;
+
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketRWException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@code SmpConnection} demultiplexes the logical sessions of a MARS connection, as framed by the Session Multiplexing
+ * Protocol (MC-SMP).
+ * <p>
+ * Once MARS is agreed in PRELOGIN, the client wraps each TDS packet in a DATA frame of 16-byte little endian header:
+ * SMID, flags, session id, frame length, sequence number and window. Transports tell frames from plain packets by
+ * their first byte, {@link #SMID} being no packet type, and give them to {@link #receive(ByteBuffer)} on their I/O
+ * thread. A SYN frame opens an {@link SmpStream}, which is the {@link Socket} of a new {@link Session} served by
+ * {@link MessageHandler} like any other, a FIN frame closes it.
+ * <p>
+ * Each stream has its own flow control windows: client may only send DATA frames up to the sequence number advertised
+ * by server, which grows as the stream session takes packets, so that no stream holds more than
+ * {@link #RECEIVE_WINDOW} packets, and a stream blocks its writer once it has sent as many frames as client allows.
+ * Frames of all streams are written to the connection under a fair lock one packet at a time, so responses written
+ * concurrently are interleaved packet by packet rather than one after the other.
+ *
+ * @author user
+ * @see SmpStream
+ */
+public class SmpConnection
+        implements Closeable
+{
+    private static final Logger LOG = LogManager.getLogger(SmpConnection.class);
+
+    /**
+     * First byte of every SMP frame.
+     */
+    public static final byte SMID = 0x53;
+
+    /**
+     * SMP header length.
+     */
+    public static final int HEADER_LENGTH = 16;
+
+    /**
+     * Number of packets client may send on a stream ahead of those taken by its session.
+     */
+    public static final int RECEIVE_WINDOW = 4;
+
+    static final int SYN = 0x01;
+    static final int ACK = 0x02;
+    static final int FIN = 0x04;
+    static final int DATA = 0x08;
+
+    private static final int FLAGS_POS = 1;
+    private static final int SID_POS = 2;
+    private static final int LENGTH_POS = 4;
+    private static final int SEQNUM_POS = 8;
+    private static final int WNDW_POS = 12;
+
+    private final Session session;
+
+    private final Executor workers;
+
+    private final MessageHandler handler;
+
+    private final Map<Integer, SmpStream> streams = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    // outbound, guarded by lock
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+
+    /**
+     * @param session session of the physical connection, whose settings logical sessions inherit
+     * @param workers executor running stream messages
+     * @param handler
+     */
+    public SmpConnection(Session session, Executor workers, MessageHandler handler)
+    {
+        this.session = session;
+        this.workers = workers;
+        this.handler = handler;
+    }
+
+    /**
+     * Check whether {@code b}, which holds at least one byte, starts with an SMP header rather than a packet header.
+     *
+     * @param b
+     * @return
+     */
+    public static boolean isFrame(ByteBuffer b)
+    {
+        return b.get(0) == SMID;
+    }
+
+    /**
+     * Get the length, header included, of the frame whose header starts {@code b}, out of its first
+     * {@link PacketHeader#LENGTH} bytes.
+     *
+     * @param b
+     * @return
+     */
+    public static int getFrameLength(ByteBuffer b)
+    {
+        return Integer.reverseBytes(b.getInt(LENGTH_POS));
+    }
+
+    /**
+     * Get the largest frame length of connection, i.e. a header and a packet of session size.
+     *
+     * @param session
+     * @return
+     */
+    public static int getMaxFrameLength(Session session)
+    {
+        return HEADER_LENGTH + session.getPacketSize();
+    }
+
+    /**
+     * Handle a whole frame, on transport I/O thread. The buffer is taken over, a DATA frame is turned into the packet it
+     * carries and queued on its stream, others are released.
+     *
+     * @param frame
+     * @throws PacketRWException
+     */
+    public void receive(ByteBuffer frame)
+            throws PacketRWException
+    {
+        boolean taken = false;
+        try {
+            int length = frame.remaining();
+            if (length < HEADER_LENGTH || getFrameLength(frame) != length) {
+                throw new PacketRWException("SMP frame length %d does not match header.", length);
+            }
+
+            int flags = frame.get(FLAGS_POS) & 0xFF;
+            int sid = Short.reverseBytes(frame.getShort(SID_POS)) & 0xFFFF;
+            int seq = Integer.reverseBytes(frame.getInt(SEQNUM_POS));
+            int window = Integer.reverseBytes(frame.getInt(WNDW_POS));
+
+            if (flags == SYN) {
+                open(sid, window);
+                return;
+            }
+
+            SmpStream stream = streams.get(sid);
+            if (stream == null) {
+                // closed by server meanwhile, late frames are dropped
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Frame 0x{} dropped, SMP session {} is not open.", Integer.toHexString(flags), sid);
+                }
+                return;
+            }
+
+            switch (flags) {
+                case ACK:
+                    stream.updateWindow(window);
+                    break;
+                case DATA:
+                    stream.updateWindow(window);
+                    frame.position(HEADER_LENGTH);
+                    frame.compact().flip();
+                    int packetLength = ((frame.get(PacketHeader.LENGTH_POS) & 0xFF) << 8)
+                            | (frame.get(PacketHeader.LENGTH_POS + 1) & 0xFF);
+                    if (frame.remaining() < PacketHeader.LENGTH || packetLength != frame.remaining()) {
+                        throw new PacketRWException("SMP DATA frame of session %d does not carry a whole packet.", sid);
+                    }
+                    stream.deliver(seq, frame);
+                    taken = true;
+                    break;
+                case FIN:
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("SMP session {} closed by client.", sid);
+                    }
+                    workers.execute(stream::close);
+                    break;
+                default:
+                    throw new PacketRWException("Unknown SMP flags 0x%02X.", flags);
+            }
+        }
+        finally {
+            if (!taken) {
+                session.getBufferPool().release(frame);
+            }
+        }
+    }
+
+    /**
+     * Close all streams, once the physical connection is closed.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        for (SmpStream stream : streams.values()) {
+            stream.disconnect();
+        }
+        streams.clear();
+    }
+
+    Executor getWorkers()
+    {
+        return workers;
+    }
+
+    MessageHandler getHandler()
+    {
+        return handler;
+    }
+
+    /**
+     * Write a frame of {@code stream}, with {@code packet} if DATA. Sequence number and window are taken under lock,
+     * so that they go out in order.
+     *
+     * @param stream
+     * @param flags
+     * @param packet
+     * @throws IOException
+     */
+    void send(SmpStream stream, int flags, ByteBuffer packet)
+            throws IOException
+    {
+        lock.lock();
+        try {
+            int length = HEADER_LENGTH + (packet == null ? 0 : packet.remaining());
+            header.clear();
+            header.put(SMID)
+                    .put((byte) flags)
+                    .putShort(Short.reverseBytes((short) stream.getId()))
+                    .putInt(Integer.reverseBytes(length))
+                    .putInt(Integer.reverseBytes(stream.nextSequence(flags == DATA)))
+                    .putInt(Integer.reverseBytes(stream.advertise()))
+                    .flip();
+            if (packet == null) {
+                session.getSocket().write(header);
+            }
+            else {
+                session.getSocket().write(header, packet);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(SmpStream stream)
+    {
+        streams.remove(stream.getId(), stream);
+    }
+
+    private void open(int sid, int window)
+            throws PacketRWException
+    {
+        Session s = new Session(session);
+        SmpStream stream = new SmpStream(this, s, sid, window);
+        s.setSocket(stream);
+        if (streams.putIfAbsent(sid, stream) != null) {
+            throw new PacketRWException("SMP session %d is already open.", sid);
+        }
+        if (closed) {
+            streams.remove(sid);
+            stream.disconnect();
+            return;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("SMP session {} opened as session {}.", sid, s.getId());
+        }
+        // tell client the receive window, off I/O thread since writing may wait
+        workers.execute(stream::acknowledge);
+    }
+}
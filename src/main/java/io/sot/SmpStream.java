@@ -0,0 +1,366 @@
+package io.sot;
+
+import io.sot.lang.PacketBufferPool;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketRWException;
+import io.sot.lang.PacketReader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@code SmpStream} is the {@link Socket} of a logical session of a MARS connection, see {@link SmpConnection}.
+ * <p>
+ * Packets carried by DATA frames are queued by the connection I/O thread, and a message is dispatched to worker at its
+ * first packet: the receive window only lets client send a few packets ahead, so the rest of a large message comes
+ * as the session reads it. Taking packets advertises a larger window to client, in the next frame written, or in an
+ * ACK once half of the window is used.
+ * <p>
+ * Each packet written goes out in a DATA frame, after waiting while client window is full. Attention is signalled to
+ * session as soon as its packet arrives, as {@link NioSocket} does.
+ *
+ * @author user
+ */
+public class SmpStream
+        extends Socket
+{
+    private static final Logger LOG = LogManager.getLogger(SmpStream.class);
+
+    /**
+     * Marks the end of {@link #packets} once stream is closed.
+     */
+    private static final ByteBuffer CLOSED = ByteBuffer.allocate(0);
+
+    private final SmpConnection connection;
+
+    private final Session session;
+
+    private final int id;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // inbound, fields without atomic type are confined to connection I/O thread
+
+    private final BlockingQueue<ByteBuffer> packets = new LinkedBlockingQueue<>();
+    /**
+     * Number of dispatched messages not yet handled.
+     */
+    private final AtomicInteger ready = new AtomicInteger();
+    /**
+     * Whether next packet starts a message.
+     */
+    private boolean messageStart = true;
+    /**
+     * Sequence number of last DATA frame received.
+     */
+    private int received;
+    /**
+     * Number of packets taken by session.
+     */
+    private final AtomicInteger taken = new AtomicInteger();
+    /**
+     * Highest sequence number client may send, written under connection lock.
+     */
+    private volatile int advertised = SmpConnection.RECEIVE_WINDOW;
+
+    // outbound
+
+    /**
+     * Sequence number of last DATA frame sent, written by session thread under connection lock.
+     */
+    private int sent;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition opened = lock.newCondition();
+    /**
+     * Highest sequence number client accepts, guarded by lock.
+     */
+    private int window;
+
+    SmpStream(SmpConnection connection, Session session, int id, int window)
+    {
+        this.connection = connection;
+        this.session = session;
+        this.id = id;
+        this.window = window;
+    }
+
+    public Session getSession()
+    {
+        return session;
+    }
+
+    /**
+     * Get the SMP session id.
+     *
+     * @return
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Take next packet received, wait until it arrives.
+     *
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public ByteBuffer read()
+            throws IOException
+    {
+        ByteBuffer b;
+        try {
+            b = packets.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for packet.");
+        }
+
+        if (b == CLOSED) {
+            // keep end mark for other reads
+            packets.add(CLOSED);
+            throw new ClosedChannelException();
+        }
+
+        if (advertised - taken.incrementAndGet() <= SmpConnection.RECEIVE_WINDOW / 2) {
+            connection.send(this, SmpConnection.ACK, null);
+        }
+        return b;
+    }
+
+    /**
+     * Write each of {@code packets} in its own DATA frame, waiting while client window is full.
+     *
+     * @param packets
+     * @throws IOException
+     */
+    @Override
+    public void write(ByteBuffer... packets)
+            throws IOException
+    {
+        for (ByteBuffer p : packets) {
+            lock.lock();
+            try {
+                while (sent - window >= 0 && !closed.get()) {
+                    opened.await();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for SMP window.");
+            }
+            finally {
+                lock.unlock();
+            }
+
+            if (closed.get()) {
+                throw new ClosedChannelException();
+            }
+            connection.send(this, SmpConnection.DATA, p);
+        }
+    }
+
+    @Override
+    public void flush(PacketHeader header)
+            throws IOException
+    {
+        // each packet is written at once
+    }
+
+    @Override
+    public void pollAttention()
+    {
+        // attention is signalled by connection I/O thread as soon as it arrives
+    }
+
+    @Override
+    public void setTls(TlsEngine tls)
+            throws IOException
+    {
+        throw new IOException("TLS is negotiated by the MARS connection, not by its sessions.");
+    }
+
+    /**
+     * Close stream, telling client with a FIN frame, can be called from any thread.
+     */
+    public void close()
+    {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            connection.send(this, SmpConnection.FIN, null);
+        }
+        catch (IOException e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to send FIN of SMP session {}.", id, e);
+            }
+        }
+        connection.remove(this);
+        release();
+    }
+
+    /**
+     * Close stream without telling client, once connection is closed.
+     */
+    void disconnect()
+    {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * Send the initial receive window.
+     */
+    void acknowledge()
+    {
+        try {
+            connection.send(this, SmpConnection.ACK, null);
+        }
+        catch (IOException e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to acknowledge SMP session {}.", id, e);
+            }
+        }
+    }
+
+    /**
+     * Raise the window of client, as told by any frame it sends.
+     *
+     * @param wndw
+     */
+    void updateWindow(int wndw)
+    {
+        lock.lock();
+        try {
+            if (wndw - window > 0) {
+                window = wndw;
+                opened.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the sequence number of a frame being sent, with connection lock held.
+     *
+     * @param data whether the frame is a DATA one, which takes the next number
+     * @return
+     */
+    int nextSequence(boolean data)
+    {
+        if (data) {
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Get the window to advertise in a frame being sent, with connection lock held.
+     *
+     * @return
+     */
+    int advertise()
+    {
+        int a = taken.get() + SmpConnection.RECEIVE_WINDOW;
+        advertised = a;
+        return a;
+    }
+
+    /**
+     * Queue the packet of a DATA frame, on connection I/O thread.
+     *
+     * @param seq
+     * @param b
+     * @throws PacketRWException
+     */
+    void deliver(int seq, ByteBuffer b)
+            throws PacketRWException
+    {
+        if (seq != received + 1 || seq - advertised > 0) {
+            session.getBufferPool().release(b);
+            throw new PacketRWException("SMP session %d: DATA %d out of order or beyond window %d.", id, seq,
+                    advertised);
+        }
+        received = seq;
+
+        if ((b.get(PacketHeader.TYPE_POS) & 0xFF) == PacketHeader.Type.ATTENTION.getValue().intValue()) {
+            session.signalAttention();
+            connection.getWorkers().execute(session::cancelStatement);
+        }
+
+        boolean start = messageStart;
+        messageStart = (b.get(PacketHeader.STATUS_POS) & PacketHeader.StatusFlag.EOM.getValue()) != 0;
+        packets.add(b);
+        if (closed.get()) {
+            // closed meanwhile, by session thread
+            release();
+            return;
+        }
+
+        if (start && ready.getAndIncrement() == 0) {
+            connection.getWorkers().execute(this::serve);
+        }
+    }
+
+    /**
+     * Drop queued packets, and wake up session thread.
+     */
+    private void release()
+    {
+        PacketBufferPool pool = session.getBufferPool();
+        ByteBuffer b;
+        while ((b = packets.poll()) != null) {
+            if (b != CLOSED) {
+                pool.release(b);
+            }
+        }
+        packets.add(CLOSED);
+
+        lock.lock();
+        try {
+            opened.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handle dispatched messages one by one, on worker thread.
+     */
+    private void serve()
+    {
+        do {
+            try (PacketReader reader = new PacketReader(session)) {
+                connection.getHandler().handle(session, reader);
+            }
+            catch (Exception e) {
+                if (!closed.get()) {
+                    LOG.error("Failed to handle message, closing SMP session {}.", id, e);
+                    close();
+                }
+                return;
+            }
+        }
+        while (ready.decrementAndGet() > 0);
+    }
+}
@@ -2,25 +2,72 @@ package io.sot;
 
 import io.sot.lang.PacketHeader;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public class Socket
 {
     public Socket()
     {
     }
 
-    public byte[][] nextPacket()
+    /**
+     * Read next whole packet (header included) into a buffer acquired from session
+     * {@link io.sot.lang.PacketBufferPool}, with position 0 and limit at the packet length. The caller takes over the
+     * buffer and must release it.
+     *
+     * @return
+     * @throws IOException
+     */
+    public ByteBuffer read()
+            throws IOException
     {
         // TODO
         return null;
     }
 
-    public void writePacket(PacketHeader header, byte[] data)
+    /**
+     * Write whole packets (header included) in one gathering write, each buffer is written from its position to its
+     * limit, and must be fully consumed before return since callers reuse it.
+     *
+     * @param packets
+     */
+    public void write(ByteBuffer... packets)
+            throws IOException
     {
         // TODO
     }
 
     public void flush(PacketHeader header)
+            throws IOException
     {
         // TODO
     }
+
+    /**
+     * Check, without waiting, whether client has sent an attention while a response is being written, and signal it to
+     * session if so. Called by {@link io.sot.lang.PacketWriter} after each packet which is not the last of response.
+     *
+     * @throws IOException
+     * @see Session#signalAttention()
+     */
+    public void pollAttention()
+            throws IOException
+    {
+        // nothing to poll, transports which can receive an attention meanwhile override it
+    }
+
+    /**
+     * Encrypt the byte stream, packet headers included, with {@code tls} from next read and write on, or stop
+     * encrypting if null. It is called by the session thread at a message boundary, once the TLS handshake carried in
+     * PRELOGIN messages is finished.
+     *
+     * @param tls
+     * @throws IOException if this transport can not encrypt, so that the session never goes on in plaintext
+     */
+    public void setTls(TlsEngine tls)
+            throws IOException
+    {
+        throw new IOException(String.format("TLS is not supported by %s.", getClass().getSimpleName()));
+    }
 }
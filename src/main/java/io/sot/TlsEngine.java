@@ -0,0 +1,407 @@
+package io.sot;
+
+import io.sot.lang.PacketBufferPool;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketRWException;
+import io.sot.lang.PacketReader;
+import io.sot.lang.PacketWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * {@code TlsEngine} encrypts a session with TLS, on top of an {@link SSLEngine}.
+ * <p>
+ * TDS runs the TLS handshake inside PRELOGIN messages: once the server has answered PRELOGIN with encryption on, see
+ * {@link io.sot.message.PreLogin#respond()}, the session state is {@link Session.State#SSL_NEG}, and each following
+ * PRELOGIN message carries a flight of client handshake records, which {@link MessageDispatcher} passes to
+ * {@link #handshake(Session, PacketReader)}. The server flight is returned in
+ * PRELOGIN packets as well. Once the handshake is finished, the engine is set to the {@link Socket} of session, from
+ * then on the raw byte stream, packet headers included, is encrypted with {@link #wrap(ByteBuffer[], ByteBuffer)} and
+ * decrypted with {@link #unwrap(ByteBuffer)}, and the session state is {@link Session.State#LOGIN_READY}.
+ * <p>
+ * Network and application buffers are direct buffers acquired from the session {@link PacketBufferPool} for the life
+ * of the engine, and arrays given to {@code SSLEngine} are reused, so records are processed without allocating
+ * buffers. Transports unwrap straight into their own buffers whenever those have room for a whole record.
+ * <p>
+ * Sessions are resumed from the server session cache of {@link Session#getSslContext()}, whose size and timeout are
+ * set with its {@code getServerSessionContext()}, and from stateless session tickets, which JSSE issues unless
+ * {@code jdk.tls.server.enableSessionTicketExtension} is false. A resumed handshake skips certificate and key
+ * exchange, which is most of handshake CPU. Renegotiation is not supported, neither is TLS 1.3, whose messages after
+ * the client Finished do not fit the PRELOGIN exchange, which is what SQL Server does as well.
+ *
+ * @author user
+ */
+public class TlsEngine
+        implements Closeable
+{
+    private static final Logger LOG = LogManager.getLogger(TlsEngine.class);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final String TLS_13 = "TLSv1.3";
+
+    private final Session session;
+
+    private final SSLEngine engine;
+
+    private final PacketBufferPool pool;
+
+    /**
+     * Received records not yet decrypted.
+     */
+    private final ByteBuffer netIn;
+    /**
+     * Decrypted bytes not yet consumed.
+     */
+    private final ByteBuffer appIn;
+    /**
+     * Handshake output.
+     */
+    private final ByteBuffer netOut;
+
+    /**
+     * Reused argument arrays, unwrap and wrap may run on different threads.
+     */
+    private final ByteBuffer[] unwrapDst = new ByteBuffer[1];
+    private final ByteBuffer[] wrapSrc = {EMPTY};
+
+    private boolean established;
+
+    private boolean closed;
+
+    /**
+     * @param session
+     * @param context
+     */
+    public TlsEngine(Session session, SSLContext context)
+    {
+        this.session = session;
+        engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(Arrays.stream(engine.getEnabledProtocols())
+                .filter(p -> !TLS_13.equals(p))
+                .toArray(String[]::new));
+        pool = session.getBufferPool();
+
+        netIn = pool.acquire(getPacketBufferSize());
+        appIn = pool.acquire(getApplicationBufferSize()).flip();
+        netOut = pool.acquire(getPacketBufferSize());
+    }
+
+    /**
+     * Process a PRELOGIN message of TLS negotiation, creating the engine of session at the first one, and answer with
+     * server handshake records, if any.
+     *
+     * @param session
+     * @param reader  reader of the PRELOGIN message
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public static void handshake(Session session, PacketReader reader)
+            throws PacketRWException, IOException
+    {
+        TlsEngine tls = session.getTls();
+        if (tls == null) {
+            if (session.getSslContext() == null) {
+                throw new PacketRWException("TLS negotiation requested, but no SSL context is configured.");
+            }
+            tls = new TlsEngine(session, session.getSslContext());
+            session.setTls(tls);
+            tls.engine.beginHandshake();
+        }
+        try {
+            tls.handshake(reader);
+        }
+        catch (PacketRWException | IOException | RuntimeException e) {
+            if (!tls.established) {
+                session.setTls(null);
+                tls.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get the size of network buffer which can hold any record.
+     *
+     * @return
+     */
+    public int getPacketBufferSize()
+    {
+        return engine.getSession().getPacketBufferSize();
+    }
+
+    /**
+     * Get the size of application buffer which can hold the content of any record.
+     *
+     * @return
+     */
+    public int getApplicationBufferSize()
+    {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    public boolean isEstablished()
+    {
+        return established;
+    }
+
+    /**
+     * Get the buffer which received records are to be read into, it is in write mode.
+     *
+     * @return
+     */
+    public ByteBuffer getNetIn()
+    {
+        return netIn;
+    }
+
+    /**
+     * Whether input is held already, decrypted or still in received records, which {@link #unwrap(ByteBuffer)} returns
+     * without the channel being readable, e.g. an attention sent in the same record as the previous packet.
+     *
+     * @return
+     */
+    public boolean hasBufferedInput()
+    {
+        return appIn.hasRemaining() || netIn.position() > 0;
+    }
+
+    /**
+     * Read records from {@code channel} into {@link #getNetIn()}, as many as there is room for.
+     *
+     * @param channel
+     * @return number of bytes read, -1 at end of stream
+     * @throws IOException
+     */
+    public int read(ReadableByteChannel channel)
+            throws IOException
+    {
+        return channel.read(netIn);
+    }
+
+    /**
+     * Decrypt received records into {@code dst}, as much as it takes. Decrypted bytes which do not fit are kept and
+     * returned by next call, records are decrypted straight into {@code dst} while it has room for a whole record.
+     *
+     * @param dst
+     * @return number of bytes put into {@code dst}
+     * @throws IOException
+     */
+    public int unwrap(ByteBuffer dst)
+            throws IOException
+    {
+        int start = dst.position();
+        int appSize = getApplicationBufferSize();
+        while (dst.hasRemaining()) {
+            if (appIn.hasRemaining()) {
+                int n = Math.min(appIn.remaining(), dst.remaining());
+                dst.put(dst.position(), appIn, appIn.position(), n);
+                dst.position(dst.position() + n);
+                appIn.position(appIn.position() + n);
+                continue;
+            }
+            if (netIn.position() == 0) {
+                break;
+            }
+
+            netIn.flip();
+            SSLEngineResult r;
+            try {
+                if (dst.remaining() >= appSize) {
+                    r = unwrapRecord(dst);
+                }
+                else {
+                    appIn.clear();
+                    r = unwrapRecord(appIn);
+                    appIn.flip();
+                }
+            }
+            finally {
+                netIn.compact();
+            }
+
+            if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS connection closed by client.");
+            }
+            if (r.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                    && r.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED) {
+                throw new SSLException("TLS renegotiation is not supported.");
+            }
+            if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                // wait for the rest of record
+                break;
+            }
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Encrypt bytes of {@code src} into {@code dst}, until either all bytes are consumed or {@code dst} has no room for
+     * another record.
+     *
+     * @param src
+     * @param dst buffer of at least {@link #getPacketBufferSize()} bytes
+     * @throws IOException
+     */
+    public void wrap(ByteBuffer[] src, ByteBuffer dst)
+            throws IOException
+    {
+        int packetSize = getPacketBufferSize();
+        while (hasRemaining(src) && dst.remaining() >= packetSize) {
+            SSLEngineResult r = engine.wrap(src, dst);
+            if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection is closed.");
+            }
+        }
+    }
+
+    /**
+     * Release buffers, this engine must not be used any more.
+     */
+    @Override
+    public void close()
+    {
+        if (!closed) {
+            closed = true;
+            engine.closeOutbound();
+            pool.release(netIn);
+            pool.release(appIn);
+            pool.release(netOut);
+        }
+    }
+
+    /**
+     * Feed the TLS payload of PRELOGIN message to engine, and send its output in PRELOGIN packets.
+     *
+     * @param reader
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void handshake(PacketReader reader)
+            throws PacketRWException, IOException
+    {
+        if (established) {
+            throw new PacketRWException("Unexpected PRELOGIN message, TLS handshake is finished.");
+        }
+
+        PacketWriter[] writer = new PacketWriter[1];
+        try {
+            reader.read(in -> {
+                while (in.read(netIn) > 0) {
+                    step(writer);
+                }
+            });
+            if (writer[0] != null) {
+                writer[0].flush();
+            }
+        }
+        finally {
+            if (writer[0] != null) {
+                writer[0].close();
+            }
+        }
+
+        if (established) {
+            // from now on the whole stream is encrypted
+            session.getSocket().setTls(this);
+            session.setState(Session.State.LOGIN_READY);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("TLS established, {} {}.", engine.getSession().getProtocol(),
+                        engine.getSession().getCipherSuite());
+            }
+        }
+    }
+
+    /**
+     * Run handshake until engine needs more input or is done.
+     *
+     * @param writer writer of PRELOGIN response, created at first output
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void step(PacketWriter[] writer)
+            throws PacketRWException, IOException
+    {
+        netIn.flip();
+        try {
+            while (true) {
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                switch (hs) {
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        appIn.clear();
+                        SSLEngineResult r = unwrapRecord(appIn);
+                        appIn.flip();
+                        if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            return;
+                        }
+                        if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("TLS handshake aborted by client.");
+                        }
+                        break;
+                    case NEED_WRAP:
+                        netOut.clear();
+                        engine.wrap(wrapSrc, netOut);
+                        if (writer[0] == null) {
+                            writer[0] = new PacketWriter(session, PacketHeader.response(PacketHeader.Type.PRE_LOGIN));
+                        }
+                        writer[0].write(out -> out.write(netOut.flip()));
+                        break;
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+                    default:
+                        established = true;
+                        return;
+                }
+            }
+        }
+        finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Decrypt from {@link #netIn}, which is in read mode, into {@code dst}.
+     *
+     * @param dst
+     * @return
+     * @throws SSLException
+     */
+    private SSLEngineResult unwrapRecord(ByteBuffer dst)
+            throws SSLException
+    {
+        unwrapDst[0] = dst;
+        try {
+            return engine.unwrap(netIn, unwrapDst);
+        }
+        finally {
+            unwrapDst[0] = null;
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] src)
+    {
+        for (ByteBuffer b : src) {
+            if (b.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -15,6 +15,11 @@ public class Collation
 {
     public static byte LENGTH = 5;
 
+    /**
+     * {@code Latin1_General_100_CI_AS_SC_UTF8}, the collation of VARCHAR and CHAR values sent UTF-8 encoded.
+     */
+    public static final Collation UTF8 = new Collation(LCID.English, true, false, true, true, true, (byte) 2);
+
     protected LCID lcid;
     protected boolean ignoreCase;
     protected boolean ignoreAccent;
@@ -30,6 +35,21 @@ public class Collation
     {
     }
 
+    /**
+     * Create a Windows collation, which has no SQL sort id.
+     */
+    private Collation(LCID lcid, boolean ignoreCase, boolean ignoreAccent, boolean ignoreWidth, boolean ignoreKana,
+            boolean utf8, byte version)
+    {
+        this.lcid = lcid;
+        this.ignoreCase = ignoreCase;
+        this.ignoreAccent = ignoreAccent;
+        this.ignoreWidth = ignoreWidth;
+        this.ignoreKana = ignoreKana;
+        this.utf8 = utf8;
+        this.version = version;
+    }
+
     public LCID getLcid()
     {
         return lcid;
@@ -140,12 +160,13 @@ public class Collation
         flags |= (this.binary ? 0x10 : 0x00);
         flags |= (this.binary2 ? 0x20 : 0x00);
         flags |= (this.utf8 ? 0x40 : 0x00);
-        flags |= (this.version << 7);
+        flags |= (this.version << 8);
 
         byte[] b = new byte[5];
         int i = (int) this.lcid.getCode().longValue() | (flags << 20);
         System.arraycopy(PacketDataOutput.toBytes(i), 0, b, 0, 4);
-        b[4] = this.sortId.getValue().x;
+        // 0 for Windows collations
+        b[4] = this.sortId == null ? 0 : this.sortId.getValue().x;
 
         return b;
     }
@@ -158,16 +179,17 @@ public class Collation
 
         this.lcid = LCID.valueOf(new GenDWord(value & 0x000FFFFF));
         int flags = (value >> 20) & 0xFFF;
-        this.ignoreCase = ((flags & 0x01) == 1);
-        this.ignoreAccent = ((flags & 0x02) == 1);
-        this.ignoreWidth = ((flags & 0x04) == 1);
-        this.ignoreKana = ((flags & 0x08) == 1);
-        this.binary = ((flags & 0x10) == 1);
-        this.binary2 = ((flags & 0x20) == 1);
-        this.utf8 = ((flags & 0x40) == 1);
-        this.version = (byte) (flags & 0x0780);
-
-        this.sortId = SortId.valueOf(in.readGenUByte());
+        this.ignoreCase = ((flags & 0x01) != 0);
+        this.ignoreAccent = ((flags & 0x02) != 0);
+        this.ignoreWidth = ((flags & 0x04) != 0);
+        this.ignoreKana = ((flags & 0x08) != 0);
+        this.binary = ((flags & 0x10) != 0);
+        this.binary2 = ((flags & 0x20) != 0);
+        this.utf8 = ((flags & 0x40) != 0);
+        this.version = (byte) ((flags >> 8) & 0x0F);
+
+        GenUByte sid = in.readGenUByte();
+        this.sortId = sid.intValue() == 0 ? null : SortId.valueOf(sid);
     }
 
     @Override
@@ -0,0 +1,237 @@
+package io.sot.lang;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+
+/**
+ * {@code DateTimeCodec} converts {@code java.time} values to and from the integers which TDS stores for dates and
+ * times, by epoch-day and nanos-of-day arithmetic, see <a href=
+ * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/786f5b8a-f87d-4980-9070-b9b7274c681d">Dates and
+ * Times</a>.
+ * <ul>
+ * <li>{@code date}, and the date part of {@code datetime2} and {@code datetimeoffset}: 3 bytes, days since
+ * 0001-01-01.</li>
+ * <li>{@code time}, and the time part of {@code datetime2} and {@code datetimeoffset}: 3 to 5 bytes by scale, 10^-scale
+ * seconds since midnight.</li>
+ * <li>{@code datetime}: 4 bytes days since 1900-01-01, signed, and 4 bytes 1/300 seconds since midnight.</li>
+ * <li>{@code smalldatetime}: 2 bytes days since 1900-01-01 and 2 bytes minutes since midnight, both unsigned.</li>
+ * </ul>
+ * Fractional seconds beyond the scale of {@code time}, {@code datetime2} and {@code datetimeoffset} are truncated,
+ * {@code datetime} and {@code smalldatetime} values are rounded to their precision as SQL Server does, possibly to the
+ * next day.
+ *
+ * @author user
+ */
+public final class DateTimeCodec
+{
+    /**
+     * Days from 0001-01-01 to 1970-01-01.
+     */
+    public static final int DAYS_0001_TO_EPOCH = 719162;
+
+    /**
+     * Days from 1900-01-01 to 1970-01-01.
+     */
+    public static final int DAYS_1900_TO_EPOCH = 25567;
+
+    /**
+     * Number of 1/300 seconds in a day.
+     */
+    public static final int DATETIME_TICKS_PER_DAY = 300 * 86400;
+
+    private static final long NANOS_PER_DAY = 86400L * 1000000000L;
+
+    private static final long NANOS_PER_MINUTE = 60L * 1000000000L;
+
+    /**
+     * Nanoseconds per unit of {@code time} at each scale.
+     */
+    private static final long[] NANOS_PER_TICK = {1000000000L, 100000000L, 10000000L, 1000000L, 100000L, 10000L, 1000L,
+            100L};
+
+    private DateTimeCodec()
+    {
+    }
+
+    /**
+     * Get days since 0001-01-01 of {@code x}.
+     *
+     * @param x
+     * @return
+     */
+    public static int getDays(LocalDate x)
+    {
+        return (int) (x.toEpochDay() + DAYS_0001_TO_EPOCH);
+    }
+
+    /**
+     * Get the date {@code days} after 0001-01-01.
+     *
+     * @param days
+     * @return
+     */
+    public static LocalDate getLocalDate(int days)
+    {
+        return LocalDate.ofEpochDay(days - DAYS_0001_TO_EPOCH);
+    }
+
+    /**
+     * Get the length of {@code time} at {@code scale}.
+     *
+     * @param scale
+     * @return 3, 4 or 5
+     * @throws PacketRWException if scale is beyond 7
+     */
+    public static int getTimeLength(int scale)
+            throws PacketRWException
+    {
+        checkScale(scale);
+        return scale <= 2 ? 3 : scale <= 4 ? 4 : 5;
+    }
+
+    /**
+     * Get {@code nanoOfDay} in 10^-{@code scale} seconds, truncated.
+     *
+     * @param nanoOfDay
+     * @param scale
+     * @return
+     * @throws PacketRWException if scale is beyond 7
+     */
+    public static long getTime(long nanoOfDay, int scale)
+            throws PacketRWException
+    {
+        checkScale(scale);
+        return nanoOfDay / NANOS_PER_TICK[scale];
+    }
+
+    /**
+     * Get the time of {@code time} 10^-{@code scale} seconds since midnight.
+     *
+     * @param time
+     * @param scale
+     * @return
+     * @throws PacketRWException if it is not within a day, or scale is beyond 7, e.g. in a TYPE_INFO sent by client
+     */
+    public static LocalTime getLocalTime(long time, int scale)
+            throws PacketRWException
+    {
+        checkScale(scale);
+        long nanoOfDay = time * NANOS_PER_TICK[scale];
+        if (time < 0 || nanoOfDay >= NANOS_PER_DAY) {
+            throw new PacketRWException("Time %d at scale %d is not within a day.", time, scale);
+        }
+        return LocalTime.ofNanoOfDay(nanoOfDay);
+    }
+
+    /**
+     * Get {@code x} as {@code datetime}, rounded to 1/300 seconds.
+     *
+     * @param x
+     * @return days since 1900-01-01 in high 32 bits, 1/300 seconds since midnight in low 32 bits
+     */
+    public static long getDateTime(LocalDateTime x)
+    {
+        return getDateTime(x.toLocalDate().toEpochDay(), x.toLocalTime().toNanoOfDay());
+    }
+
+    /**
+     * Get {@code epochDay} at {@code nanoOfDay} as {@code datetime}, rounded to 1/300 seconds.
+     *
+     * @param epochDay
+     * @param nanoOfDay
+     * @return days since 1900-01-01 in high 32 bits, 1/300 seconds since midnight in low 32 bits
+     */
+    public static long getDateTime(long epochDay, long nanoOfDay)
+    {
+        long days = epochDay + DAYS_1900_TO_EPOCH;
+        long ticks = (nanoOfDay * 3 + 5000000) / 10000000;
+        if (ticks == DATETIME_TICKS_PER_DAY) {
+            days++;
+            ticks = 0;
+        }
+        return (days << 32) | ticks;
+    }
+
+    /**
+     * Get the date and time of {@code datetime}.
+     *
+     * @param days days since 1900-01-01
+     * @param ticks 1/300 seconds since midnight
+     * @return
+     * @throws PacketRWException if ticks are not within a day
+     */
+    public static LocalDateTime getLocalDateTime(int days, int ticks)
+            throws PacketRWException
+    {
+        if (ticks < 0 || ticks >= DATETIME_TICKS_PER_DAY) {
+            throw new PacketRWException("Datetime ticks %d are not within a day.", ticks);
+        }
+        return LocalDateTime.of(LocalDate.ofEpochDay((long) days - DAYS_1900_TO_EPOCH),
+                LocalTime.ofNanoOfDay((ticks * 10000000L + 1) / 3));
+    }
+
+    /**
+     * Get {@code x} as {@code smalldatetime}, rounded to the minute.
+     *
+     * @param x
+     * @return days since 1900-01-01 in high 16 bits, minutes since midnight in low 16 bits
+     * @throws PacketRWException if it is out of {@code smalldatetime} range
+     */
+    public static int getSmallDateTime(LocalDateTime x)
+            throws PacketRWException
+    {
+        return getSmallDateTime(x.toLocalDate().toEpochDay(), x.toLocalTime().toNanoOfDay());
+    }
+
+    /**
+     * Get {@code epochDay} at {@code nanoOfDay} as {@code smalldatetime}, rounded to the minute.
+     *
+     * @param epochDay
+     * @param nanoOfDay
+     * @return days since 1900-01-01 in high 16 bits, minutes since midnight in low 16 bits
+     * @throws PacketRWException if it is out of {@code smalldatetime} range
+     */
+    public static int getSmallDateTime(long epochDay, long nanoOfDay)
+            throws PacketRWException
+    {
+        long days = epochDay + DAYS_1900_TO_EPOCH;
+        long minutes = (nanoOfDay + NANOS_PER_MINUTE / 2) / NANOS_PER_MINUTE;
+        if (minutes == 1440) {
+            days++;
+            minutes = 0;
+        }
+        if (days < 0 || days > 0xFFFF) {
+            throw new PacketRWException("%s is out of smalldatetime range.",
+                    LocalDateTime.of(LocalDate.ofEpochDay(epochDay), LocalTime.ofNanoOfDay(nanoOfDay)));
+        }
+        return (int) ((days << 16) | minutes);
+    }
+
+    /**
+     * Get the date and time of {@code smalldatetime}.
+     *
+     * @param days unsigned days since 1900-01-01
+     * @param minutes unsigned minutes since midnight
+     * @return
+     * @throws PacketRWException if minutes are not within a day
+     */
+    public static LocalDateTime getSmallLocalDateTime(int days, int minutes)
+            throws PacketRWException
+    {
+        int m = minutes & 0xFFFF;
+        if (m >= 1440) {
+            throw new PacketRWException("Smalldatetime minutes %d are not within a day.", m);
+        }
+        return LocalDateTime.of(LocalDate.ofEpochDay((long) (days & 0xFFFF) - DAYS_1900_TO_EPOCH),
+                LocalTime.ofNanoOfDay(m * NANOS_PER_MINUTE));
+    }
+
+    private static void checkScale(int scale)
+            throws PacketRWException
+    {
+        if (scale < 0 || scale > 7) {
+            throw new PacketRWException("Invalid time scale %d.", scale);
+        }
+    }
+}
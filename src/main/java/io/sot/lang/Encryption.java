@@ -1,8 +1,5 @@
 package io.sot.lang;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Defined in <a href=
  * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/60f56408-0188-4cd5-8b90-25c6f2423868">PRELOGIN</a>
@@ -32,18 +29,34 @@ public enum Encryption
         return this.value;
     }
 
-    private static final Map<GenUByte, Encryption> m = new HashMap<>();
+    /**
+     * Values indexed by unsigned byte value.
+     */
+    private static final Encryption[] BY_VALUE = new Encryption[256];
 
     static {
         for (Encryption e : Encryption.values()) {
-            m.put(e.value, e);
+            BY_VALUE[e.value.intValue()] = e;
         }
     }
 
     public static Encryption valueOf(GenUByte value)
             throws EnumValueLookupException
     {
-        Encryption e = m.get(value);
+        return valueOf(value.intValue());
+    }
+
+    /**
+     * Get encryption of unsigned byte {@code value}.
+     *
+     * @param value
+     * @return
+     * @throws EnumValueLookupException
+     */
+    public static Encryption valueOf(int value)
+            throws EnumValueLookupException
+    {
+        Encryption e = (value & ~0xFF) == 0 ? BY_VALUE[value] : null;
         if (e == null) {
             throw new EnumValueLookupException(Encryption.class, value);
         }
@@ -0,0 +1,318 @@
+package io.sot.lang;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * {@code MessageStore} holds the payloads of one inbound message as a chain of segments, addressed by message offset.
+ * <p>
+ * Payloads are kept in their packet buffers as long as they fit into the session memory budget, the buffers are returned
+ * to the {@link PacketBufferPool} when this store is closed. Once the budget is used up, following payloads are copied
+ * to a temporary file and their packet buffers are returned at once. The file is memory-mapped chunk by chunk, so a
+ * message of hundreds of MB only costs page cache rather than memory. Spilled segments are slices of the mapped
+ * chunks, and are read the same way as in-memory segments.
+ * <p>
+ * A message which already lives in a buffer, on heap, direct or mapped, is added with {@link #wrap(ByteBuffer)}
+ * without copying.
+ * <p>
+ * All segments are little-endian, as TDS data is.
+ *
+ * @author user
+ * @see PacketDataInput
+ */
+public class MessageStore
+        implements Closeable
+{
+    private static final Logger LOG = LogManager.getLogger(MessageStore.class);
+
+    /**
+     * Size of each memory-mapped region of the spill file.
+     */
+    static final int MAP_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Max in-memory bytes to hold before spilling.
+     */
+    private final long budget;
+
+    private final PacketBufferPool pool;
+
+    private ByteBuffer[] segments;
+    /**
+     * Message offset of the first byte of each segment.
+     */
+    private int[] offsets;
+    private int count;
+    private int size;
+    private long memorySize;
+    /**
+     * Packet buffers backing in-memory segments, to be released to {@link #pool}.
+     */
+    private ByteBuffer[] packets;
+    private int packetCount;
+
+    private Path spillPath;
+    private FileChannel spill;
+    private MappedByteBuffer chunk;
+    /**
+     * Bytes of spill file mapped so far.
+     */
+    private long mapped;
+
+    public MessageStore(long budget)
+    {
+        this(budget, null);
+    }
+
+    /**
+     * @param budget
+     * @param pool   pool of appended packet buffers
+     */
+    public MessageStore(long budget, PacketBufferPool pool)
+    {
+        this.budget = budget;
+        this.pool = pool;
+        this.segments = new ByteBuffer[4];
+        this.offsets = new int[4];
+        this.packets = new ByteBuffer[4];
+    }
+
+    /**
+     * Get the number of bytes stored.
+     *
+     * @return
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Whether part of this message has been spilled to file.
+     *
+     * @return
+     */
+    public boolean isSpilled()
+    {
+        return spill != null;
+    }
+
+    /**
+     * Append payload {@code b} of next packet.
+     *
+     * @param b
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public void append(byte[] b)
+            throws PacketRWException, IOException
+    {
+        checkSize(b.length);
+
+        if (spill == null && memorySize + b.length <= budget) {
+            memorySize += b.length;
+            add(ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        else {
+            spill(ByteBuffer.wrap(b));
+        }
+    }
+
+    /**
+     * Append payload of next packet, i.e. bytes of {@code packet} from its position to its limit. {@code packet} is
+     * taken over by this store, and released to pool once no longer needed.
+     *
+     * @param packet packet buffer acquired from pool
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public void append(ByteBuffer packet)
+            throws PacketRWException, IOException
+    {
+        try {
+            checkSize(packet.remaining());
+        }
+        catch (PacketRWException e) {
+            release(packet);
+            throw e;
+        }
+
+        if (spill == null && memorySize + packet.capacity() <= budget) {
+            memorySize += packet.capacity();
+            if (packetCount == packets.length) {
+                packets = Arrays.copyOf(packets, packetCount * 2);
+            }
+            packets[packetCount++] = packet;
+            add(packet.slice().order(ByteOrder.LITTLE_ENDIAN));
+        }
+        else {
+            try {
+                spill(packet);
+            }
+            finally {
+                release(packet);
+            }
+        }
+    }
+
+    /**
+     * Append bytes of {@code b} from its position to its limit as a segment, without copying. {@code b} is neither
+     * counted into the memory budget nor released, it remains owned by the caller and must not be changed while this
+     * store is in use.
+     *
+     * @param b heap, direct or mapped buffer
+     * @throws PacketRWException
+     */
+    public void wrap(ByteBuffer b)
+            throws PacketRWException
+    {
+        checkSize(b.remaining());
+        add(b.slice().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * Get the segment at {@code index}, positions of the returned buffer are relative to {@link #offset(int)}.
+     *
+     * @param index
+     * @return
+     */
+    ByteBuffer segment(int index)
+    {
+        return segments[index];
+    }
+
+    /**
+     * Get the message offset of the segment at {@code index}.
+     *
+     * @param index
+     * @return
+     */
+    int offset(int index)
+    {
+        return offsets[index];
+    }
+
+    /**
+     * Find the index of the segment which contains message offset {@code pos}, {@code pos} must be less than
+     * {@link #size()}.
+     *
+     * @param pos
+     * @return
+     */
+    int locate(int pos)
+    {
+        // last segment starting at or before pos, empty segments are skipped since they share offset with the next one
+        int lo = 0, hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= pos) {
+                lo = mid;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Release segments and delete spill file, if any.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        Arrays.fill(segments, 0, count, null);
+        for (int i = 0; i < packetCount; i++) {
+            release(packets[i]);
+            packets[i] = null;
+        }
+        packetCount = 0;
+        count = 0;
+        size = 0;
+        memorySize = 0;
+        chunk = null;
+        mapped = 0;
+
+        if (spill != null) {
+            try {
+                spill.close();
+            }
+            finally {
+                spill = null;
+                Files.deleteIfExists(spillPath);
+            }
+        }
+    }
+
+    private void add(ByteBuffer bb)
+    {
+        if (count == segments.length) {
+            segments = Arrays.copyOf(segments, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        segments[count] = bb;
+        offsets[count] = size;
+        count++;
+        size += bb.remaining();
+    }
+
+    private void checkSize(int length)
+            throws PacketRWException
+    {
+        if ((long) size + length > Integer.MAX_VALUE) {
+            throw new PacketRWException("Message size %d is greater than %d.", (long) size + length,
+                    Integer.MAX_VALUE);
+        }
+    }
+
+    private void release(ByteBuffer packet)
+    {
+        if (pool != null) {
+            pool.release(packet);
+        }
+    }
+
+    private void spill(ByteBuffer b)
+            throws IOException
+    {
+        if (spill == null) {
+            spillPath = Files.createTempFile("sot-msg-", ".spill");
+            spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Message exceeds memory budget %d after %d bytes, spill to %s.", budget, size,
+                        spillPath));
+            }
+        }
+
+        // a payload crossing chunk boundary is split into two segments
+        while (b.hasRemaining()) {
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = spill.map(FileChannel.MapMode.READ_WRITE, mapped, MAP_CHUNK_SIZE);
+                mapped += MAP_CHUNK_SIZE;
+            }
+
+            int n = Math.min(b.remaining(), chunk.remaining());
+            int pos = chunk.position();
+            chunk.put(pos, b, b.position(), n);
+            chunk.position(pos + n);
+            b.position(b.position() + n);
+            add(chunk.slice(pos, n).order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package io.sot.lang;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code PacketBufferPool} recycles direct packet buffers between packet readers and writers, keyed by packet size.
+ * <p>
+ * Buffers of each size are kept in a lock-free array of slots, a thread starts scanning from a slot picked by its id so
+ * that concurrent threads mostly touch different slots. Acquired buffers are not cleared, callers must only read bytes
+ * they have written. A buffer released to a full pool is dropped and left to GC.
+ * <p>
+ * Hits, misses and outstanding buffers are counted so that the pool can be sized under load.
+ *
+ * @author user
+ * @see PacketReader
+ * @see PacketWriter
+ */
+public class PacketBufferPool
+{
+    /**
+     * Default max number of pooled buffers per packet size.
+     */
+    public static final int DEFAULT_CAPACITY = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Pool shared by sessions which are not given their own one.
+     */
+    public static final PacketBufferPool SHARED = new PacketBufferPool(DEFAULT_CAPACITY);
+
+    private final int capacity;
+
+    private final ConcurrentMap<Integer, Slots> slots = new ConcurrentHashMap<>();
+    /**
+     * Slots of the last used packet size, saves map lookup since nearly all packets of a server share one size.
+     */
+    private volatile Slots last;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder outstanding = new LongAdder();
+
+    /**
+     * @param capacity max number of pooled buffers per packet size
+     */
+    public PacketBufferPool(int capacity)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Pool capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get a buffer with capacity {@code size}, position 0 and limit {@code size}. Its content is undefined.
+     *
+     * @param size packet size, including header
+     * @return
+     */
+    public ByteBuffer acquire(int size)
+    {
+        Slots a = slots(size);
+        int start = stripe();
+        for (int i = 0; i < capacity; i++) {
+            ByteBuffer b = a.getAndSet((start + i) % capacity, null);
+            if (b != null) {
+                hits.increment();
+                outstanding.increment();
+                return b.clear();
+            }
+        }
+
+        misses.increment();
+        outstanding.increment();
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Return buffer {@code b} acquired from this pool, it must not be used by caller any more.
+     *
+     * @param b
+     */
+    public void release(ByteBuffer b)
+    {
+        outstanding.decrement();
+
+        Slots a = slots(b.capacity());
+        int start = stripe();
+        for (int i = 0; i < capacity; i++) {
+            if (a.compareAndSet((start + i) % capacity, null, b)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the number of acquisitions served by a pooled buffer.
+     *
+     * @return
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of acquisitions which had to allocate a new buffer.
+     *
+     * @return
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of buffers acquired and not yet released.
+     *
+     * @return
+     */
+    public long getOutstanding()
+    {
+        return outstanding.sum();
+    }
+
+    /**
+     * Get the number of buffers currently held by this pool, for all packet sizes.
+     *
+     * @return
+     */
+    public int getPooled()
+    {
+        int n = 0;
+        for (Slots a : slots.values()) {
+            for (int i = 0; i < capacity; i++) {
+                if (a.get(i) != null) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    private Slots slots(int size)
+    {
+        Slots a = last;
+        if (a == null || a.size != size) {
+            a = slots.computeIfAbsent(size, k -> new Slots(k, capacity));
+            last = a;
+        }
+        return a;
+    }
+
+    private int stripe()
+    {
+        return (int) (Thread.currentThread().getId() % capacity);
+    }
+
+    @SuppressWarnings("serial")
+    private static class Slots
+            extends AtomicReferenceArray<ByteBuffer>
+    {
+        private final int size;
+
+        private Slots(int size, int capacity)
+        {
+            super(capacity);
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package io.sot.lang;
+
+import io.sot.Session;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * {@code PacketCapture} records raw inbound and outbound packets to binary capture files, cheaply enough to be turned on
+ * under production load.
+ * <p>
+ * {@link PacketReader} and {@link PacketWriter} hand each packet to {@link #capture(Session, int, ByteBuffer)} on the
+ * I/O path, which costs one volatile read while disabled. Once enabled, a packet of a selected session is copied with
+ * its timestamp, session id and direction into a lock-free ring buffer: writers claim space with a CAS and commit the
+ * record by publishing its length, and nothing blocks. A record which does not fit because the ring is full is dropped
+ * and counted. The "sot-capture" thread drains committed records straight from the ring to a capture file, and starts
+ * a new file once it reaches {@link #maxFileSize}, keeping the last {@link #maxFiles} ones.
+ * <p>
+ * Sessions are selected by {@link #setFilter(Predicate)} and sampled by {@link #setSampleRate(double)}. Sampling is
+ * decided by session id, so a sampled session is captured as a whole conversation.
+ * <p>
+ * A capture file starts with {@link #MAGIC} and {@link #VERSION}, followed by records, all little-endian:
+ * <pre>
+ *  0  int  record length, including this header
+ *  4  int  direction, {@link #IN} or {@link #OUT}
+ *  8  long timestamp, nanoseconds since epoch
+ * 16  int  session id
+ * 20  int  reserved
+ * 24       packet, header and payload
+ * </pre>
+ * Records are padded to 8 bytes, the next record starts at offset {@code (length + 7) & ~7}.
+ *
+ * @author user
+ * @see PacketCaptureReader
+ * @see PacketReader
+ * @see PacketWriter
+ */
+public class PacketCapture
+        implements Closeable, Runnable
+{
+    private static final Logger LOG = LogManager.getLogger(PacketCapture.class);
+
+    /**
+     * First bytes of a capture file, "SOTCAP" followed by the format version.
+     */
+    public static final long MAGIC = 0x0000_5041_4354_4F53L;
+
+    public static final short VERSION = 1;
+
+    /**
+     * Length of file header.
+     */
+    public static final int FILE_HEADER_LENGTH = 8;
+
+    /**
+     * Length of record header.
+     */
+    public static final int RECORD_HEADER_LENGTH = 24;
+
+    /**
+     * Inbound packet, read from client.
+     */
+    public static final int IN = 1;
+
+    /**
+     * Outbound packet, written to client.
+     */
+    public static final int OUT = 2;
+
+    /**
+     * Filler up to the end of ring, never written to file.
+     */
+    private static final int PADDING = -1;
+
+    public static final int DEFAULT_RING_SIZE = 16 * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 256L * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_FILES = 8;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long EPOCH_OFFSET = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis())
+            - System.nanoTime();
+
+    /**
+     * Max wait of the drain thread while the ring is empty.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path directory;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private final ByteBuffer ring;
+
+    private final int mask;
+
+    /**
+     * Ring position up to which space has been claimed by writers.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Ring position up to which records have been drained, only advanced by drain thread.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    private final ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+
+    private final LongAdder captured = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean enabled;
+
+    private volatile Predicate<Session> filter = s -> true;
+
+    /**
+     * Sampled sessions out of 65536.
+     */
+    private volatile int sampleThreshold = 1 << 16;
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    private final Deque<Path> files = new ArrayDeque<>();
+    private FileChannel out;
+    private long fileSize;
+    private int fileSeq;
+
+    public PacketCapture(Path directory)
+    {
+        this(directory, DEFAULT_RING_SIZE, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param directory   where capture files are written
+     * @param ringSize    size of ring buffer, a power of 2
+     * @param maxFileSize size of a capture file at which the next one is started
+     * @param maxFiles    number of capture files to keep
+     */
+    public PacketCapture(Path directory, int ringSize, long maxFileSize, int maxFiles)
+    {
+        if (ringSize < 64 * 1024 || Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of 2 of at least 64 KB: " + ringSize);
+        }
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("Max files must be positive: " + maxFiles);
+        }
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        ring = ByteBuffer.allocateDirect(ringSize).order(ByteOrder.LITTLE_ENDIAN);
+        mask = ringSize - 1;
+    }
+
+    /**
+     * Start drain thread, packets are captured once {@link #setEnabled(boolean) enabled}.
+     *
+     * @throws IOException
+     */
+    public void start()
+            throws IOException
+    {
+        Files.createDirectories(directory);
+        rotate();
+
+        running = true;
+        thread = new Thread(this, "sot-capture");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Turn capturing on or off, takes effect for the next packet.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Capture only sessions accepted by {@code filter}, e.g. by client address. It is tested for every packet, so it
+     * should be cheap.
+     *
+     * @param filter
+     */
+    public void setFilter(Predicate<Session> filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * Capture only the given ratio of sessions.
+     *
+     * @param rate between 0 and 1
+     */
+    public void setSampleRate(double rate)
+    {
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + rate);
+        }
+        sampleThreshold = (int) Math.round(rate * (1 << 16));
+    }
+
+    /**
+     * Get the number of packets captured.
+     *
+     * @return
+     */
+    public long getCaptured()
+    {
+        return captured.sum();
+    }
+
+    /**
+     * Get the number of packets dropped because the ring buffer was full.
+     *
+     * @return
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Copy {@code packet} from 0 to its limit into the ring buffer, if capturing is enabled and {@code session} is
+     * selected. Never blocks, the packet is dropped if there is no room.
+     *
+     * @param session
+     * @param direction {@link #IN} or {@link #OUT}
+     * @param packet
+     */
+    public void capture(Session session, int direction, ByteBuffer packet)
+    {
+        if (!enabled || !sampled(session.getId()) || !filter.test(session)) {
+            return;
+        }
+
+        int length = RECORD_HEADER_LENGTH + packet.limit();
+        int aligned = align(length);
+        int capacity = mask + 1;
+        if (aligned > capacity / 2) {
+            dropped.increment();
+            return;
+        }
+
+        long t;
+        int index;
+        int padding;
+        do {
+            t = tail.get();
+            index = (int) (t & mask);
+            // a record never wraps, the rest of ring is filled with padding instead
+            padding = aligned <= capacity - index ? 0 : capacity - index;
+            if (t + padding + aligned - head.get() > capacity) {
+                dropped.increment();
+                return;
+            }
+        }
+        while (!tail.compareAndSet(t, t + padding + aligned));
+
+        if (padding > 0) {
+            ring.putInt(index + 4, PADDING);
+            INT.setRelease(ring, index, padding);
+            index = 0;
+        }
+        ring.putInt(index + 4, direction);
+        ring.putLong(index + 8, EPOCH_OFFSET + System.nanoTime());
+        ring.putInt(index + 16, session.getId());
+        ring.putInt(index + 20, 0);
+        ring.put(index + RECORD_HEADER_LENGTH, packet, 0, packet.limit());
+        // commit
+        INT.setRelease(ring, index, length);
+        captured.increment();
+    }
+
+    /**
+     * Drain loop of "sot-capture" thread.
+     */
+    @Override
+    public void run()
+    {
+        while (running) {
+            try {
+                if (!drain()) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+            catch (IOException e) {
+                LOG.error("Failed to write capture file, capturing is disabled.", e);
+                enabled = false;
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Disable capturing, write records left in ring and close capture file.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        enabled = false;
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            while (drain()) {
+                // writers caught enabled before it was cleared may still commit
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Write committed records from {@link #head} up to the first uncommitted one or the end of ring, whichever comes
+     * first.
+     *
+     * @return whether any record was drained
+     * @throws IOException
+     */
+    private boolean drain()
+            throws IOException
+    {
+        long h = head.get();
+        int start = (int) (h & mask);
+        int index = start;
+        int end = mask + 1;
+        int length;
+        while (index < end && (length = (int) INT.getAcquire(ring, index)) != 0) {
+            if (ring.getInt(index + 4) == PADDING) {
+                if (index == start) {
+                    // nothing before padding, skip it
+                    clear(index, length);
+                    head.lazySet(h + length);
+                    return true;
+                }
+                break;
+            }
+            index += align(length);
+        }
+        if (index == start) {
+            return false;
+        }
+
+        int n = index - start;
+        if (fileSize >= maxFileSize) {
+            rotate();
+        }
+        ByteBuffer b = ring.slice(start, n);
+        while (b.hasRemaining()) {
+            out.write(b);
+        }
+        fileSize += n;
+
+        clear(start, n);
+        head.lazySet(h + n);
+        return true;
+    }
+
+    /**
+     * Zero ring bytes from {@code index}, so that stale lengths are not taken as committed records in the next round.
+     *
+     * @param index
+     * @param n
+     */
+    private void clear(int index, int n)
+    {
+        while (n > 0) {
+            int k = Math.min(n, zeros.capacity());
+            ring.put(index, zeros, 0, k);
+            index += k;
+            n -= k;
+        }
+    }
+
+    /**
+     * Close current capture file and start the next one, deleting the oldest beyond {@link #maxFiles}.
+     *
+     * @throws IOException
+     */
+    private void rotate()
+            throws IOException
+    {
+        if (out != null) {
+            out.close();
+        }
+
+        Path path = directory.resolve(String.format("sot-%d-%04d.cap", System.currentTimeMillis(), fileSeq++));
+        out = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(0, MAGIC | ((long) VERSION << 48));
+        out.write(header);
+        fileSize = FILE_HEADER_LENGTH;
+
+        files.addLast(path);
+        while (files.size() > maxFiles) {
+            Files.deleteIfExists(files.removeFirst());
+        }
+        LOG.info("Capturing packets to {}.", path);
+    }
+
+    private boolean sampled(int sessionId)
+    {
+        int threshold = sampleThreshold;
+        if (threshold >= 1 << 16) {
+            return true;
+        }
+        // spread consecutive ids
+        int x = sessionId * 0x9E3779B9;
+        return ((x ^ (x >>> 16)) & 0xFFFF) < threshold;
+    }
+
+    private static int align(int length)
+    {
+        return (length + 7) & ~7;
+    }
+}
@@ -0,0 +1,125 @@
+package io.sot.lang;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@code PacketCaptureReader} iterates the records of a capture file written by {@link PacketCapture}.
+ * <p>
+ * The file is memory-mapped, and packets are returned as views of the mapping without copying. Usage:
+ * <pre>
+ * try (PacketCaptureReader r = new PacketCaptureReader(path)) {
+ *     while (r.next()) {
+ *         ... r.getDirection(), r.getSessionId(), r.getPacket() ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author user
+ * @see PacketCapture
+ */
+public class PacketCaptureReader
+        implements Closeable
+{
+    private final FileChannel channel;
+
+    private final ByteBuffer file;
+
+    private int record = -1;
+
+    private int next = PacketCapture.FILE_HEADER_LENGTH;
+
+    /**
+     * @param path capture file
+     * @throws IOException if the file is not a capture file of a supported version
+     */
+    public PacketCaptureReader(Path path)
+            throws IOException
+    {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Capture file %s is larger than 2 GB.", path));
+            }
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if (size < PacketCapture.FILE_HEADER_LENGTH
+                    || file.getLong(0) != (PacketCapture.MAGIC | ((long) PacketCapture.VERSION << 48))) {
+                throw new IOException(String.format("%s is not a capture file of version %d.", path,
+                        PacketCapture.VERSION));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Move to next record.
+     *
+     * @return false if there is no more complete record
+     */
+    public boolean next()
+    {
+        if (next + PacketCapture.RECORD_HEADER_LENGTH > file.limit()) {
+            return false;
+        }
+        int length = file.getInt(next);
+        if (length < PacketCapture.RECORD_HEADER_LENGTH + PacketHeader.LENGTH || next + length > file.limit()) {
+            // truncated, e.g. being written
+            return false;
+        }
+        record = next;
+        next += (length + 7) & ~7;
+        return true;
+    }
+
+    /**
+     * Get direction of current record.
+     *
+     * @return {@link PacketCapture#IN} or {@link PacketCapture#OUT}
+     */
+    public int getDirection()
+    {
+        return file.getInt(record + 4);
+    }
+
+    /**
+     * Get capture time of current record in nanoseconds since epoch.
+     *
+     * @return
+     */
+    public long getTimestamp()
+    {
+        return file.getLong(record + 8);
+    }
+
+    public int getSessionId()
+    {
+        return file.getInt(record + 16);
+    }
+
+    /**
+     * Get packet of current record, header and payload, as a read-only view valid until this reader is closed.
+     *
+     * @return
+     */
+    public ByteBuffer getPacket()
+    {
+        int length = file.getInt(record) - PacketCapture.RECORD_HEADER_LENGTH;
+        return file.slice(record + PacketCapture.RECORD_HEADER_LENGTH, length).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        channel.close();
+    }
+}
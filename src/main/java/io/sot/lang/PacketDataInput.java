@@ -1,19 +1,46 @@
 package io.sot.lang;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
 
 /**
  * <p>
- * <code>PacketDataInput</code> wraps a byte array read from one or multiple inbound TDS packets of the same message
+ * <code>PacketDataInput</code> wraps the payloads of one or multiple inbound TDS packets of the same message
  * (excluding packet header), and defines methods to read TDS data from it.
  * </p>
  * <p>
+ * Packets are pulled from the parent {@link PacketReader} on demand, so parsing starts as soon as the first packet
+ * arrives. Payloads are chained as segments in a {@link MessageStore} without being copied into a message-sized
+ * buffer, positions are always offsets from the beginning of the message, and reads may cross packet boundaries.
+ * </p>
+ * <p>
  * It provides both stream read methods, e.g. {@link #readGenUByte()} and random access read methods, e.g.
- * {@link #readGenUByte(int)}.
+ * {@link #readGenUByte(int)}. Primitive reads, e.g. {@link #readInt()} and {@link #readUShortInt()}, decode
+ * little-endian values straight from the current segment with a single bounds check, and allocate nothing; they only
+ * fall back to copying when a value crosses a packet boundary. Parsers should prefer them to {@code readGen*} methods
+ * when only the value is needed.
+ * </p>
+ * <p>
+ * Segments may be heap, direct or memory-mapped buffers, e.g. pooled packet buffers, spilled chunks, or a whole
+ * message given to {@link #PacketDataInput(PacketReader, ByteBuffer)}, and are all read through the same methods, so
+ * parsers do not depend on where the bytes live. Strings are decoded straight from their segment as well.
  * </p>
  * <p>
  * For each read method, {@link PacketRWException} will raise if reading fails, and {@code IOException} if underlying
@@ -34,29 +61,126 @@ public class PacketDataInput
 {
     private final Charset csUTF16LE = StandardCharsets.UTF_16LE;
 
+    // little-endian views, valid for both heap and direct segments
+    private static final VarHandle SHORT_LE = MethodHandles.byteBufferViewVarHandle(short[].class,
+            java.nio.ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteBufferViewVarHandle(int[].class,
+            java.nio.ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_LE = MethodHandles.byteBufferViewVarHandle(long[].class,
+            java.nio.ByteOrder.LITTLE_ENDIAN);
+
     /**
-     * Parent {@linkplain PacketReader}.
+     * Parent {@linkplain PacketReader}, or {@code null} if the whole message is given at construction.
      */
     private final PacketReader reader;
 
-    private final byte[] buffer;
-    private final int bufLen;
+    /**
+     * Packet payloads received so far.
+     */
+    private final MessageStore store;
+    /**
+     * Number of bytes received so far.
+     */
+    private int bufLen;
+    /**
+     * Whether the last packet (EOM) of this message has been received.
+     */
+    private boolean complete;
+
+    // segment that contains cursor
+    private ByteBuffer seg;
+    private int segStart;
+    private int segEnd;
+
     private int cursor;
     private int mark;
 
-    // reused byte arrays
+    // reused byte arrays, for values crossing segments
     private final byte[] bytes2 = new byte[2];
     private final byte[] bytes4 = new byte[4];
     private final byte[] bytes8 = new byte[8];
 
+    /**
+     * Maximal length and scale of the TYPE_INFO last read by {@link #readTypeInfo()}.
+     */
+    private int tiLength;
+    private int tiScale;
+
+    /**
+     * Value length of a NULL, and of a PLP value, returned by {@link #readValueLength(TypeInfo.Type)}.
+     */
+    private static final int NULL_LENGTH = -1;
+    private static final int PLP_LENGTH = -2;
+
+    /**
+     * Create a streaming input, which pulls packets from {@code r} until EOM, and keeps them in {@code store}.
+     *
+     * @param r
+     * @param store
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public PacketDataInput(PacketReader r, MessageStore store)
+            throws PacketRWException, IOException
+    {
+        reader = r;
+        cursor = 0;
+        mark = 0;
+        this.store = store;
+        complete = false;
+
+        // first packet
+        nextSegment();
+    }
+
+    /**
+     * Create an input over a whole message {@code b}.
+     *
+     * @param r
+     * @param b
+     * @throws PacketRWException
+     * @throws IOException
+     */
     public PacketDataInput(PacketReader r, byte[] b)
             throws PacketRWException, IOException
     {
         reader = r;
         cursor = 0;
         mark = 0;
-        buffer = b;
-        bufLen = buffer.length;
+        store = new MessageStore(Long.MAX_VALUE);
+        store.wrap(ByteBuffer.wrap(b));
+        bufLen = b.length;
+        complete = true;
+    }
+
+    /**
+     * Create an input over a whole message in {@code b}, from its position to its limit, e.g. a direct buffer or a
+     * memory-mapped capture, which is read in place. {@code b} remains owned by the caller.
+     *
+     * @param r
+     * @param b
+     * @throws PacketRWException
+     */
+    public PacketDataInput(PacketReader r, ByteBuffer b)
+            throws PacketRWException
+    {
+        reader = r;
+        cursor = 0;
+        mark = 0;
+        store = new MessageStore(Long.MAX_VALUE);
+        store.wrap(b);
+        bufLen = b.remaining();
+        complete = true;
+    }
+
+    /**
+     * Get the store of received packet payloads.
+     *
+     * @return
+     */
+    public MessageStore getStore()
+    {
+        return store;
     }
 
     /**
@@ -69,10 +193,11 @@ public class PacketDataInput
     public void seek(int pos)
             throws PacketRWException, IOException
     {
-        if (pos < 0 || pos >= bufLen) {
+        if (pos < 0 || !fill(pos + 1L)) {
             throw new PacketRWException("Parameter len %d is out of bound 0 - %d.", pos, bufLen);
         }
         cursor = pos;
+        invalidateSegment();
     }
 
     /**
@@ -100,7 +225,7 @@ public class PacketDataInput
         if (len < 0) {
             throw new PacketRWException("Parameter len nagetive: %d.", len);
         }
-        else if (len > bufLen - cursor) {
+        else if (!fill((long) cursor + len)) {
             throw new PacketRWException("Parameter len is greater than available bytes: %d > %d.", len,
                     bufLen - cursor);
         }
@@ -132,16 +257,20 @@ public class PacketDataInput
             throws PacketRWException, IOException
     {
         cursor = mark;
+        invalidateSegment();
     }
 
     /**
-     * Has more bytes to read..
+     * Has more bytes to read, pulling the next packet if current ones are consumed.
      *
      * @return
+     * @throws PacketRWException
+     * @throws IOException
      */
     public boolean hasMore()
+            throws PacketRWException, IOException
     {
-        return cursor < bufLen || (reader.getHeader().getStatus().shortValue() & PacketHeader.StatusFlag.EOM.getValue()) == 0;
+        return cursor < bufLen || fill(cursor + 1L);
     }
 
     /**
@@ -155,13 +284,12 @@ public class PacketDataInput
     public byte read()
             throws PacketRWException, IOException
     {
-        if (cursor >= bufLen) {
-            // reach EOM
-            throw new PacketRWException("EOM exception, cursor is placed at the end of message.");
+        if (cursor >= segEnd) {
+            moveSegment(cursor);
         }
 
         // return byte and move cursor
-        return buffer[cursor++];
+        return seg.get(cursor++ - segStart);
     }
 
     /**
@@ -169,20 +297,57 @@ public class PacketDataInput
      *
      * @param pos
      * @return
+     * @throws PacketRWException
+     * @throws IOException
      */
     public byte read(int pos)
+            throws PacketRWException, IOException
     {
-        if (pos < 0 || pos >= bufLen) {
+        if (pos < 0 || !fill(pos + 1L)) {
             throw new IndexOutOfBoundsException(
                     String.format("Parameter pos %d is out of bounds 0 - %d.", pos, bufLen));
         }
 
-        return buffer[pos];
+        int i = store.locate(pos);
+        return store.segment(i).get(pos - store.offset(i));
+    }
+
+    /**
+     * Read an unsigned byte from current position as int, and move cursor.
+     *
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public int readUByteInt()
+            throws PacketRWException, IOException
+    {
+        return read() & 0xFF;
+    }
+
+    /**
+     * Read an unsigned byte from specific <code>pos</code> as int, without moving cursor.
+     *
+     * @param pos
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public int readUByteInt(int pos)
+            throws PacketRWException, IOException
+    {
+        return read(pos) & 0xFF;
     }
 
     public short readShort()
             throws PacketRWException, IOException
     {
+        int p = cursor;
+        if (p + 2 <= segEnd) {
+            cursor = p + 2;
+            return (short) SHORT_LE.get(seg, p - segStart);
+        }
+
         read(bytes2);
         return (short) (((bytes2[1] & 0xff) << 8) | (bytes2[0] & 0xff));
     }
@@ -190,20 +355,63 @@ public class PacketDataInput
     public short readShort(int pos)
             throws PacketRWException, IOException
     {
+        if (pos >= segStart && pos + 2 <= segEnd) {
+            return (short) SHORT_LE.get(seg, pos - segStart);
+        }
+
         read(pos, bytes2);
         return (short) (((bytes2[1] & 0xff) << 8) | (bytes2[0] & 0xff));
     }
 
+    /**
+     * Same as {@link #readUShortInt()}, kept for existing callers.
+     *
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
     public int readUShort()
             throws PacketRWException, IOException
     {
-        read(bytes2);
-        return ((bytes2[1] & 0xff) << 8) | (bytes2[0] & 0xff);
+        return readUShortInt();
+    }
+
+    /**
+     * Read an unsigned short from current position as int, and move cursor.
+     *
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public int readUShortInt()
+            throws PacketRWException, IOException
+    {
+        return readShort() & 0xFFFF;
+    }
+
+    /**
+     * Read an unsigned short from specific <code>pos</code> as int, without moving cursor.
+     *
+     * @param pos
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public int readUShortInt(int pos)
+            throws PacketRWException, IOException
+    {
+        return readShort(pos) & 0xFFFF;
     }
 
     public int readInt()
             throws PacketRWException, IOException
     {
+        int p = cursor;
+        if (p + 4 <= segEnd) {
+            cursor = p + 4;
+            return (int) INT_LE.get(seg, p - segStart);
+        }
+
         read(bytes4);
         return (((bytes4[3] & 0xff) << 24) | ((bytes4[2] & 0xff) << 16) | ((bytes4[1] & 0xff) << 8) | (bytes4[0] & 0xff));
     }
@@ -211,13 +419,50 @@ public class PacketDataInput
     public int readInt(int pos)
             throws PacketRWException, IOException
     {
+        if (pos >= segStart && pos + 4 <= segEnd) {
+            return (int) INT_LE.get(seg, pos - segStart);
+        }
+
         read(pos, bytes4);
         return (((bytes4[3] & 0xff) << 24) | ((bytes4[2] & 0xff) << 16) | ((bytes4[1] & 0xff) << 8) | (bytes4[0] & 0xff));
     }
 
+    /**
+     * Read an unsigned int from current position as long, and move cursor.
+     *
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public long readUIntLong()
+            throws PacketRWException, IOException
+    {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Read an unsigned int from specific <code>pos</code> as long, without moving cursor.
+     *
+     * @param pos
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public long readUIntLong(int pos)
+            throws PacketRWException, IOException
+    {
+        return readInt(pos) & 0xFFFFFFFFL;
+    }
+
     public long readLong()
             throws PacketRWException, IOException
     {
+        int p = cursor;
+        if (p + 8 <= segEnd) {
+            cursor = p + 8;
+            return (long) LONG_LE.get(seg, p - segStart);
+        }
+
         read(bytes8);
         return (((long) (bytes8[7] & 0xff) << 56) | ((long) (bytes8[6] & 0xff) << 48) | ((long) (bytes8[5] & 0xff) << 40)
                 | ((long) (bytes8[4] & 0xff) << 32) | ((long) (bytes8[3] & 0xff) << 24) | ((long) (bytes8[2] & 0xff) << 16)
@@ -227,6 +472,10 @@ public class PacketDataInput
     public long readLong(int pos)
             throws PacketRWException, IOException
     {
+        if (pos >= segStart && pos + 8 <= segEnd) {
+            return (long) LONG_LE.get(seg, pos - segStart);
+        }
+
         read(pos, bytes8);
         return (((long) (bytes8[7] & 0xff) << 56) | ((long) (bytes8[6] & 0xff) << 48) | ((long) (bytes8[5] & 0xff) << 40)
                 | ((long) (bytes8[4] & 0xff) << 32) | ((long) (bytes8[3] & 0xff) << 24) | ((long) (bytes8[2] & 0xff) << 16)
@@ -236,33 +485,29 @@ public class PacketDataInput
     public String readString(int len)
             throws PacketRWException, IOException
     {
-        byte[] bytes = new byte[len];
-        read(bytes);
-        return new String(bytes, StandardCharsets.UTF_8);
+        String str = decode(cursor, len, StandardCharsets.UTF_8);
+        cursor += len;
+        return str;
     }
 
     public String readString(int pos, int len)
             throws PacketRWException, IOException
     {
-        byte[] bytes = new byte[len];
-        read(pos, bytes);
-        return new String(bytes, StandardCharsets.UTF_8);
+        return decode(pos, len, StandardCharsets.UTF_8);
     }
 
     public String readNString(int len)
             throws PacketRWException, IOException
     {
-        byte[] bytes = new byte[len * 2];
-        read(bytes);
-        return csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString();
+        String str = decodeUTF16(cursor, len * 2);
+        cursor += len * 2;
+        return str;
     }
 
     public String readNString(int pos, int len)
             throws PacketRWException, IOException
     {
-        byte[] bytes = new byte[len * 2];
-        read(pos, bytes);
-        return csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString();
+        return decodeUTF16(pos, len * 2);
     }
 
     /**
@@ -275,11 +520,42 @@ public class PacketDataInput
     public byte[] readBytes()
             throws PacketRWException, IOException
     {
+        fill(Long.MAX_VALUE);
         byte[] ret = new byte[bufLen - cursor];
         read(ret);
         return ret;
     }
 
+    /**
+     * Reads up to {@code dst.remaining()} bytes of the rest of this message into {@code dst}, and move cursor. Packets
+     * are pulled as needed, so a large message can be consumed chunk by chunk.
+     *
+     * @param dst
+     * @return number of bytes read, or -1 if the whole message has been read
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public int read(ByteBuffer dst)
+            throws PacketRWException, IOException
+    {
+        if (!fill(cursor + 1L)) {
+            return -1;
+        }
+
+        int n = 0;
+        while (dst.hasRemaining() && fill(cursor + 1L)) {
+            int i = store.locate(cursor);
+            ByteBuffer b = store.segment(i);
+            int p = cursor - store.offset(i);
+            int k = Math.min(dst.remaining(), b.limit() - p);
+            dst.put(dst.position(), b, p, k);
+            dst.position(dst.position() + k);
+            cursor += k;
+            n += k;
+        }
+        return n;
+    }
+
     /**
      * Reads exact <code>len</code> bytes from current position, and move cursor.
      *
@@ -755,10 +1031,7 @@ public class PacketDataInput
     public GenUnicodeStream readGenUniCodeStream(int len)
             throws PacketRWException, IOException
     {
-        byte[] bytes = new byte[len * 2];
-        read(bytes);
-        String str = csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString();
-        return new GenUnicodeStream(str);
+        return new GenUnicodeStream(readNString(len));
     }
 
     /**
@@ -774,10 +1047,7 @@ public class PacketDataInput
     public GenUnicodeStream readGenUnicodeStream(int pos, int len)
             throws PacketRWException, IOException
     {
-        byte[] bytes = new byte[len * 2];
-        read(pos, bytes);
-        String str = csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString();
-        return new GenUnicodeStream(str);
+        return new GenUnicodeStream(decodeUTF16(pos, len * 2));
     }
 
     /**
@@ -791,9 +1061,8 @@ public class PacketDataInput
     public GenUnicodeStream readGenUniCodeStream()
             throws PacketRWException, IOException
     {
-        byte[] bytes = readBytes();
-        String str = csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString();
-        return new GenUnicodeStream(str);
+        fill(Long.MAX_VALUE);
+        return new GenUnicodeStream(readNString((bufLen - cursor) / 2));
     }
 
     /**
@@ -806,11 +1075,8 @@ public class PacketDataInput
     public GenBVarChar readGenBVarChar()
             throws PacketRWException, IOException
     {
-        short len = (read());
-        byte[] bytes = new byte[len * 2];
-        read(bytes);
-        String str = csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString();
-        return new GenBVarChar(str);
+        int len = readUByteInt();
+        return new GenBVarChar(readNString(len));
     }
 
     /**
@@ -824,11 +1090,8 @@ public class PacketDataInput
     public GenBVarChar readGenBVarChar(int pos)
             throws PacketRWException, IOException
     {
-        short len = (read(pos));
-        byte[] bytes = new byte[len * 2];
-        read(pos + 1, bytes);
-        String str = csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString();
-        return new GenBVarChar(str);
+        int len = readUByteInt(pos);
+        return new GenBVarChar(decodeUTF16(pos + 1, len * 2));
     }
 
     /**
@@ -841,11 +1104,8 @@ public class PacketDataInput
     public GenUSVarChar readGenUSVarChar()
             throws PacketRWException, IOException
     {
-        int len = (readShort());
-        byte[] bytes = new byte[len * 2];
-        read(bytes);
-        String str = csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString();
-        return new GenUSVarChar(str);
+        int len = readUShortInt();
+        return new GenUSVarChar(readNString(len));
     }
 
     /**
@@ -859,11 +1119,8 @@ public class PacketDataInput
     public GenUSVarChar readGenUSVarChar(int pos)
             throws PacketRWException, IOException
     {
-        int len = (readShort(pos));
-        byte[] bytes = new byte[len * 2];
-        read(pos + 2, bytes);
-        String str = csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString();
-        return new GenUSVarChar(str);
+        int len = readUShortInt(pos);
+        return new GenUSVarChar(decodeUTF16(pos + 2, len * 2));
     }
 
     /**
@@ -1014,6 +1271,91 @@ public class PacketDataInput
         return new GenLVarByte(bytes);
     }
 
+    /**
+     * Read the 3-byte days since 0001-01-01 of a date.
+     *
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private int readDate()
+            throws PacketRWException, IOException
+    {
+        return readUShortInt() | (read() & 0xFF) << 16;
+    }
+
+    /**
+     * Read the time of {@code length} bytes, 3 to 5 by scale, since midnight.
+     *
+     * @param length
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private long readTime(int length)
+            throws PacketRWException, IOException
+    {
+        switch (length) {
+            case 3:
+                return readUShortInt() | (read() & 0xFF) << 16;
+            case 4:
+                return readInt() & 0xFFFFFFFFL;
+            case 5:
+                return (readInt() & 0xFFFFFFFFL) | (read() & 0xFFL) << 32;
+            default:
+                throw new PacketRWException("Invalid time length %d.", length);
+        }
+    }
+
+    /**
+     * Read the sign and little-endian magnitude of a decimal of {@code len} bytes, sign included, at {@code scale}.
+     * Magnitudes which fit in a long skip {@code BigInteger}.
+     *
+     * @param scale
+     * @param len
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private BigDecimal readDecimal(int scale, int len)
+            throws PacketRWException, IOException
+    {
+        boolean positive = read() == 1;
+        long low;
+        long high;
+        switch (len) {
+            case 5:
+                low = readInt() & 0xFFFFFFFFL;
+                high = 0;
+                break;
+            case 9:
+                low = readLong();
+                high = 0;
+                break;
+            case 13:
+                low = readLong();
+                high = readInt() & 0xFFFFFFFFL;
+                break;
+            case 17:
+                low = readLong();
+                high = readLong();
+                break;
+            default:
+                throw new PacketRWException("Invalid decimal length %d.", len);
+        }
+
+        if (high == 0 && low >= 0) {
+            return BigDecimal.valueOf(positive ? low : -low, scale);
+        }
+
+        byte[] magnitude = new byte[2 * Long.BYTES];
+        for (int i = 0; i < Long.BYTES; i++) {
+            magnitude[i] = (byte) (high >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+            magnitude[Long.BYTES + i] = (byte) (low >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+        }
+        return new BigDecimal(new BigInteger(positive ? 1 : -1, magnitude), scale);
+    }
+
     /**
      * Read Java object from input based on <code>ti</code>.
      *
@@ -1049,13 +1391,13 @@ public class PacketDataInput
             case INT4TYPE:
                 return new SqlInt(readInt());
             case DATETIM4TYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
+                return new SqlDatetime(Timestamp.valueOf(DateTimeCodec.getSmallLocalDateTime(readShort(), readShort())));
             case FLT4TYPE:
                 throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
             case MONEYTYPE:
                 throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
             case DATETIMETYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
+                return new SqlDatetime(Timestamp.valueOf(DateTimeCodec.getLocalDateTime(readInt(), readInt())));
             case FLT8TYPE:
                 throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
             case MONEY4TYPE:
@@ -1089,9 +1431,21 @@ public class PacketDataInput
                     return new SqlBit(read());
                 }
             case DECIMALNTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
+                dLen = read();
+                if (dLen == 0) {
+                    return null;
+                }
+                else {
+                    return new SqlDecimal(readDecimal(ti.getScale().x, dLen));
+                }
             case NUMERICNTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
+                dLen = read();
+                if (dLen == 0) {
+                    return null;
+                }
+                else {
+                    return new SqlNumeric(readDecimal(ti.getScale().x, dLen));
+                }
             case FLTNTYPE:
                 dLen = read();
                 if (dLen == 0) {
@@ -1104,33 +1458,76 @@ public class PacketDataInput
             case MONEYNTYPE:
                 throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
             case DATETIMNTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-            case DATENTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-            case TIMENTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-            case DATETIME2NTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-            case DATETIMEOFFSETNTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-            case CHARTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-            case VARCHARTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-            case BINARYTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-            case VARBINARYTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-                // USHORTLEN_TYPE:
-            case BIGVARBINARYTYPE:
-                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
-            case BIGVARCHARTYPE:
-                dLen = readShort();
-                if (dLen == 0xFFFF) {
+                dLen = read();
+                if (dLen == 0) {
                     return null;
                 }
+                else if (dLen == 4) {
+                    return new SqlDatetime(
+                            Timestamp.valueOf(DateTimeCodec.getSmallLocalDateTime(readShort(), readShort())));
+                }
                 else {
-                    return new SqlVarChar(this.readString(dLen));
+                    return new SqlDatetime(Timestamp.valueOf(DateTimeCodec.getLocalDateTime(readInt(), readInt())));
+                }
+            case DATENTYPE:
+                dLen = read();
+                if (dLen == 0) {
+                    return null;
+                }
+                else {
+                    return new SqlDate(Date.valueOf(DateTimeCodec.getLocalDate(readDate())));
+                }
+            case TIMENTYPE:
+                dLen = read();
+                if (dLen == 0) {
+                    return null;
+                }
+                else {
+                    return new SqlTime(Time.valueOf(DateTimeCodec.getLocalTime(readTime(dLen), ti.getScale().x)));
+                }
+            case DATETIME2NTYPE:
+                dLen = read();
+                if (dLen == 0) {
+                    return null;
+                }
+                else {
+                    LocalTime time = DateTimeCodec.getLocalTime(readTime(dLen - 3), ti.getScale().x);
+                    return new SqlDatetime(Timestamp.valueOf(DateTimeCodec.getLocalDate(readDate()).atTime(time)));
+                }
+            case DATETIMEOFFSETNTYPE:
+                dLen = read();
+                if (dLen == 0) {
+                    return null;
+                }
+                else {
+                    // UTC, the offset only tells how client sees it
+                    LocalTime time = DateTimeCodec.getLocalTime(readTime(dLen - 5), ti.getScale().x);
+                    LocalDate date = DateTimeCodec.getLocalDate(readDate());
+                    readShort();
+                    return new SqlDatetime(Timestamp.from(date.atTime(time).toInstant(ZoneOffset.UTC)));
+                }
+            case CHARTYPE:
+                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
+            case VARCHARTYPE:
+                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
+            case BINARYTYPE:
+                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
+            case VARBINARYTYPE:
+                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
+                // USHORTLEN_TYPE:
+            case BIGVARBINARYTYPE:
+                throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
+            case BIGVARCHARTYPE:
+                if (ti.isPlp()) {
+                    byte[] plpBytes = readPLPBytes();
+                    return plpBytes == null ? null : new SqlVarChar(new String(plpBytes, StandardCharsets.UTF_8));
+                }
+                dLen = readShort();
+                if (dLen == 0xFFFF) {
+                    return null;
+                }
+                else {
+                    return new SqlVarChar(this.readString(dLen));
                 }
             case BIGBINARYTYPE:
                 throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
@@ -1160,18 +1557,16 @@ public class PacketDataInput
                         return null;
                     }
                     else {
-                        return new SqlNVarChar(csUTF16LE.decode(ByteBuffer.wrap(plpBytes)).toString());
+                        return new SqlNVarChar(new String(plpBytes, csUTF16LE));
                     }
                 }
                 else {
-                    dLen = readUShort();
+                    dLen = readUShortInt();
                     if (dLen == 0xFFFF) {
                         return null;
                     }
                     else {
-                        bytes = new byte[dLen];
-                        read(bytes);
-                        return new SqlNVarChar(csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString());
+                        return new SqlNVarChar(readNString(dLen / 2));
                     }
                 }
             case NCHARTYPE:
@@ -1191,9 +1586,7 @@ public class PacketDataInput
                     return null;
                 }
                 else {
-                    bytes = new byte[dLen];
-                    read(bytes);
-                    return new SqlNText(csUTF16LE.decode(ByteBuffer.wrap(bytes)).toString());
+                    return new SqlNText(readNString(dLen / 2));
                 }
             case SSVARIANTTYPE:
                 throw new UnsupportedOperationException(String.format("read(%s) is not implemented yet.", t));
@@ -1207,43 +1600,468 @@ public class PacketDataInput
     }
 
     /**
-     * Section <tt>Partially Length-prefixed Bytes</tt> in this doc: <a href=
+     * Skip a TYPE_INFO and the value it describes, e.g. an RPC parameter value, from current position, and move cursor
+     * past them. Nothing is decoded nor allocated, so offsets of values may be recorded cheaply and values bound later
+     * with {@link #bindTypedValue(PreparedStatement, int)}.
+     *
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public void skipTypedValue()
+            throws PacketRWException, IOException
+    {
+        TypeInfo.Type t = readTypeInfo();
+        int len = readValueLength(t);
+        if (len == PLP_LENGTH) {
+            skipPLP();
+        }
+        else if (len > 0) {
+            skip(len);
+        }
+    }
+
+    /**
+     * Read a TYPE_INFO and the value it describes from current position, and bind the value as parameter
+     * {@code parameterIndex} of {@code ps}, and move cursor.
+     * <p>
+     * Unlike {@link #read(TypeInfo)}, neither {@link TypeInfo} nor {@link SqlDataValue} is built: integers, floats and
+     * bits go straight from packet buffers to the primitive setters, e.g. {@code setInt} and {@code setDouble}, strings
+     * are decoded once into {@code setString}, PLP values are bound as streams, see
+     * {@link PlpInputStream#bind(PreparedStatement, int, TypeInfo.Type)}, and NULL to {@code setNull} with the JDBC
+     * type of the TDS type.
+     *
+     * @param ps
+     * @param parameterIndex
+     * @throws PacketRWException if the type is not supported
+     * @throws IOException
+     * @throws SQLException
+     */
+    public void bindTypedValue(PreparedStatement ps, int parameterIndex)
+            throws PacketRWException, IOException, SQLException
+    {
+        TypeInfo.Type t = readTypeInfo();
+        int len = readValueLength(t);
+        if (len == NULL_LENGTH) {
+            ps.setNull(parameterIndex, getJdbcType(t, tiLength));
+            return;
+        }
+        if (len == PLP_LENGTH) {
+            PlpInputStream plp = readPLPStream();
+            if (plp == null) {
+                ps.setNull(parameterIndex, getJdbcType(t, tiLength));
+            }
+            else {
+                plp.bind(ps, parameterIndex, t);
+            }
+            return;
+        }
+
+        switch (t) {
+            case INT1TYPE:
+                ps.setShort(parameterIndex, (short) readUByteInt());
+                break;
+            case INT2TYPE:
+                ps.setShort(parameterIndex, readShort());
+                break;
+            case INT4TYPE:
+                ps.setInt(parameterIndex, readInt());
+                break;
+            case INT8TYPE:
+                ps.setLong(parameterIndex, readLong());
+                break;
+            case INTNTYPE:
+                switch (len) {
+                    case 1:
+                        ps.setShort(parameterIndex, (short) readUByteInt());
+                        break;
+                    case 2:
+                        ps.setShort(parameterIndex, readShort());
+                        break;
+                    case 4:
+                        ps.setInt(parameterIndex, readInt());
+                        break;
+                    case 8:
+                        ps.setLong(parameterIndex, readLong());
+                        break;
+                    default:
+                        throw new PacketRWException("Invalid %s length %d.", t, len);
+                }
+                break;
+            case BITTYPE:
+            case BITNTYPE:
+                ps.setBoolean(parameterIndex, read() != 0);
+                break;
+            case FLT4TYPE:
+                ps.setFloat(parameterIndex, Float.intBitsToFloat(readInt()));
+                break;
+            case FLT8TYPE:
+                ps.setDouble(parameterIndex, Double.longBitsToDouble(readLong()));
+                break;
+            case FLTNTYPE:
+                if (len == 4) {
+                    ps.setFloat(parameterIndex, Float.intBitsToFloat(readInt()));
+                }
+                else if (len == 8) {
+                    ps.setDouble(parameterIndex, Double.longBitsToDouble(readLong()));
+                }
+                else {
+                    throw new PacketRWException("Invalid %s length %d.", t, len);
+                }
+                break;
+            case DECIMALNTYPE:
+            case NUMERICNTYPE:
+                ps.setBigDecimal(parameterIndex, readDecimal(tiScale, len));
+                break;
+            case MONEYTYPE:
+            case MONEY4TYPE:
+            case MONEYNTYPE:
+                // money is high 4 bytes then low 4 bytes, smallmoney 4 bytes, both in 1/10000
+                long money = len == 4 ? readInt() : (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+                ps.setBigDecimal(parameterIndex, BigDecimal.valueOf(money, 4));
+                break;
+            case DATETIM4TYPE:
+            case DATETIMETYPE:
+            case DATETIMNTYPE:
+                if (len == 4) {
+                    ps.setObject(parameterIndex, DateTimeCodec.getSmallLocalDateTime(readShort(), readShort()));
+                }
+                else {
+                    ps.setObject(parameterIndex, DateTimeCodec.getLocalDateTime(readInt(), readInt()));
+                }
+                break;
+            case DATENTYPE:
+                ps.setObject(parameterIndex, DateTimeCodec.getLocalDate(readDate()));
+                break;
+            case TIMENTYPE:
+                ps.setObject(parameterIndex, DateTimeCodec.getLocalTime(readTime(len), tiScale));
+                break;
+            case DATETIME2NTYPE: {
+                LocalTime time = DateTimeCodec.getLocalTime(readTime(len - 3), tiScale);
+                ps.setObject(parameterIndex, DateTimeCodec.getLocalDate(readDate()).atTime(time));
+                break;
+            }
+            case DATETIMEOFFSETNTYPE: {
+                // UTC, then the offset in minutes of the client
+                LocalTime time = DateTimeCodec.getLocalTime(readTime(len - 5), tiScale);
+                LocalDate date = DateTimeCodec.getLocalDate(readDate());
+                ZoneOffset offset = ZoneOffset.ofTotalSeconds(readShort() * 60);
+                ps.setObject(parameterIndex,
+                        OffsetDateTime.of(date, time, ZoneOffset.UTC).withOffsetSameInstant(offset));
+                break;
+            }
+            case GUIDTYPE:
+                if (len != 16) {
+                    throw new PacketRWException("Invalid %s length %d.", t, len);
+                }
+                // first 3 groups little-endian, last 2 big-endian
+                long msb = (readInt() & 0xFFFFFFFFL) << 32 | (long) readUShortInt() << 16 | readUShortInt();
+                long lsb = Long.reverseBytes(readLong());
+                ps.setString(parameterIndex, new UUID(msb, lsb).toString());
+                break;
+            case NVARCHARTYPE:
+            case NCHARTYPE:
+            case NTEXTTYPE:
+                ps.setString(parameterIndex, readNString(len / 2));
+                break;
+            case BIGVARCHARTYPE:
+            case BIGCHARTYPE:
+            case VARCHARTYPE:
+            case CHARTYPE:
+            case TEXTTYPE:
+                ps.setString(parameterIndex, readString(len));
+                break;
+            case BIGVARBINARYTYPE:
+            case BIGBINARYTYPE:
+            case VARBINARYTYPE:
+            case BINARYTYPE:
+            case IMAGETYPE:
+                ps.setBytes(parameterIndex, readBytes(len));
+                break;
+            default:
+                throw new PacketRWException("Binding %s values is not supported.", t);
+        }
+    }
+
+    /**
+     * Read a TYPE_INFO from current position into {@link #tiLength} and {@link #tiScale}, skipping collation and
+     * precision, and move cursor.
+     *
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private TypeInfo.Type readTypeInfo()
+            throws PacketRWException, IOException
+    {
+        TypeInfo.Type t = TypeInfo.Type.valueOf(readUByteInt());
+        tiLength = 0;
+        tiScale = 0;
+
+        if (t == TypeInfo.Type.XMLTYPE) {
+            // SCHEMA_PRESENT, then database and owning schema names as B_VARCHAR, collection name as US_VARCHAR
+            if (readUByteInt() != 0) {
+                skip(readUByteInt() * 2);
+                skip(readUByteInt() * 2);
+                skip(readUShortInt() * 2);
+            }
+            tiLength = TypeInfo.MAX_LENGTH;
+            return t;
+        }
+
+        switch (t.lengthBytes) {
+            case 0:
+                break;
+            case 1:
+                tiLength = readUByteInt();
+                break;
+            case 2:
+                tiLength = readUShortInt();
+                break;
+            case 4:
+                tiLength = readInt();
+                break;
+            default:
+                throw new PacketRWException("Unexpected length field bytes number %d for Type %s.", t.lengthBytes, t);
+        }
+        if (t.hasCollation) {
+            skip(Collation.LENGTH);
+        }
+        if (t.hasPrecision) {
+            read();
+        }
+        if (t.hasScale) {
+            tiScale = readUByteInt();
+        }
+        return t;
+    }
+
+    /**
+     * Read the length of a value of type {@code t}, as described by the TYPE_INFO last read, from current position,
+     * and move cursor. Fixed-length types have no length to read.
+     *
+     * @param t
+     * @return length in bytes, {@link #NULL_LENGTH} if NULL or {@link #PLP_LENGTH} if PLP, whose length is read with
+     *         the value
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private int readValueLength(TypeInfo.Type t)
+            throws PacketRWException, IOException
+    {
+        int len;
+        switch (t) {
+            case NULLTYPE:
+                return NULL_LENGTH;
+            case INT1TYPE:
+            case BITTYPE:
+                return 1;
+            case INT2TYPE:
+                return 2;
+            case INT4TYPE:
+            case DATETIM4TYPE:
+            case FLT4TYPE:
+            case MONEY4TYPE:
+                return 4;
+            case MONEYTYPE:
+            case DATETIMETYPE:
+            case FLT8TYPE:
+            case INT8TYPE:
+                return 8;
+            case DATENTYPE:
+            case TIMENTYPE:
+            case DATETIME2NTYPE:
+            case DATETIMEOFFSETNTYPE:
+                len = readUByteInt();
+                return len == 0 ? NULL_LENGTH : len;
+            case CHARTYPE:
+            case VARCHARTYPE:
+            case BINARYTYPE:
+            case VARBINARYTYPE:
+                len = readUByteInt();
+                return len == 0xFF ? NULL_LENGTH : len;
+            case XMLTYPE:
+                return PLP_LENGTH;
+            default:
+                break;
+        }
+
+        switch (t.lengthBytes) {
+            case 1:
+                len = readUByteInt();
+                return len == 0 ? NULL_LENGTH : len;
+            case 2:
+                if (tiLength == TypeInfo.MAX_LENGTH) {
+                    return PLP_LENGTH;
+                }
+                len = readUShortInt();
+                return len == 0xFFFF ? NULL_LENGTH : len;
+            case 4:
+                len = readInt();
+                return len < 0 ? NULL_LENGTH : len;
+            default:
+                throw new PacketRWException("Reading %s values is not supported.", t);
+        }
+    }
+
+    /**
+     * Get the JDBC type of type {@code t} of maximal {@code length}, e.g. to bind a NULL.
+     *
+     * @param t
+     * @param length
+     * @return
+     * @see java.sql.Types
+     */
+    private static int getJdbcType(TypeInfo.Type t, int length)
+    {
+        switch (t) {
+            case INT1TYPE:
+                return Types.TINYINT;
+            case INT2TYPE:
+                return Types.SMALLINT;
+            case INT4TYPE:
+                return Types.INTEGER;
+            case INT8TYPE:
+                return Types.BIGINT;
+            case INTNTYPE:
+                return length == 1 ? Types.TINYINT
+                        : length == 2 ? Types.SMALLINT : length == 4 ? Types.INTEGER : Types.BIGINT;
+            case BITTYPE:
+            case BITNTYPE:
+                return Types.BIT;
+            case FLT4TYPE:
+                return Types.REAL;
+            case FLT8TYPE:
+                return Types.DOUBLE;
+            case FLTNTYPE:
+                return length == 4 ? Types.REAL : Types.DOUBLE;
+            case DECIMALTYPE:
+            case DECIMALNTYPE:
+            case MONEYTYPE:
+            case MONEY4TYPE:
+            case MONEYNTYPE:
+                return Types.DECIMAL;
+            case NUMERICTYPE:
+            case NUMERICNTYPE:
+                return Types.NUMERIC;
+            case DATETIM4TYPE:
+            case DATETIMETYPE:
+            case DATETIMNTYPE:
+            case DATETIME2NTYPE:
+                return Types.TIMESTAMP;
+            case DATETIMEOFFSETNTYPE:
+                return Types.TIMESTAMP_WITH_TIMEZONE;
+            case DATENTYPE:
+                return Types.DATE;
+            case TIMENTYPE:
+                return Types.TIME;
+            case GUIDTYPE:
+                return Types.CHAR;
+            case CHARTYPE:
+            case BIGCHARTYPE:
+                return Types.CHAR;
+            case VARCHARTYPE:
+            case BIGVARCHARTYPE:
+                return length == TypeInfo.MAX_LENGTH ? Types.LONGVARCHAR : Types.VARCHAR;
+            case TEXTTYPE:
+                return Types.LONGVARCHAR;
+            case NCHARTYPE:
+                return Types.NCHAR;
+            case NVARCHARTYPE:
+                return length == TypeInfo.MAX_LENGTH ? Types.LONGNVARCHAR : Types.NVARCHAR;
+            case NTEXTTYPE:
+                return Types.LONGNVARCHAR;
+            case BINARYTYPE:
+            case BIGBINARYTYPE:
+                return Types.BINARY;
+            case VARBINARYTYPE:
+            case BIGVARBINARYTYPE:
+                return length == TypeInfo.MAX_LENGTH ? Types.LONGVARBINARY : Types.VARBINARY;
+            case IMAGETYPE:
+                return Types.LONGVARBINARY;
+            case XMLTYPE:
+                return Types.SQLXML;
+            default:
+                return Types.NULL;
+        }
+    }
+
+    /**
+     * Read a PLP value from current position as a stream over its chunks, and move cursor past it. Chunks are only
+     * walked to find the end of the value, their bytes stay in the segments of this message until the stream is read,
+     * see section <tt>Partially Length-prefixed Bytes</tt> in this doc: <a href=
      * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/3f983fde-0509-485a-8c40-a9fa6679a828">Data
      * Type Dependent Data Streams</a>
      *
-     * @throws IOException
+     * @return the stream, or {@code null} if PLP_NULL
      * @throws PacketRWException
+     * @throws IOException
      */
-    private byte[] readPLPBytes()
+    public PlpInputStream readPLPStream()
             throws PacketRWException, IOException
     {
         // partially length-prefixed
         // PLP_NULL
         // /
         // ((ULONGLONGLEN / UNKNOWN_PLP_LEN) *PLP_CHUNK PLP_TERMINATOR)
+        int start = cursor + Long.BYTES;
+        long length = skipPLP();
+        return length == NULL_LENGTH ? null : new PlpInputStream(this, start, length);
+    }
+
+    /**
+     * Skip a PLP value from current position, walking its chunks.
+     *
+     * @return total length of the value, or {@link #NULL_LENGTH} if PLP_NULL
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private long skipPLP()
+            throws PacketRWException, IOException
+    {
         long totalLen = readLong();
         if (totalLen == -1) {
             // PLP_NULL = %xFFFFFFFFFFFFFFFF
-            return null;
+            return NULL_LENGTH;
         }
 
         // PLP_CHUNK = ULONGLEN 1*BYTE
         // PLP_TERMINATOR = %x00000000
-        ByteArrayOutputStream out = new ByteArrayOutputStream(buffer.length);
-        int len = 0;
-        byte[] bytes = null;
+        long length = 0;
+        int len;
         while ((len = readInt()) != 0) {
-            bytes = new byte[len];
-            read(bytes);
-            out.write(bytes);
+            skip(len);
+            length += len;
         }
         // validate
-        if (totalLen != -2 && totalLen != out.size()) {
+        if (totalLen != -2 && totalLen != length) {
             throw new PacketRWException("Prtially length-fixed bytes length is marked as %d, but %d bytes are read.",
-                    totalLen, out.size());
+                    totalLen, length);
+        }
+        return length;
+    }
+
+    /**
+     * Read a PLP value from current position, and move cursor, its chunks are copied once into the returned array.
+     *
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     * @see #readPLPStream()
+     */
+    private byte[] readPLPBytes()
+            throws PacketRWException, IOException
+    {
+        PlpInputStream plp = readPLPStream();
+        if (plp == null) {
+            return null;
+        }
+        if (plp.getLength() > Integer.MAX_VALUE - 8) {
+            throw new PacketRWException("PLP value of %d bytes is too large to be read whole.", plp.getLength());
         }
 
-        return out.toByteArray();
+        byte[] bytes = new byte[(int) plp.getLength()];
+        plp.readNBytes(bytes, 0, bytes.length);
+        return bytes;
     }
 
     /**
@@ -1292,12 +2110,21 @@ public class PacketDataInput
             throw new NullPointerException("Parameter x is null.");
         }
 
-        if (cursor + x.length > bufLen) {
+        if (x.length == 0) {
+            // nothing to read, e.g. rest of an empty message, which has no segment at all
+            return x;
+        }
+        if (cursor + x.length <= segEnd) {
+            // all bytes are in current segment
+            seg.get(cursor - segStart, x, 0, x.length);
+        }
+        else if (fill((long) cursor + x.length)) {
+            copy(cursor, x, 0, x.length);
+        }
+        else {
             throw new PacketRWException(String.format(
                     "EOM exception, cursor + x.length > bufLen: %d + %d > %d.", cursor, x.length, bufLen));
         }
-
-        System.arraycopy(buffer, cursor, x, 0, x.length);
         cursor += x.length;
 
         return x;
@@ -1320,17 +2147,171 @@ public class PacketDataInput
             throw new NullPointerException("Parameter bytes is null.");
         }
 
-        if (pos < 0 || pos > bufLen) {
+        if (pos < 0 || !fill(pos)) {
             throw new IndexOutOfBoundsException(
                     String.format("Parameter pos %d is out of bounds 0 - %d.", pos, bufLen));
         }
-        if (pos + x.length > bufLen) {
+        if (!fill((long) pos + x.length)) {
             throw new PacketRWException(String.format(
                     "EOM exception, pos + x.length > bufLen: %d + %d > %d.", pos, x.length, bufLen));
         }
 
-        System.arraycopy(buffer, pos, x, 0, x.length);
+        copy(pos, x, 0, x.length);
 
         return x;
     }
+
+    //
+    // packet segments
+    //
+
+    /**
+     * Pull packets from {@link #reader} until at least {@code end} bytes are received, or EOM is reached.
+     *
+     * @param end
+     * @return whether {@code end} bytes are available
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private boolean fill(long end)
+            throws PacketRWException, IOException
+    {
+        while (bufLen < end && !complete) {
+            nextSegment();
+        }
+        return bufLen >= end;
+    }
+
+    private void nextSegment()
+            throws PacketRWException, IOException
+    {
+        store.append(reader.nextPacket());
+        bufLen = store.size();
+        complete = reader.isEOM();
+    }
+
+    /**
+     * Make the segment containing {@code pos} current.
+     *
+     * @param pos
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void moveSegment(int pos)
+            throws PacketRWException, IOException
+    {
+        if (!fill(pos + 1L)) {
+            // reach EOM
+            throw new PacketRWException("EOM exception, cursor is placed at the end of message.");
+        }
+
+        int i = store.locate(pos);
+        seg = store.segment(i);
+        segStart = store.offset(i);
+        segEnd = segStart + seg.limit();
+    }
+
+    /**
+     * Current segment no longer contains cursor, it will be located again by next read.
+     */
+    private void invalidateSegment()
+    {
+        seg = null;
+        segStart = 0;
+        segEnd = 0;
+    }
+
+    /**
+     * Decode {@code len} bytes starting at message offset {@code pos} as UTF-16LE.
+     *
+     * @param pos
+     * @param len
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private String decodeUTF16(int pos, int len)
+            throws PacketRWException, IOException
+    {
+        return decode(pos, len, csUTF16LE);
+    }
+
+    /**
+     * Decode {@code len} bytes starting at message offset {@code pos} with {@code cs}. Bytes within one segment are
+     * decoded in place, whether the segment is on heap or not, only bytes crossing segments are copied first.
+     *
+     * @param pos
+     * @param len
+     * @param cs
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private String decode(int pos, int len, Charset cs)
+            throws PacketRWException, IOException
+    {
+        if (pos < 0 || len < 0) {
+            throw new IndexOutOfBoundsException(
+                    String.format("Parameter pos %d or len %d is out of bounds 0 - %d.", pos, len, bufLen));
+        }
+        if (!fill((long) pos + len)) {
+            throw new PacketRWException(String.format(
+                    "EOM exception, pos + len > bufLen: %d + %d > %d.", pos, len, bufLen));
+        }
+        if (len == 0) {
+            return "";
+        }
+
+        int i = store.locate(pos);
+        ByteBuffer b = store.segment(i);
+        int p = pos - store.offset(i);
+        if (p + len > b.limit()) {
+            byte[] bytes = new byte[len];
+            copy(pos, bytes, 0, len);
+            return new String(bytes, cs);
+        }
+        else if (b.hasArray()) {
+            return new String(b.array(), b.arrayOffset() + p, len, cs);
+        }
+        else if (cs != csUTF16LE) {
+            byte[] bytes = new byte[len];
+            b.get(p, bytes);
+            return new String(bytes, cs);
+        }
+        else {
+            // segments are little-endian
+            char[] chars = new char[len / 2];
+            for (int k = 0; k < chars.length; k++) {
+                chars[k] = b.getChar(p + k * 2);
+            }
+            return new String(chars);
+        }
+    }
+
+    /**
+     * Copy {@code len} received bytes starting at message offset {@code pos} into {@code x}.
+     *
+     * @param pos
+     * @param x
+     * @param off
+     * @param len
+     */
+    void copy(int pos, byte[] x, int off, int len)
+    {
+        if (len == 0) {
+            return;
+        }
+
+        int i = store.locate(pos);
+        while (len > 0) {
+            ByteBuffer b = store.segment(i);
+            int p = pos - store.offset(i);
+            int n = Math.min(len, b.limit() - p);
+            b.get(p, x, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+            i++;
+        }
+    }
 }
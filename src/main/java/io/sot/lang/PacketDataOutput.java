@@ -1,8 +1,15 @@
 package io.sot.lang;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.sql.Date;
@@ -11,19 +18,31 @@ import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
-import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.TimeZone;
 
 /**
  * <p>
- * <code>PacketDataOutput</code> wraps a byte array that will be written to outbound TDS packet data stream (excluding
- * packet header), and defines methods to write data to it.
+ * <code>PacketDataOutput</code> wraps a packet buffer that will be written to outbound TDS packet data stream, and
+ * defines methods to write data to it.
+ * </p>
+ * <p>
+ * The first {@link PacketHeader#LENGTH} bytes of the buffer are reserved for the packet header, which is patched in
+ * place by {@link PacketWriter} before the whole packet is sent. The buffer is pooled and never cleared, only bytes up
+ * to {@link #size()} are sent. All positions used by this class are relative to the
+ * packet data, i.e. excluding packet header.
  * </p>
  * <p>
  * It provides both stream write methods, e.g. {@link #write(GenUByte)} and random access write methods, e.g.
  * {@link #write(int, GenUByte)}.
  * </p>
  * <p>
+ * Fixed-width values, e.g. integers, floats, dates and length prefixes, are stored little-endian straight into the
+ * packet buffer with a single bounds check, and allocate nothing; they only fall back to byte by byte writes when a
+ * value crosses a packet boundary.
+ * </p>
+ * <p>
  * For each write method, {@link PacketRWException} will raise if writing fails, and {@code IOException} if underlying
  * output is broken.
  * </p>
@@ -42,18 +61,51 @@ public class PacketDataOutput
 {
     private static final Charset CS_UTF16LE = StandardCharsets.UTF_16LE;
 
+    private static final int CHAR_CHUNK = 256;
+
+    /**
+     * PLP_NULL, the total length of a NULL PLP value.
+     */
+    private static final long PLP_NULL = 0xFFFFFFFFFFFFFFFFL;
+
+    /**
+     * UNKNOWN_PLP_LEN, the total length of a PLP value streamed in chunks.
+     */
+    private static final long UNKNOWN_PLP_LEN = 0xFFFFFFFFFFFFFFFEL;
+
+    /**
+     * Size of chunk buffers of streamed PLP values, in chars or bytes.
+     */
+    private static final int PLP_CHUNK = 4096;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    /**
+     * Epoch milliseconds of 1582-10-15, the first day of Gregorian calendar, before which {@code java.sql} values are
+     * Julian dates and are written through {@code java.time}.
+     */
+    private static final long GREGORIAN_CUTOVER = -12219292800000L;
+
+    // little-endian views, valid for both heap and direct buffers
+    private static final VarHandle SHORT_LE = MethodHandles.byteBufferViewVarHandle(short[].class,
+            java.nio.ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteBufferViewVarHandle(int[].class,
+            java.nio.ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_LE = MethodHandles.byteBufferViewVarHandle(long[].class,
+            java.nio.ByteOrder.LITTLE_ENDIAN);
+
     /**
      * The parent {@linkplain PacketWriter}.
      */
     private final PacketWriter packetWriter;
     /**
-     * Byte array.
+     * Packet buffer, including reserved header.
      */
-    private final byte[] buffer;
+    private ByteBuffer buffer;
     /**
-     * Length of buffer.
+     * Length of packet data, excluding header.
      */
-    private final int bufLen;
+    private int bufLen;
     /**
      * Current cursor.
      */
@@ -66,19 +118,44 @@ public class PacketDataOutput
      * Size of data that has been written.
      */
     private int size;
+    /**
+     * Little-endian char views of buffer, from an even and from an odd byte offset, created on first string write.
+     */
+    private CharBuffer evenChars;
+    private CharBuffer oddChars;
+    /**
+     * Chunk of the string being written.
+     */
+    private final char[] chars = new char[CHAR_CHUNK];
+    /**
+     * Default time zone, in which {@code java.sql} date and time values are written, taken once rather than cloned per
+     * value.
+     */
+    private final TimeZone zone = TimeZone.getDefault();
+    /**
+     * Chunk buffers of the PLP value being streamed, created on first use, so that a value of any length takes no more
+     * memory than a chunk.
+     */
+    private char[] plpChars;
+    private CharBuffer plpCharSeq;
+    private byte[] plpBytes;
 
-    public PacketDataOutput(PacketWriter w, int bufferSize)
+    /**
+     * @param w
+     * @param buffer packet buffer, its capacity is the packet size including header
+     */
+    public PacketDataOutput(PacketWriter w, ByteBuffer buffer)
     {
         this.packetWriter = w;
-        this.bufLen = bufferSize;
-        this.buffer = new byte[this.bufLen];
+        this.buffer = buffer;
+        this.bufLen = buffer.capacity() - PacketHeader.LENGTH;
         this.cursor = 0;
         this.mark = 0;
         this.size = 0;
     }
 
     /**
-     * Get the length of this data (including header).
+     * Get the length of data of the current packet, excluding header, which is reserved ahead of it in the buffer.
      *
      * @return
      */
@@ -88,17 +165,27 @@ public class PacketDataOutput
     }
 
     /**
-     * Get the data written to this instance.
+     * Get a copy of the data written to this instance.
      *
      * @return
      */
     public byte[] getData()
     {
         byte[] b = new byte[size];
-        System.arraycopy(buffer, 0, b, 0, b.length);
+        buffer.get(PacketHeader.LENGTH, b);
         return b;
     }
 
+    /**
+     * Get the packet buffer, including reserved header.
+     *
+     * @return
+     */
+    public ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
     /**
      * Get the available bytes to write from current cursor to end.
      *
@@ -171,37 +258,37 @@ public class PacketDataOutput
     public void write(short x)
             throws PacketRWException, IOException
     {
-        _write(toBytes(x));
+        _writeShort(x);
     }
 
     public void write(int pos, short x)
             throws PacketRWException, IOException
     {
-        _write(pos, toBytes(x));
+        _writeShort(pos, x);
     }
 
     public void write(int x)
             throws PacketRWException, IOException
     {
-        _write(toBytes(x));
+        _writeInt(x);
     }
 
     public void write(int pos, int x)
             throws PacketRWException, IOException
     {
-        _write(pos, toBytes(x));
+        _writeInt(pos, x);
     }
 
     public void write(long x)
             throws PacketRWException, IOException
     {
-        _write(toBytes(x));
+        _writeLong(x);
     }
 
     public void write(int pos, long x)
             throws PacketRWException, IOException
     {
-        _write(pos, toBytes(x));
+        _writeLong(pos, x);
     }
 
     public void write(byte[] bytes)
@@ -219,15 +306,13 @@ public class PacketDataOutput
     public void write(String x)
             throws PacketRWException, IOException
     {
-        byte[] b = CS_UTF16LE.encode(x).array();
-        _write(b);
+        _writeChars(x);
     }
 
     public void write(int pos, String x)
             throws PacketRWException, IOException
     {
-        byte[] b = CS_UTF16LE.encode(x).array();
-        _write(pos, b);
+        _writeChars(pos, x);
     }
 
     //
@@ -273,37 +358,37 @@ public class PacketDataOutput
     public void write(GenUShort x)
             throws PacketRWException, IOException
     {
-        _write(toBytes(x.x));
+        _writeShort(x.x);
     }
 
     public void write(int pos, GenUShort x)
             throws PacketRWException, IOException
     {
-        _write(pos, toBytes(x.x));
+        _writeShort(pos, x.x);
     }
 
     public void write(GenLong x)
             throws PacketRWException, IOException
     {
-        _write(toBytes(x.x));
+        _writeInt(x.x);
     }
 
     public void write(int pos, GenLong x)
             throws PacketRWException, IOException
     {
-        _write(pos, toBytes(x.x));
+        _writeInt(pos, x.x);
     }
 
     public void write(GenLongLong x)
             throws PacketRWException, IOException
     {
-        _write(toBytes(x.x));
+        _writeLong(x.x);
     }
 
     public void write(int pos, GenLongLong x)
             throws PacketRWException, IOException
     {
-        _write(pos, toBytes(x.x));
+        _writeLong(pos, x.x);
     }
 
     public void write(GenInteger<?> x)
@@ -314,13 +399,13 @@ public class PacketDataOutput
                 _write(((GenUByte) x).x);
                 break;
             case GenUShort.LENGTH:
-                _write(toBytes(((GenUShort) x).x));
+                _writeShort(((GenUShort) x).x);
                 break;
             case GenLong.LENGTH:
-                _write(toBytes(((GenLong) x).x));
+                _writeInt(((GenLong) x).x);
                 break;
             case GenLongLong.LENGTH:
-                _write(toBytes(((GenLongLong) x).x));
+                _writeLong(((GenLongLong) x).x);
                 break;
         }
     }
@@ -333,13 +418,13 @@ public class PacketDataOutput
                 _write(pos, ((GenUByte) x).x);
                 break;
             case GenUShort.LENGTH:
-                _write(pos, toBytes(((GenUShort) x).x));
+                _writeShort(pos, ((GenUShort) x).x);
                 break;
             case GenLong.LENGTH:
-                _write(pos, toBytes(((GenLong) x).x));
+                _writeInt(pos, ((GenLong) x).x);
                 break;
             case GenLongLong.LENGTH:
-                _write(pos, toBytes(((GenLongLong) x).x));
+                _writeLong(pos, ((GenLongLong) x).x);
                 break;
         }
     }
@@ -373,71 +458,93 @@ public class PacketDataOutput
     public void write(GenUSVarByte x)
             throws PacketRWException, IOException
     {
-        _write(toBytes((short) x.x.length));
+        _writeShort((short) x.x.length);
         _write(x.x);
     }
 
     public void write(int pos, GenUSVarByte x)
             throws PacketRWException, IOException
     {
-        _write(pos, toBytes((short) x.x.length));
+        _writeShort(pos, (short) x.x.length);
         _write(pos + GenUShort.LENGTH, x.x);
     }
 
     public void write(GenLVarByte x)
             throws PacketRWException, IOException
     {
-        _write(toBytes(x.x.length));
+        _writeInt(x.x.length);
         _write(x.x);
     }
 
     public void write(int pos, GenLVarByte x)
             throws PacketRWException, IOException
     {
-        _write(pos, toBytes(x.x.length));
+        _writeInt(pos, x.x.length);
         _write(pos + GenLong.LENGTH, x.x);
     }
 
     public void write(GenUnicodeStream x)
             throws PacketRWException, IOException
     {
-        byte[] b = CS_UTF16LE.encode(x.x).array();
-        _write(b);
+        _writeChars(x.x);
     }
 
     public void write(int pos, GenUnicodeStream x)
             throws PacketRWException, IOException
     {
-        byte[] b = CS_UTF16LE.encode(x.x).array();
-        _write(pos, b);
+        _writeChars(pos, x.x);
     }
 
     public void write(GenBVarChar x)
             throws PacketRWException, IOException
     {
         _write((byte) x.x.length());
-        _write(CS_UTF16LE.encode(x.x).array());
+        _writeChars(x.x);
     }
 
     public void write(int pos, GenBVarChar x)
             throws PacketRWException, IOException
     {
         _write(pos, (byte) x.x.length());
-        _write(pos + GenUByte.LENGTH, CS_UTF16LE.encode(x.x).array());
+        _writeChars(pos + GenUByte.LENGTH, x.x);
     }
 
     public void write(GenUSVarChar x)
             throws PacketRWException, IOException
     {
-        _write(toBytes((short) x.x.length()));
-        _write(CS_UTF16LE.encode(x.x).array());
+        _writeShort((short) x.x.length());
+        _writeChars(x.x);
     }
 
     public void write(int pos, GenUSVarChar x)
             throws PacketRWException, IOException
     {
-        _write(pos, toBytes((short) x.x.length()));
-        _write(pos + GenUShort.LENGTH, CS_UTF16LE.encode(x.x).array());
+        _writeShort(pos, (short) x.x.length());
+        _writeChars(pos + GenUShort.LENGTH, x.x);
+    }
+
+    /**
+     * Write bytes of {@code x} from its position to its limit, starting at current cursor and rolling over to new
+     * packets as needed. {@code x} is consumed.
+     *
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public void write(ByteBuffer x)
+            throws PacketRWException, IOException
+    {
+        while (x.hasRemaining()) {
+            if (cursor == bufLen) {
+                packetWriter.beforeNewPacket();
+                clear();
+            }
+            int n = Math.min(x.remaining(), bufLen - cursor);
+            buffer.put(PacketHeader.LENGTH + cursor, x, x.position(), n);
+            x.position(x.position() + n);
+            cursor += n;
+            size = (cursor > size ? cursor : size);
+        }
     }
 
     public void write(PacketDataWriter w)
@@ -474,28 +581,29 @@ public class PacketDataOutput
                 _write(((SqlBit) x).byteValue());
                 break;
             case INT2TYPE:
-                _write(toBytes(((SqlSmallInt) x).shortValue()));
+                _writeShort(((SqlSmallInt) x).shortValue());
                 break;
             case INT4TYPE:
-                _write(toBytes(((SqlInt) x).intValue()));
+                _writeInt(((SqlInt) x).intValue());
                 break;
             case DATETIM4TYPE:
-                // ((SqlSmallDateTime)x).
+                write(ti, ((SqlDatetime) x).timestampValue(), false);
                 break;
             case FLT4TYPE:
-                _write(toBytes(Float.floatToIntBits(((SqlReal) x).floatValue())));
+                _writeInt(Float.floatToIntBits(((SqlReal) x).floatValue()));
                 break;
             case MONEYTYPE:
                 break;
             case DATETIMETYPE:
+                write(ti, ((SqlDatetime) x).timestampValue(), false);
                 break;
             case FLT8TYPE:
-                _write(toBytes(Double.doubleToLongBits(((SqlFloat) x).doubleValue())));
+                _writeLong(Double.doubleToLongBits(((SqlFloat) x).doubleValue()));
                 break;
             case MONEY4TYPE:
                 break;
             case INT8TYPE:
-                _write(toBytes(((SqlBigInt) x).longValue()));
+                _writeLong(((SqlBigInt) x).longValue());
                 break;
             case DECIMALTYPE:
                 break;
@@ -516,15 +624,15 @@ public class PacketDataOutput
                     }
                     else if (x instanceof SqlSmallInt) {
                         _write((byte) 2);
-                        _write(toBytes(((SqlSmallInt) x).shortValue()));
+                        _writeShort(((SqlSmallInt) x).shortValue());
                     }
                     else if (x instanceof SqlInt) {
                         _write((byte) 4);
-                        _write(toBytes(((SqlInt) x).intValue()));
+                        _writeInt(((SqlInt) x).intValue());
                     }
                     else if (x instanceof SqlBigInt) {
                         _write((byte) 8);
-                        _write(toBytes(((SqlBigInt) x).longValue()));
+                        _writeLong(((SqlBigInt) x).longValue());
                     }
                     else {
                         throw new IllegalArgumentException(_unexpectedSqlDataTypeValue(x.getClass(), ti.getType()));
@@ -549,14 +657,18 @@ public class PacketDataOutput
             case MONEYNTYPE:
                 break;
             case DATETIMNTYPE:
+            case DATETIME2NTYPE:
+                write(ti, x == null ? null : ((SqlDatetime) x).timestampValue(), x == null);
                 break;
             case DATENTYPE:
+                write(ti, x == null ? null : ((SqlDate) x).dateValue(), x == null);
                 break;
             case TIMENTYPE:
-                break;
-            case DATETIME2NTYPE:
+                write(ti, x == null ? null : ((SqlTime) x).timeValue(), x == null);
                 break;
             case DATETIMEOFFSETNTYPE:
+                write(ti, x == null || ((SqlDatetime) x).timestampValue() == null ? null
+                        : ((SqlDatetime) x).timestampValue().toInstant().atOffset(ZoneOffset.UTC), x == null);
                 break;
             case CHARTYPE:
                 break;
@@ -619,7 +731,7 @@ public class PacketDataOutput
             if (TypeInfo.Type.BITNTYPE == ti.getType()) {
                 _write(SqlBit.LENGTH);
             }
-            _write(new byte[] {(byte) (x ? 1 : 0)});
+            _write((byte) (x ? 1 : 0));
         }
     }
 
@@ -633,7 +745,7 @@ public class PacketDataOutput
             if (TypeInfo.Type.INTNTYPE == ti.getType()) {
                 _write(SqlTinyInt.LENGTH);
             }
-            _write(new byte[] {x});
+            _write(x);
         }
     }
 
@@ -647,7 +759,7 @@ public class PacketDataOutput
             if (TypeInfo.Type.INTNTYPE == ti.getType()) {
                 _write(SqlSmallInt.LENGTH);
             }
-            _write(toBytes(x));
+            _writeShort(x);
         }
     }
 
@@ -661,7 +773,7 @@ public class PacketDataOutput
             if (TypeInfo.Type.INTNTYPE == ti.getType()) {
                 _write(SqlInt.LENGTH);
             }
-            _write(toBytes(x));
+            _writeInt(x);
         }
     }
 
@@ -675,7 +787,7 @@ public class PacketDataOutput
             if (TypeInfo.Type.INTNTYPE == ti.getType()) {
                 _write(SqlBigInt.LENGTH);
             }
-            _write(toBytes(x));
+            _writeLong(x);
         }
     }
 
@@ -689,7 +801,7 @@ public class PacketDataOutput
             if (TypeInfo.Type.FLTNTYPE == ti.getType()) {
                 _write(SqlReal.LENGTH);
             }
-            _write(toBytes(Float.floatToIntBits(x)));
+            _writeInt(Float.floatToIntBits(x));
         }
     }
 
@@ -703,21 +815,36 @@ public class PacketDataOutput
             if (TypeInfo.Type.FLTNTYPE == ti.getType()) {
                 _write(SqlFloat.LENGTH);
             }
-            _write(toBytes(Double.doubleToLongBits(x)));
+            _writeLong(Double.doubleToLongBits(x));
         }
     }
 
-    private static final BigDecimal[] POWERS_OF_TEN = new BigDecimal[39];
+    /**
+     * Powers of ten which fit in a long, up to 10^18.
+     */
+    private static final long[] LONG_TEN_POWERS = new long[19];
 
     static {
-        for (int i = 0; i <= 38; i++) {
-            POWERS_OF_TEN[i] = new BigDecimal(BigInteger.TEN.pow(i));
+        LONG_TEN_POWERS[0] = 1;
+        for (int i = 1; i < LONG_TEN_POWERS.length; i++) {
+            LONG_TEN_POWERS[i] = LONG_TEN_POWERS[i - 1] * 10;
         }
     }
 
+    /**
+     * Largest decimal magnitude, 10^38 - 1, as high and low longs.
+     */
+    private static final long MAX_DECIMAL_HIGH = 0x4B3B4CA85A86C47AL;
+    private static final long MAX_DECIMAL_LOW = 0x098A223FFFFFFFFFL;
+
     /**
      * Write decimal {@code x} based on this TDS <a href=
      * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/5e02042c-a741-4b5a-b91d-af5e236c5252">rule</a>.
+     * <p>
+     * The magnitude, rescaled to the scale of {@code ti} with the fractional digits beyond it rounded half-up as SQL
+     * Server does, is held in one long up to 18 digits, or two longs up to 38 digits, and stored little-endian straight
+     * into the packet buffer. Rescaling up is done by long multiplication, only the rare rescaling down goes through
+     * {@link BigDecimal#setScale(int, RoundingMode)}, which divides by its own cached powers of ten.
      *
      * @param ti
      * @param x
@@ -728,53 +855,86 @@ public class PacketDataOutput
     public void write(TypeInfo ti, BigDecimal x, boolean bNull)
             throws PacketRWException, IOException
     {
-        if (TypeInfo.Type.DECIMALNTYPE == ti.getType() && (bNull || x == null)) {
+        if (bNull || x == null) {
+            if (TypeInfo.Type.DECIMALNTYPE != ti.getType() && TypeInfo.Type.NUMERICNTYPE != ti.getType()) {
+                throw new PacketRWException("Unexpected null value of %s.", ti);
+            }
             _write(GenNull.BYTE_VALUE);
+            return;
         }
-        else {
-            byte s = ti.getScale().x;
 
-            // sign
-            byte sign = (byte) (x.signum() >= 0 ? 1 : 0);
-
-            // convert abs value to bytes
-            byte[] value = x.abs().multiply(POWERS_OF_TEN[s]).toBigInteger().toByteArray();
-            _swapBytes(value);
+        int shift = ti.getScale().x - x.scale();
+        BigInteger unscaled;
+        if (shift < 0) {
+            unscaled = x.setScale(ti.getScale().x, RoundingMode.HALF_UP).unscaledValue();
+            shift = 0;
+        }
+        else {
+            unscaled = x.unscaledValue();
+        }
 
-            byte[] b;
+        long high;
+        long low;
+        if (unscaled.bitLength() < Long.SIZE) {
+            high = 0;
+            low = Math.abs(unscaled.longValue());
+        }
+        else if (unscaled.bitLength() < 2 * Long.SIZE) {
+            BigInteger m = unscaled.abs();
+            high = m.shiftRight(Long.SIZE).longValue();
+            low = m.longValue();
+        }
+        else {
+            throw new PacketRWException("Decimal %s exceeds 38 digits.", x);
+        }
 
-            // length
-            if (value.length > 12) {
-                _write((byte) 17);
-                b = new byte[16];
-            }
-            else if (value.length > 8) {
-                _write((byte) 13);
-                b = new byte[12];
-            }
-            else if (value.length > 4) {
-                _write((byte) 9);
-                b = new byte[8];
-            }
-            else {
-                _write((byte) 5);
-                b = new byte[4];
+        // multiply by 10^shift, at most 10^18 at a time
+        while (shift > 0) {
+            long p = LONG_TEN_POWERS[Math.min(shift, LONG_TEN_POWERS.length - 1)];
+            long carry = Math.multiplyHigh(low, p) + ((low >> 63) & p);
+            if (high > Long.MAX_VALUE / p || high * p + carry < 0) {
+                throw new PacketRWException("Decimal %s exceeds 38 digits at scale %d.", x, ti.getScale().x);
             }
+            high = high * p + carry;
+            low = low * p;
+            shift -= Math.min(shift, LONG_TEN_POWERS.length - 1);
+        }
+        if (high > MAX_DECIMAL_HIGH || (high == MAX_DECIMAL_HIGH && Long.compareUnsigned(low, MAX_DECIMAL_LOW) > 0)) {
+            throw new PacketRWException("Decimal %s exceeds 38 digits at scale %d.", x, ti.getScale().x);
+        }
 
-            // sign
+        // length, sign, then magnitude in as few 4-byte words as it takes
+        byte sign = (byte) (x.signum() >= 0 ? 1 : 0);
+        if (high >>> 32 != 0) {
+            _write((byte) 17);
             _write(sign);
-
-            // value
-            System.arraycopy(value, 0, b, 0, value.length);
-            _write(b);
+            _writeLong(low);
+            _writeLong(high);
+        }
+        else if (high != 0) {
+            _write((byte) 13);
+            _write(sign);
+            _writeLong(low);
+            _writeInt((int) high);
+        }
+        else if (low >>> 32 != 0) {
+            _write((byte) 9);
+            _write(sign);
+            _writeLong(low);
+        }
+        else {
+            _write((byte) 5);
+            _write(sign);
+            _writeInt((int) low);
         }
     }
 
-    private static final byte[] SPACE_UTF_16LE = StandardCharsets.UTF_16LE.encode(" ").array();
-
     /**
      * Write string {@code x} based on this TDS <a href=
      * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/5e02042c-a741-4b5a-b91d-af5e236c5252">rule</a>.
+     * <p>
+     * Strings are encoded into the packet buffer as they are written, UTF-16LE for Unicode types and UTF-8 for others,
+     * fixed-length ones are padded with spaces in place.
      *
      * @param ti
      * @param x
@@ -785,66 +945,65 @@ public class PacketDataOutput
     public void write(TypeInfo ti, String x, boolean bNull)
             throws PacketRWException, IOException
     {
+        if (ti.isPlp()) {
+            _writePlp(ti, bNull ? null : x);
+        }
         // String.toCharArray(), padding blank
-        if (bNull || x == null) {
+        else if (bNull || x == null) {
             _write(GenCharBinNull.NULL_2.toBytes());
         }
         else {
             short tiLen = (short) ti.getLength().longValue();
-            byte[] value, b;
+            int length;
             switch (ti.getType()) {
                 case BIGCHARTYPE:
-                    value = x.getBytes(StandardCharsets.UTF_8);
+                    length = getUtf8Length(x, 0, x.length());
+                    if (length > (tiLen & 0xFFFF)) {
+                        throw new PacketRWException("%d bytes exceed %s.", length, ti);
+                    }
 
                     // TYPE_VARLEN
-                    _write(toBytes(tiLen));
-                    // BYTES
-                    if (value.length == tiLen) {
-                        _write(value);
-                    }
-                    else {
-                        // append spaces
-                        b = new byte[tiLen];
-                        System.arraycopy(value, 0, b, 0, value.length);
-                        Arrays.fill(b, value.length, b.length, (byte) ' ');
-                        _write(b);
+                    _writeShort(tiLen);
+                    // BYTES, padded with spaces
+                    _writeUtf8(x, 0, x.length());
+                    for (int i = length; i < (tiLen & 0xFFFF); i++) {
+                        _write((byte) ' ');
                     }
                     break;
                 case BIGVARCHARTYPE:
-                    value = x.getBytes(StandardCharsets.UTF_8);
+                    // UTF-8 may take more bytes than characters, MAX types are PLP above
+                    length = getUtf8Length(x, 0, x.length());
+                    if (length > (tiLen & 0xFFFF)) {
+                        throw new PacketRWException("%d bytes exceed %s.", length, ti);
+                    }
 
                     // TYPE_VARLEN
-                    _write(toBytes((short) value.length));
+                    _writeShort((short) length);
                     // BYTES
-                    _write(value);
+                    _writeUtf8(x, 0, x.length());
                     break;
                 case NCHARTYPE:
-                    value = CS_UTF16LE.encode(x).array();
+                    if (x.length() * 2 > (tiLen & 0xFFFF)) {
+                        throw new PacketRWException("%d characters exceed %s.", x.length(), ti);
+                    }
 
                     // TYPE_VARLEN
-                    _write(toBytes(tiLen));
-                    // BYTES
-                    if (value.length == tiLen) {
-                        _write(value);
-                    }
-                    else {
-                        // append spaces
-                        b = new byte[tiLen];
-                        System.arraycopy(value, 0, b, 0, value.length);
-                        for (int i = value.length; i < b.length; i += 2) {
-                            b[i] = SPACE_UTF_16LE[0];
-                            b[i + 1] = SPACE_UTF_16LE[1];
-                        }
-                        _write(b);
+                    _writeShort(tiLen);
+                    // BYTES, padded with spaces
+                    _writeChars(x);
+                    for (int i = x.length() * 2; i < (tiLen & 0xFFFF); i += 2) {
+                        _writeShort((short) ' ');
                     }
                     break;
                 case NVARCHARTYPE:
-                    value = CS_UTF16LE.encode(x).array();
+                    if (x.length() * 2 > (tiLen & 0xFFFF)) {
+                        throw new PacketRWException("%d characters exceed %s.", x.length(), ti);
+                    }
 
                     // TYPE_VARLEN
-                    _write(toBytes((short) value.length));
+                    _writeShort((short) (x.length() * 2));
                     // BYTES
-                    _write(value);
+                    _writeChars(x);
                     break;
                 default:
                     throw new PacketRWException("Unexpecte DataType %s", ti);
@@ -852,210 +1011,965 @@ public class PacketDataOutput
         }
     }
 
-    private static final LocalDate LOCAL_DAY_1 = LocalDate.of(1, 1, 1);
-    private static final LocalDate LOCAL_DAY_1900 = LocalDate.of(1900, 1, 1);
-
     /**
-     * Write date {@code x}, based on this TDS <a href=
-     * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/786f5b8a-f87d-4980-9070-b9b7274c681d">rule</a>.
+     * Write {@code x} of a {@code MAX} or {@code XML} type as a PLP value of known length, in a single chunk.
      *
      * @param ti
      * @param x
-     * @param bNull
      * @throws PacketRWException
      * @throws IOException
-     * @see TypeInfo#getTypeInfo(int, int, int, boolean)
      */
-    public void write(TypeInfo ti, Date x, boolean bNull)
+    private void _writePlp(TypeInfo ti, String x)
             throws PacketRWException, IOException
     {
-        if (bNull || x == null) {
-            _write(GenNull.BYTE_VALUE);
+        if (x == null) {
+            _writeLong(PLP_NULL);
+            return;
         }
-        else {
-            _write((byte) 3);
-            int days = (int) ChronoUnit.DAYS.between(LOCAL_DAY_1, x.toLocalDate());
-            _write(new byte[] {(byte) (days & 0xFF), (byte) ((days >> 8) & 0xFF), (byte) ((days >> 16) & 0xFF)});
+
+        switch (ti.getType()) {
+            case BIGVARCHARTYPE: {
+                int length = getUtf8Length(x, 0, x.length());
+                // PLP_TOTALLEN, PLP_CHUNK
+                _writeLong(length);
+                if (length > 0) {
+                    _writeInt(length);
+                    _writeUtf8(x, 0, x.length());
+                }
+                break;
+            }
+            case NVARCHARTYPE:
+            case XMLTYPE:
+                _writeLong((long) x.length() << 1);
+                if (x.length() > 0) {
+                    _writeInt(x.length() << 1);
+                    _writeChars(x);
+                }
+                break;
+            default:
+                throw new PacketRWException("Unexpecte DataType %s", ti);
         }
+        // PLP_TERMINATOR
+        _writeInt(0);
     }
 
     /**
-     * Write time {@code x}, based on this TDS <a href=
-     * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/786f5b8a-f87d-4980-9070-b9b7274c681d">rule</a>.
+     * Write {@code x} as a PLP value of {@code VARCHAR(MAX)}, UTF-8 encoded, {@code NVARCHAR(MAX)} or {@code XML},
+     * UTF-16LE encoded, streaming it in chunks of {@code UNKNOWN_PLP_LEN}, see <a href=
+     * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/3f983fde-0509-485a-8c40-a9fa6679a828">Partially
+     * Length-prefixed Data Types</a>.
+     * <p>
+     * Each chunk is as many chars as one read of {@code x} returns, up to a reused buffer, and is encoded straight into
+     * packets, so that memory does not grow with the length of the value. {@code x} is read to its end, not closed.
      *
      * @param ti
      * @param x
      * @param bNull
      * @throws PacketRWException
-     * @throws IOException
-     * @see TypeInfo#getTypeInfo(int, int, int, boolean)
+     * @throws IOException if reading {@code x} fails as well
+     * @see TypeInfo#isPlp()
      */
-    public void write(TypeInfo ti, Time x, boolean bNull)
+    public void write(TypeInfo ti, Reader x, boolean bNull)
             throws PacketRWException, IOException
     {
+        boolean utf8;
+        switch (ti.getType()) {
+            case BIGVARCHARTYPE:
+                utf8 = true;
+                break;
+            case NVARCHARTYPE:
+            case XMLTYPE:
+                utf8 = false;
+                break;
+            default:
+                throw new PacketRWException("Unexpecte DataType %s", ti);
+        }
+        if (!ti.isPlp()) {
+            throw new PacketRWException("%s is not a PLP type.", ti);
+        }
+
         if (bNull || x == null) {
-            _write(GenNull.BYTE_VALUE);
+            _writeLong(PLP_NULL);
+            return;
         }
-        else {
-            // Java support milliseconds, which maps scale = 3 in TDS
-            _write((byte) 4);
-            LocalTime lt = x.toLocalTime();
-            int ms = ((lt.getHour() * 60 + lt.getMinute()) * 60 + lt.getSecond()) * 1000 + lt.getNano() / 1000000;
-            _write(toBytes(ms));
+
+        if (plpChars == null) {
+            plpChars = new char[PLP_CHUNK];
+            plpCharSeq = CharBuffer.wrap(plpChars);
+        }
+        char[] cbuf = plpChars;
+
+        _writeLong(UNKNOWN_PLP_LEN);
+        // chars held back from previous chunk, i.e. a high surrogate to be encoded with its low one
+        int start = 0;
+        int n;
+        while ((n = x.read(cbuf, start, cbuf.length - start)) >= 0) {
+            int end = start + n;
+            int len = (utf8 && end > 0 && Character.isHighSurrogate(cbuf[end - 1])) ? end - 1 : end;
+            if (len > 0) {
+                _writePlpChunk(utf8, len);
+            }
+            start = end - len;
+            if (start > 0) {
+                cbuf[0] = cbuf[end - 1];
+            }
         }
+        if (start > 0) {
+            // unpaired at end of value
+            _writePlpChunk(utf8, start);
+        }
+        // PLP_TERMINATOR
+        _writeInt(0);
     }
 
     /**
-     * Write time {@code x}, based on this TDS <a href=
-     * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/786f5b8a-f87d-4980-9070-b9b7274c681d">rule</a>.
+     * Write the first {@code len} chars of PLP chunk buffer as a chunk.
      *
-     * @param ti
-     * @param x
-     * @param bNull
+     * @param utf8
+     * @param len
      * @throws PacketRWException
      * @throws IOException
-     * @see TypeInfo#getTypeInfo(int, int, int, boolean)
      */
-    public void write(TypeInfo ti, Timestamp x, boolean bNull)
+    private void _writePlpChunk(boolean utf8, int len)
             throws PacketRWException, IOException
     {
-        if (bNull || x == null) {
-            _write(GenNull.BYTE_VALUE);
+        if (utf8) {
+            _writeInt(getUtf8Length(plpCharSeq, 0, len));
+            _writeUtf8(plpCharSeq, 0, len);
         }
         else {
-            // 4 bytes date and 4 bytes time
-
-            LocalDateTime ldt = x.toLocalDateTime();
-            int days = (int) ChronoUnit.DAYS.between(LOCAL_DAY_1900, ldt.toLocalDate());
-            int t = ((ldt.getHour() * 60 + ldt.getMinute()) * 60 + ldt.getSecond()) * 300
-                    + (int) (ldt.getNano() * 300.0 / 1000000);
-
-            switch (ti.getType()) {
-                case DATETIMETYPE:
-                    _write(toBytes(days));
-                    _write(toBytes(t));
-                    break;
-                case DATETIMNTYPE:
-                    _write((byte) 8);
-                    _write(toBytes(days));
-                    _write(toBytes(t));
-                    break;
-                default:
-                    throw new PacketRWException("Unexpecte DataType %s", ti);
-            }
+            _writeInt(len << 1);
+            _writeChars(plpChars, 0, len);
         }
     }
 
-    //
-    // buffer writer and helper methods
-    //
-
-    public static byte[] toBytes(short x)
-    {
-        return new byte[] {(byte) x, (byte) ((x >> 8) & 0xFF)};
-    }
-
-    public static byte[] toBytes(int x)
+    /**
+     * Write {@code x} as a PLP value of {@code VARBINARY(MAX)}, streaming it in chunks of {@code UNKNOWN_PLP_LEN}, each
+     * as many bytes as one read of {@code x} returns, up to a reused buffer. {@code x} is read to its end, not closed.
+     *
+     * @param ti
+     * @param x
+     * @param bNull
+     * @throws PacketRWException
+     * @throws IOException if reading {@code x} fails as well
+     * @see #write(TypeInfo, Reader, boolean)
+     */
+    public void write(TypeInfo ti, InputStream x, boolean bNull)
+            throws PacketRWException, IOException
     {
-        return new byte[] {(byte) x, (byte) ((x >> 8) & 0xFF), (byte) ((x >> 16) & 0xFF), (byte) ((x >> 24) & 0xFF)};
-    }
+        if (ti.getType() != TypeInfo.Type.BIGVARBINARYTYPE || !ti.isPlp()) {
+            throw new PacketRWException("Unexpecte DataType %s", ti);
+        }
 
-    public static byte[] toBytes(long x)
-    {
-        return new byte[] {(byte) x, (byte) ((x >> 8) & 0xFF), (byte) ((x >> 16) & 0xFF), (byte) ((x >> 24) & 0xFF),
-                (byte) ((x >> 32) & 0xFF), (byte) ((x >> 40) & 0xFF), (byte) ((x >> 48) & 0xFF),
-                (byte) ((x >> 56) & 0xFF)};
-    }
+        if (bNull || x == null) {
+            _writeLong(PLP_NULL);
+            return;
+        }
 
-    public static byte[] toBytes(String x)
-    {
-        return CS_UTF16LE.encode(x).array();
-    }
+        if (plpBytes == null) {
+            plpBytes = new byte[PLP_CHUNK];
+        }
 
-    private void _swapBytes(byte[] b)
-    {
-        int i = 0, j = b.length - 1;
-        byte temp;
-        while (j > i) {
-            temp = b[i];
-            b[i] = b[j];
-            b[j] = temp;
-            i++;
-            j--;
+        _writeLong(UNKNOWN_PLP_LEN);
+        int n;
+        while ((n = x.read(plpBytes, 0, plpBytes.length)) >= 0) {
+            if (n > 0) {
+                _writeInt(n);
+                _write(plpBytes, 0, n);
+            }
         }
+        // PLP_TERMINATOR
+        _writeInt(0);
     }
 
     /**
-     * Write {@code x} into this output data, starting at current cursor, and move cursor by one.
+     * Write binary {@code x}, of {@code BINARY} or {@code VARBINARY} type, as a PLP value of known length if
+     * {@code VARBINARY(MAX)}.
      *
+     * @param ti
      * @param x
+     * @param bNull
      * @throws PacketRWException
      * @throws IOException
      */
-    private void _write(byte x)
+    public void write(TypeInfo ti, byte[] x, boolean bNull)
             throws PacketRWException, IOException
     {
-        if (cursor + 1 <= bufLen) {
-            // all bytes can fit into current buffer
-            buffer[cursor] = x;
-
-            cursor += 1;
-            size = (cursor > size ? cursor : size);
-        }
-        else {
-            // reach EOP
-            // notify parent
-            packetWriter.beforeNewPacket();
-
-            // reset buffer
-            Arrays.fill(buffer, (byte) 0);
-            cursor = 0;
-            size = 0;
-            mark = 0;
-
-            // write x
-            buffer[cursor] = x;
-
-            // calculate cursor & size
-            cursor += 1;
-            size = cursor;
+        int tiLen = ti.getLength() == null ? 0 : ti.getLength().intValue();
+        switch (ti.getType()) {
+            case BIGVARBINARYTYPE:
+                if (ti.isPlp()) {
+                    if (bNull || x == null) {
+                        _writeLong(PLP_NULL);
+                        return;
+                    }
+                    // PLP_TOTALLEN, PLP_CHUNK, PLP_TERMINATOR
+                    _writeLong(x.length);
+                    if (x.length > 0) {
+                        _writeInt(x.length);
+                        _write(x);
+                    }
+                    _writeInt(0);
+                }
+                else if (bNull || x == null) {
+                    _write(GenCharBinNull.NULL_2.toBytes());
+                }
+                else {
+                    if (x.length > tiLen) {
+                        throw new PacketRWException("%d bytes exceed %s.", x.length, ti);
+                    }
+                    _writeShort((short) x.length);
+                    _write(x);
+                }
+                break;
+            case BIGBINARYTYPE:
+                if (bNull || x == null) {
+                    _write(GenCharBinNull.NULL_2.toBytes());
+                }
+                else {
+                    if (x.length > tiLen) {
+                        throw new PacketRWException("%d bytes exceed %s.", x.length, ti);
+                    }
+                    // padded with zeros
+                    _writeShort((short) tiLen);
+                    _write(x);
+                    for (int i = x.length; i < tiLen; i++) {
+                        _write((byte) 0);
+                    }
+                }
+                break;
+            default:
+                throw new PacketRWException("Unexpecte DataType %s", ti);
         }
     }
 
     /**
-     * Write {@code x} into this output data, at specified {@code pos}.
+     * Write date {@code x}, based on this TDS <a href=
+     * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/786f5b8a-f87d-4980-9070-b9b7274c681d">rule</a>.
+     * <p>
+     * The date in the default time zone is taken from {@link Date#getTime()} by arithmetic, as for {@link Time} and
+     * {@link Timestamp}, without {@code java.time} values in between.
      *
-     * @param pos
+     * @param ti
      * @param x
+     * @param bNull
      * @throws PacketRWException
      * @throws IOException
+     * @see TypeInfo#getTypeInfo(int, int, int, boolean)
      */
-    private void _write(int pos, byte x)
+    public void write(TypeInfo ti, Date x, boolean bNull)
             throws PacketRWException, IOException
     {
-        if (pos + 1 <= bufLen) {
-            buffer[pos] = x;
+        if (bNull || x == null) {
+            _write(GenNull.BYTE_VALUE);
+        }
+        else if (ti.getType() == TypeInfo.Type.TIMENTYPE) {
+            throw new PacketRWException("Unexpecte DataType %s", ti);
+        }
+        else if (x.getTime() < GREGORIAN_CUTOVER) {
+            // Julian calendar of java.util.Date
+            write(ti, x.toLocalDate(), false);
         }
         else {
-            // reach EOP - don't support random write cross packets
-            throw new IOException("Encountered EOP(end of packet).");
+            writeLocal(ti, Math.floorDiv(getLocalMillis(x.getTime()), MILLIS_PER_DAY), 0);
         }
     }
 
     /**
-     * Write {@code x} into this output data, starting at current cursor, and move cursor by {@code x.length}.
+     * Write time {@code x}, based on this TDS <a href=
+     * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/786f5b8a-f87d-4980-9070-b9b7274c681d">rule</a>.
      *
+     * @param ti
      * @param x
+     * @param bNull
      * @throws PacketRWException
      * @throws IOException
+     * @see TypeInfo#getTypeInfo(int, int, int, boolean)
      */
-    private void _write(byte[] x)
+    public void write(TypeInfo ti, Time x, boolean bNull)
+            throws PacketRWException, IOException
+    {
+        if (ti.getType() != TypeInfo.Type.TIMENTYPE) {
+            throw new PacketRWException("Unexpecte DataType %s", ti);
+        }
+        if (bNull || x == null) {
+            _write(GenNull.BYTE_VALUE);
+        }
+        else {
+            // milliseconds included
+            writeLocal(ti, 0, Math.floorMod(getLocalMillis(x.getTime()), MILLIS_PER_DAY) * 1000000L);
+        }
+    }
+
+    /**
+     * Write timestamp {@code x}, based on this TDS <a href=
+     * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/786f5b8a-f87d-4980-9070-b9b7274c681d">rule</a>.
+     *
+     * @param ti
+     * @param x
+     * @param bNull
+     * @throws PacketRWException
+     * @throws IOException
+     * @see TypeInfo#getTypeInfo(int, int, int, boolean)
+     */
+    public void write(TypeInfo ti, Timestamp x, boolean bNull)
+            throws PacketRWException, IOException
+    {
+        if (bNull || x == null) {
+            _write(GenNull.BYTE_VALUE);
+        }
+        else if (ti.getType() == TypeInfo.Type.TIMENTYPE) {
+            throw new PacketRWException("Unexpecte DataType %s", ti);
+        }
+        else if (x.getTime() < GREGORIAN_CUTOVER) {
+            // Julian calendar of java.util.Date
+            write(ti, x.toLocalDateTime(), false);
+        }
+        else {
+            long local = getLocalMillis(x.getTime());
+            long millisOfDay = Math.floorMod(local, MILLIS_PER_DAY);
+            writeLocal(ti, Math.floorDiv(local, MILLIS_PER_DAY), millisOfDay / 1000 * 1000000000L + x.getNanos());
+        }
+    }
+
+    /**
+     * Write date {@code x} as {@code DATENTYPE}, or as the date of any other temporal type of {@code ti}.
+     *
+     * @param ti
+     * @param x
+     * @param bNull
+     * @throws PacketRWException
+     * @throws IOException
+     * @see DateTimeCodec
+     */
+    public void write(TypeInfo ti, LocalDate x, boolean bNull)
+            throws PacketRWException, IOException
+    {
+        if (ti.getType() != TypeInfo.Type.DATENTYPE) {
+            write(ti, bNull || x == null ? null : x.atStartOfDay(), bNull);
+        }
+        else if (bNull || x == null) {
+            _write(GenNull.BYTE_VALUE);
+        }
+        else {
+            _write((byte) 3);
+            _writeDate(DateTimeCodec.getDays(x));
+        }
+    }
+
+    /**
+     * Write time {@code x} as {@code TIMENTYPE} at the scale of {@code ti}.
+     *
+     * @param ti
+     * @param x
+     * @param bNull
+     * @throws PacketRWException
+     * @throws IOException
+     * @see DateTimeCodec
+     */
+    public void write(TypeInfo ti, LocalTime x, boolean bNull)
+            throws PacketRWException, IOException
+    {
+        if (ti.getType() != TypeInfo.Type.TIMENTYPE) {
+            throw new PacketRWException("Unexpecte DataType %s", ti);
+        }
+        if (bNull || x == null) {
+            _write(GenNull.BYTE_VALUE);
+        }
+        else {
+            int scale = ti.getScale().x;
+            int length = DateTimeCodec.getTimeLength(scale);
+            _write((byte) length);
+            _writeTime(DateTimeCodec.getTime(x.toNanoOfDay(), scale), length);
+        }
+    }
+
+    /**
+     * Write date and time {@code x} as any temporal type of {@code ti} but {@code TIMENTYPE}, as UTC for
+     * {@code DATETIMEOFFSETNTYPE}.
+     *
+     * @param ti
+     * @param x
+     * @param bNull
+     * @throws PacketRWException
+     * @throws IOException
+     * @see DateTimeCodec
+     */
+    public void write(TypeInfo ti, LocalDateTime x, boolean bNull)
+            throws PacketRWException, IOException
+    {
+        if (bNull || x == null) {
+            _write(GenNull.BYTE_VALUE);
+            return;
+        }
+
+        if (ti.getType() == TypeInfo.Type.TIMENTYPE) {
+            throw new PacketRWException("Unexpecte DataType %s", ti);
+        }
+        writeLocal(ti, x.toLocalDate().toEpochDay(), x.toLocalTime().toNanoOfDay());
+    }
+
+    /**
+     * Write date, time and offset {@code x} as {@code DATETIMEOFFSETNTYPE}, or as its local date and time for other
+     * temporal types of {@code ti}.
+     *
+     * @param ti
+     * @param x
+     * @param bNull
+     * @throws PacketRWException
+     * @throws IOException
+     * @see DateTimeCodec
+     */
+    public void write(TypeInfo ti, OffsetDateTime x, boolean bNull)
+            throws PacketRWException, IOException
+    {
+        if (ti.getType() != TypeInfo.Type.DATETIMEOFFSETNTYPE) {
+            write(ti, bNull || x == null ? null : x.toLocalDateTime(), bNull);
+        }
+        else if (bNull || x == null) {
+            _write(GenNull.BYTE_VALUE);
+        }
+        else {
+            // stored as UTC
+            long seconds = x.toEpochSecond();
+            int days = (int) (Math.floorDiv(seconds, 86400) + DateTimeCodec.DAYS_0001_TO_EPOCH);
+            long nanoOfDay = Math.floorMod(seconds, 86400) * 1000000000L + x.getNano();
+            _writeDateTime2(ti, days, nanoOfDay, x.getOffset().getTotalSeconds() / 60);
+        }
+    }
+
+    /**
+     * Write {@code epochDay} at {@code nanoOfDay} as any temporal type of {@code ti}, as UTC for
+     * {@code DATETIMEOFFSETNTYPE}, only the time for {@code TIMENTYPE}.
+     */
+    private void writeLocal(TypeInfo ti, long epochDay, long nanoOfDay)
+            throws PacketRWException, IOException
+    {
+        switch (ti.getType()) {
+            case DATETIM4TYPE:
+                _writeSmallDateTime(DateTimeCodec.getSmallDateTime(epochDay, nanoOfDay));
+                break;
+            case DATETIMETYPE:
+                _writeDateTime(DateTimeCodec.getDateTime(epochDay, nanoOfDay));
+                break;
+            case DATETIMNTYPE:
+                if (ti.getLength() != null && ti.getLength().intValue() == 4) {
+                    _write((byte) 4);
+                    _writeSmallDateTime(DateTimeCodec.getSmallDateTime(epochDay, nanoOfDay));
+                }
+                else {
+                    _write((byte) 8);
+                    _writeDateTime(DateTimeCodec.getDateTime(epochDay, nanoOfDay));
+                }
+                break;
+            case DATENTYPE:
+                _write((byte) 3);
+                _writeDate((int) (epochDay + DateTimeCodec.DAYS_0001_TO_EPOCH));
+                break;
+            case TIMENTYPE:
+                int scale = ti.getScale().x;
+                int length = DateTimeCodec.getTimeLength(scale);
+                _write((byte) length);
+                _writeTime(DateTimeCodec.getTime(nanoOfDay, scale), length);
+                break;
+            case DATETIME2NTYPE:
+            case DATETIMEOFFSETNTYPE:
+                _writeDateTime2(ti, (int) (epochDay + DateTimeCodec.DAYS_0001_TO_EPOCH), nanoOfDay, 0);
+                break;
+            default:
+                throw new PacketRWException("Unexpecte DataType %s", ti);
+        }
+    }
+
+    /**
+     * Get {@code millis} since epoch as local milliseconds of the default time zone, which {@code java.sql} date and
+     * time values are read in.
+     */
+    private long getLocalMillis(long millis)
+    {
+        return millis + zone.getOffset(millis);
+    }
+
+    private void _writeDate(int days)
+            throws PacketRWException, IOException
+    {
+        _writeShort((short) days);
+        _write((byte) (days >> 16));
+    }
+
+    private void _writeTime(long time, int length)
+            throws PacketRWException, IOException
+    {
+        if (length == 4) {
+            _writeInt((int) time);
+        }
+        else if (length == 3) {
+            _writeShort((short) time);
+            _write((byte) (time >> 16));
+        }
+        else {
+            _writeInt((int) time);
+            _write((byte) (time >> 32));
+        }
+    }
+
+    private void _writeDateTime(long dateTime)
+            throws PacketRWException, IOException
+    {
+        _writeInt((int) (dateTime >> 32));
+        _writeInt((int) dateTime);
+    }
+
+    private void _writeSmallDateTime(int smallDateTime)
+            throws PacketRWException, IOException
+    {
+        _writeShort((short) (smallDateTime >> 16));
+        _writeShort((short) smallDateTime);
+    }
+
+    /**
+     * Write {@code DATETIME2NTYPE}, or {@code DATETIMEOFFSETNTYPE} with {@code offset} minutes.
+     */
+    private void _writeDateTime2(TypeInfo ti, int days, long nanoOfDay, int offset)
+            throws PacketRWException, IOException
+    {
+        int scale = ti.getScale().x;
+        int length = DateTimeCodec.getTimeLength(scale);
+        boolean dto = ti.getType() == TypeInfo.Type.DATETIMEOFFSETNTYPE;
+        _write((byte) (length + (dto ? 5 : 3)));
+        _writeTime(DateTimeCodec.getTime(nanoOfDay, scale), length);
+        _writeDate(days);
+        if (dto) {
+            _writeShort((short) offset);
+        }
+    }
+
+    //
+    // buffer writer and helper methods
+    //
+
+    public static byte[] toBytes(short x)
+    {
+        return new byte[] {(byte) x, (byte) ((x >> 8) & 0xFF)};
+    }
+
+    public static byte[] toBytes(int x)
+    {
+        return new byte[] {(byte) x, (byte) ((x >> 8) & 0xFF), (byte) ((x >> 16) & 0xFF), (byte) ((x >> 24) & 0xFF)};
+    }
+
+    public static byte[] toBytes(long x)
+    {
+        return new byte[] {(byte) x, (byte) ((x >> 8) & 0xFF), (byte) ((x >> 16) & 0xFF), (byte) ((x >> 24) & 0xFF),
+                (byte) ((x >> 32) & 0xFF), (byte) ((x >> 40) & 0xFF), (byte) ((x >> 48) & 0xFF),
+                (byte) ((x >> 56) & 0xFF)};
+    }
+
+    public static byte[] toBytes(String x)
+    {
+        return x.getBytes(CS_UTF16LE);
+    }
+
+    /**
+     * Start a new message in {@code buffer}, which may be of another packet size than the previous one.
+     *
+     * @param buffer packet buffer, its capacity is the packet size including header
+     */
+    void reset(ByteBuffer buffer)
+    {
+        if (buffer != this.buffer) {
+            evenChars = null;
+            oddChars = null;
+        }
+        this.buffer = buffer;
+        this.bufLen = buffer.capacity() - PacketHeader.LENGTH;
+        clear();
+    }
+
+    /**
+     * Reset packet data after current packet is sent, stale bytes are left in buffer and overwritten by next packet.
+     */
+    private void clear()
+    {
+        cursor = 0;
+        size = 0;
+        mark = 0;
+    }
+
+    /**
+     * Write {@code x} into this output data, starting at current cursor, and move cursor by one.
+     *
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _write(byte x)
+            throws PacketRWException, IOException
+    {
+        if (cursor + 1 <= bufLen) {
+            // all bytes can fit into current buffer
+            buffer.put(PacketHeader.LENGTH + cursor, x);
+
+            cursor += 1;
+            size = (cursor > size ? cursor : size);
+        }
+        else {
+            // reach EOP
+            // notify parent
+            packetWriter.beforeNewPacket();
+
+            // reset buffer
+            clear();
+
+            // write x
+            buffer.put(PacketHeader.LENGTH + cursor, x);
+
+            // calculate cursor & size
+            cursor += 1;
+            size = cursor;
+        }
+    }
+
+    /**
+     * Write {@code x} into this output data, at specified {@code pos}.
+     *
+     * @param pos
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _write(int pos, byte x)
+            throws PacketRWException, IOException
+    {
+        if (pos + 1 <= bufLen) {
+            buffer.put(PacketHeader.LENGTH + pos, x);
+        }
+        else {
+            // reach EOP - don't support random write cross packets
+            throw new IOException("Encountered EOP(end of packet).");
+        }
+    }
+
+    /**
+     * Write {@code x} little-endian into this output data, starting at current cursor, and move cursor by two.
+     *
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _writeShort(short x)
+            throws PacketRWException, IOException
+    {
+        if (cursor + GenUShort.LENGTH <= bufLen) {
+            SHORT_LE.set(buffer, PacketHeader.LENGTH + cursor, x);
+            cursor += GenUShort.LENGTH;
+            size = (cursor > size ? cursor : size);
+        }
+        else {
+            _write((byte) x);
+            _write((byte) (x >> 8));
+        }
+    }
+
+    /**
+     * Write {@code x} little-endian into this output data, starting at current cursor, and move cursor by four.
+     *
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _writeInt(int x)
+            throws PacketRWException, IOException
+    {
+        if (cursor + GenLong.LENGTH <= bufLen) {
+            INT_LE.set(buffer, PacketHeader.LENGTH + cursor, x);
+            cursor += GenLong.LENGTH;
+            size = (cursor > size ? cursor : size);
+        }
+        else {
+            _writeShort((short) x);
+            _writeShort((short) (x >> 16));
+        }
+    }
+
+    /**
+     * Write {@code x} little-endian into this output data, starting at current cursor, and move cursor by eight.
+     *
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _writeLong(long x)
+            throws PacketRWException, IOException
+    {
+        if (cursor + GenLongLong.LENGTH <= bufLen) {
+            LONG_LE.set(buffer, PacketHeader.LENGTH + cursor, x);
+            cursor += GenLongLong.LENGTH;
+            size = (cursor > size ? cursor : size);
+        }
+        else {
+            _writeInt((int) x);
+            _writeInt((int) (x >> 32));
+        }
+    }
+
+    /**
+     * Write {@code x} little-endian into this output data, at specified {@code pos}.
+     *
+     * @param pos
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _writeShort(int pos, short x)
+            throws PacketRWException, IOException
+    {
+        checkRandomWrite(pos, GenUShort.LENGTH);
+        SHORT_LE.set(buffer, PacketHeader.LENGTH + pos, x);
+    }
+
+    /**
+     * Write {@code x} little-endian into this output data, at specified {@code pos}.
+     *
+     * @param pos
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _writeInt(int pos, int x)
+            throws PacketRWException, IOException
+    {
+        checkRandomWrite(pos, GenLong.LENGTH);
+        INT_LE.set(buffer, PacketHeader.LENGTH + pos, x);
+    }
+
+    /**
+     * Write {@code x} little-endian into this output data, at specified {@code pos}.
+     *
+     * @param pos
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _writeLong(int pos, long x)
+            throws PacketRWException, IOException
+    {
+        checkRandomWrite(pos, GenLongLong.LENGTH);
+        LONG_LE.set(buffer, PacketHeader.LENGTH + pos, x);
+    }
+
+    /**
+     * Write {@code x} UTF-16LE into this output data, starting at current cursor, rolling over to new packets as needed.
+     * <p>
+     * Chars are copied a chunk at a time out of {@code x}, which inflates Latin-1 compact strings with an intrinsic,
+     * then stored by a bulk put into a char view of the buffer. Only a char crossing a packet boundary is written byte by
+     * byte.
+     *
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _writeChars(String x)
+            throws PacketRWException, IOException
+    {
+        int n = x.length();
+        for (int i = 0; i < n; i += CHAR_CHUNK) {
+            int len = Math.min(n - i, CHAR_CHUNK);
+            x.getChars(i, i + len, chars, 0);
+            _writeChars(chars, 0, len);
+        }
+    }
+
+    /**
+     * Write {@code len} chars of {@code x} from {@code off} UTF-16LE into this output data, starting at current cursor,
+     * rolling over to new packets as needed.
+     *
+     * @param x
+     * @param off
+     * @param len
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _writeChars(char[] x, int off, int len)
+            throws PacketRWException, IOException
+    {
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            if (cursor == bufLen) {
+                packetWriter.beforeNewPacket();
+                clear();
+            }
+            int n = Math.min(end - i, (bufLen - cursor) >> 1);
+            if (n == 0) {
+                // one byte left in packet
+                char c = x[i++];
+                _write((byte) c);
+                _write((byte) (c >> 8));
+                continue;
+            }
+
+            int p = PacketHeader.LENGTH + cursor;
+            getChars(p).put(p >> 1, x, i, n);
+            i += n;
+            cursor += n << 1;
+            size = (cursor > size ? cursor : size);
+        }
+    }
+
+    /**
+     * Write chars of {@code x} from {@code from} to {@code to} UTF-8 into this output data, starting at current cursor, rolling over to new packets as needed. An
+     * unpaired surrogate is written as {@code '?'}, as {@link String#getBytes(Charset)} does.
+     *
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     * @see #getUtf8Length(CharSequence, int, int)
+     */
+    private void _writeUtf8(CharSequence x, int from, int to)
+            throws PacketRWException, IOException
+    {
+        int n = to;
+        for (int i = from; i < n; i++) {
+            char c = x.charAt(i);
+            if (c < 0x80) {
+                _write((byte) c);
+            }
+            else if (c < 0x800) {
+                _write((byte) (0xC0 | (c >> 6)));
+                _write((byte) (0x80 | (c & 0x3F)));
+            }
+            else if (!Character.isSurrogate(c)) {
+                _write((byte) (0xE0 | (c >> 12)));
+                _write((byte) (0x80 | ((c >> 6) & 0x3F)));
+                _write((byte) (0x80 | (c & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(x.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, x.charAt(++i));
+                _write((byte) (0xF0 | (cp >> 18)));
+                _write((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                _write((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                _write((byte) (0x80 | (cp & 0x3F)));
+            }
+            else {
+                _write((byte) '?');
+            }
+        }
+    }
+
+    /**
+     * Get the length of chars of {@code x} from {@code from} to {@code to} UTF-8 encoded by
+     * {@link #_writeUtf8(CharSequence, int, int)}.
+     *
+     * @param x
+     * @param from
+     * @param to
+     * @return
+     */
+    private static int getUtf8Length(CharSequence x, int from, int to)
+    {
+        int n = to;
+        int length = n - from;
+        for (int i = from; i < n; i++) {
+            char c = x.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    length++;
+                }
+                else if (!Character.isSurrogate(c)) {
+                    length += 2;
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(x.charAt(i + 1))) {
+                    // 4 bytes for 2 chars
+                    length += 2;
+                    i++;
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Write {@code x} UTF-16LE into this output data, at specified {@code pos}.
+     *
+     * @param pos
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _writeChars(int pos, String x)
+            throws PacketRWException, IOException
+    {
+        int n = x.length();
+        checkRandomWrite(pos, n << 1);
+        for (int i = 0; i < n; i += CHAR_CHUNK) {
+            int len = Math.min(n - i, CHAR_CHUNK);
+            x.getChars(i, i + len, chars, 0);
+            int p = PacketHeader.LENGTH + pos + (i << 1);
+            getChars(p).put(p >> 1, chars, 0, len);
+        }
+    }
+
+    /**
+     * Get the char view of buffer in which char index {@code p >> 1} is at byte {@code p}.
+     *
+     * @param p
+     * @return
+     */
+    private CharBuffer getChars(int p)
+    {
+        if ((p & 1) == 0) {
+            if (evenChars == null) {
+                evenChars = buffer.duplicate().clear().order(java.nio.ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+            }
+            return evenChars;
+        }
+        if (oddChars == null) {
+            oddChars = buffer.duplicate().clear().position(1).slice().order(java.nio.ByteOrder.LITTLE_ENDIAN)
+                    .asCharBuffer();
+        }
+        return oddChars;
+    }
+
+    private void checkRandomWrite(int pos, int length)
+            throws IOException
+    {
+        if (pos + length > bufLen) {
+            // reach EOP - don't support random write cross packets
+            throw new IOException("Encountered EOP(end of packet).");
+        }
+    }
+
+    /**
+     * Write {@code x} into this output data, starting at current cursor, and move cursor by {@code x.length}.
+     *
+     * @param x
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _write(byte[] x)
+            throws PacketRWException, IOException
+    {
+        _write(x, 0, x.length);
+    }
+
+    /**
+     * Write {@code len} bytes of {@code x} from {@code off} into this output data, starting at current cursor, and move
+     * cursor by {@code len}.
+     *
+     * @param x
+     * @param off
+     * @param len
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    private void _write(byte[] x, int off, int len)
             throws PacketRWException, IOException
     {
-        if (cursor + x.length <= bufLen) {
+        if (cursor + len <= bufLen) {
             // all bytes can fit into current buffer
-            System.arraycopy(x, 0, buffer, cursor, x.length);
-            cursor += x.length;
+            buffer.put(PacketHeader.LENGTH + cursor, x, off, len);
+            cursor += len;
             size = (cursor > size ? cursor : size);
         }
         else {
@@ -1064,21 +1978,18 @@ public class PacketDataOutput
 
             while (true) {
                 // write bytes from current buffer
-                toWrite = Math.min(x.length - written, bufLen - cursor);
-                System.arraycopy(x, written, buffer, cursor, toWrite);
+                toWrite = Math.min(len - written, bufLen - cursor);
+                buffer.put(PacketHeader.LENGTH + cursor, x, off + written, toWrite);
                 written += toWrite;
                 cursor += toWrite;
                 size = (cursor > size ? cursor : size);
 
-                if (written < x.length) {
+                if (written < len) {
                     // notify parent before reset buffer for next packet
                     packetWriter.beforeNewPacket();
 
                     // reset buffer
-                    Arrays.fill(buffer, (byte) 0);
-                    cursor = 0;
-                    size = 0;
-                    mark = 0;
+                    clear();
                 }
                 else {
                     break;
@@ -1100,7 +2011,7 @@ public class PacketDataOutput
     {
         if (pos + x.length <= bufLen) {
             // all bytes can fit into current buffer
-            System.arraycopy(x, 0, buffer, pos, x.length);
+            buffer.put(PacketHeader.LENGTH + pos, x);
         }
         else {
             // reach EOP - don't support random write cross packets
@@ -1,8 +1,7 @@
 package io.sot.lang;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 /**
  * To implement messages on top of existing, arbitrary transport layers, a packet header is included as part of the
@@ -29,25 +28,43 @@ public class PacketHeader
     public static final short MIN_NEG_LENGTH = 512;
     public static final short MAX_NEG_LENGTH = 32767;
 
+    // decoded in place as primitives, so that reading a header allocates nothing
     private Type type;
-    private GenUByte status;
-    private GenUShort length;
-    private GenUShort SPID;
-    private GenUByte packetID;
-    private GenNull window;
+    private int status;
+    private int length;
+    private int SPID;
+    private int packetID;
+    private GenNull window = GenNull.NULL;
 
     public PacketHeader()
     {
     }
 
+    /**
+     * Create the header of a server response message of {@code type}, status and length are set by
+     * {@link PacketWriter} for each packet.
+     *
+     * @param type
+     * @return
+     */
+    public static PacketHeader response(Type type)
+    {
+        PacketHeader header = new PacketHeader();
+        header.setType(type);
+        header.setSPIDValue(0);
+        header.setPacketIDValue(1);
+        header.setWindow(GenNull.NULL);
+        return header;
+    }
+
     public void read(byte[] b)
             throws PacketRWException, IOException
     {
-        type = Type.valueOf(new GenUByte(b[PacketHeader.TYPE_POS]));
-        status = new GenUByte(b[PacketHeader.STATUS_POS]);
-        length = new GenUShort((short) (((b[LENGTH_POS] & 0xFF) << 8) | (b[LENGTH_POS + 1] & 0xFF)));
-        SPID = new GenUShort((short) (((b[SPID_POS] & 0xFF) << 8) | (b[SPID_POS + 1] & 0xFF)));
-        packetID = new GenUByte(b[PacketHeader.PACKET_ID_POS]);
+        type = Type.valueOf(b[PacketHeader.TYPE_POS] & 0xFF);
+        status = b[PacketHeader.STATUS_POS] & 0xFF;
+        length = ((b[LENGTH_POS] & 0xFF) << 8) | (b[LENGTH_POS + 1] & 0xFF);
+        SPID = ((b[SPID_POS] & 0xFF) << 8) | (b[SPID_POS + 1] & 0xFF);
+        packetID = b[PacketHeader.PACKET_ID_POS] & 0xFF;
         if (b[PacketHeader.WINDOW_POS] == GenNull.BYTE_VALUE) {
             window = GenNull.NULL;
         }
@@ -57,23 +74,67 @@ public class PacketHeader
         }
     }
 
+    /**
+     * Read header from the first {@link #LENGTH} bytes of packet buffer {@code b}, without moving its position.
+     *
+     * @param b
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public void read(ByteBuffer b)
+            throws PacketRWException, IOException
+    {
+        type = Type.valueOf(b.get(PacketHeader.TYPE_POS) & 0xFF);
+        status = b.get(PacketHeader.STATUS_POS) & 0xFF;
+        length = ((b.get(LENGTH_POS) & 0xFF) << 8) | (b.get(LENGTH_POS + 1) & 0xFF);
+        SPID = ((b.get(SPID_POS) & 0xFF) << 8) | (b.get(SPID_POS + 1) & 0xFF);
+        packetID = b.get(PacketHeader.PACKET_ID_POS) & 0xFF;
+        if (b.get(PacketHeader.WINDOW_POS) == GenNull.BYTE_VALUE) {
+            window = GenNull.NULL;
+        }
+        else {
+            throw new PacketRWException("WINDOW is 0x%02X instead of 0x%0sX", b.get(PacketHeader.WINDOW_POS),
+                    GenNull.BYTE_VALUE);
+        }
+    }
+
     public byte[] toByteArray()
     {
         byte[] b = new byte[PacketHeader.LENGTH];
-        b[PacketHeader.TYPE_POS] = (byte) type.value.shortValue();
-        b[PacketHeader.STATUS_POS] = (byte) status.shortValue();
+        b[PacketHeader.TYPE_POS] = type.byteValue;
+        b[PacketHeader.STATUS_POS] = (byte) status;
         // length is big-endian
-        b[PacketHeader.LENGTH_POS] = (byte) ((length.intValue() >> 8) & 0xFF);
-        b[PacketHeader.LENGTH_POS + 1] = (byte) (length.intValue() & 0xFF);
+        b[PacketHeader.LENGTH_POS] = (byte) ((length >> 8) & 0xFF);
+        b[PacketHeader.LENGTH_POS + 1] = (byte) (length & 0xFF);
         // SPID is big-endian
-        b[PacketHeader.SPID_POS] = (byte) ((SPID.intValue() >> 8) & 0xFF);
-        b[PacketHeader.SPID_POS + 1] = (byte) (SPID.intValue() & 0xFF);
-        b[PacketHeader.PACKET_ID_POS] = (byte) packetID.shortValue();
+        b[PacketHeader.SPID_POS] = (byte) ((SPID >> 8) & 0xFF);
+        b[PacketHeader.SPID_POS + 1] = (byte) (SPID & 0xFF);
+        b[PacketHeader.PACKET_ID_POS] = (byte) packetID;
         b[PacketHeader.WINDOW_POS] = window.byteValue();
 
         return b;
     }
 
+    /**
+     * Write this header in place into the first {@link #LENGTH} bytes of packet buffer {@code b}, without moving its
+     * position.
+     *
+     * @param b
+     */
+    public void write(ByteBuffer b)
+    {
+        b.put(PacketHeader.TYPE_POS, type.byteValue);
+        b.put(PacketHeader.STATUS_POS, (byte) status);
+        // length is big-endian
+        b.put(PacketHeader.LENGTH_POS, (byte) ((length >> 8) & 0xFF));
+        b.put(PacketHeader.LENGTH_POS + 1, (byte) (length & 0xFF));
+        // SPID is big-endian
+        b.put(PacketHeader.SPID_POS, (byte) ((SPID >> 8) & 0xFF));
+        b.put(PacketHeader.SPID_POS + 1, (byte) (SPID & 0xFF));
+        b.put(PacketHeader.PACKET_ID_POS, (byte) packetID);
+        b.put(PacketHeader.WINDOW_POS, window.byteValue());
+    }
+
     public Type getType()
     {
         return type;
@@ -86,42 +147,112 @@ public class PacketHeader
 
     public GenUByte getStatus()
     {
-        return status;
+        return new GenUByte((byte) status);
     }
 
     public void setStatus(GenUByte status)
     {
-        this.status = status;
+        this.status = status.intValue();
+    }
+
+    /**
+     * Get status as unsigned byte.
+     *
+     * @return
+     */
+    public int getStatusValue()
+    {
+        return status;
+    }
+
+    public void setStatusValue(int status)
+    {
+        this.status = status & 0xFF;
+    }
+
+    /**
+     * Whether this is the last packet of message.
+     *
+     * @return
+     */
+    public boolean isEOM()
+    {
+        return (status & StatusFlag.EOM.value) != 0;
     }
 
     public GenUShort getLength()
     {
-        return length;
+        return new GenUShort((short) length);
     }
 
     public void setLength(GenUShort length)
     {
-        this.length = length;
+        this.length = length.intValue();
+    }
+
+    /**
+     * Get length as unsigned short.
+     *
+     * @return
+     */
+    public int getLengthValue()
+    {
+        return length;
+    }
+
+    public void setLengthValue(int length)
+    {
+        this.length = length & 0xFFFF;
     }
 
     public GenUShort getSPID()
     {
-        return SPID;
+        return new GenUShort((short) SPID);
     }
 
     public void setSPID(GenUShort sPID)
     {
-        SPID = sPID;
+        SPID = sPID.intValue();
+    }
+
+    /**
+     * Get SPID as unsigned short.
+     *
+     * @return
+     */
+    public int getSPIDValue()
+    {
+        return SPID;
+    }
+
+    public void setSPIDValue(int sPID)
+    {
+        SPID = sPID & 0xFFFF;
     }
 
     public GenUByte getPacketID()
     {
-        return packetID;
+        return new GenUByte((byte) packetID);
     }
 
     public void setPacketID(GenUByte packetID)
     {
-        this.packetID = packetID;
+        this.packetID = packetID.intValue();
+    }
+
+    /**
+     * Get packet ID as unsigned byte.
+     *
+     * @return
+     */
+    public int getPacketIDValue()
+    {
+        return packetID;
+    }
+
+    public void setPacketIDValue(int packetID)
+    {
+        this.packetID = packetID & 0xFF;
     }
 
     public GenNull getWindow()
@@ -162,25 +293,30 @@ public class PacketHeader
         PRE_LOGIN((byte) 18, "Pre-Login", true);
 
         final private GenUByte value;
+        final byte byteValue;
         final String description;
         final boolean containsData;
 
         Type(byte value, String description, boolean containsData)
         {
             this.value = new GenUByte(value);
+            this.byteValue = value;
             this.description = description;
             this.containsData = containsData;
         }
 
-        private static final Map<GenUByte, Type> byteTypeMap = initByteTypeMap();
+        /**
+         * Types indexed by unsigned byte value, so that a header byte is decoded without boxing or hashing.
+         */
+        private static final Type[] BY_VALUE = initByValue();
 
-        private static Map<GenUByte, Type> initByteTypeMap()
+        private static Type[] initByValue()
         {
-            Map<GenUByte, Type> m = new HashMap<>();
+            Type[] a = new Type[256];
             for (Type t : Type.values()) {
-                m.put(t.value, t);
+                a[t.value.intValue()] = t;
             }
-            return m;
+            return a;
         }
 
         public GenUByte getValue()
@@ -191,7 +327,20 @@ public class PacketHeader
         public static Type valueOf(GenUByte value)
                 throws EnumValueLookupException
         {
-            Type t = byteTypeMap.get(value);
+            return valueOf(value.intValue());
+        }
+
+        /**
+         * Get type of unsigned byte {@code value}.
+         *
+         * @param value
+         * @return
+         * @throws EnumValueLookupException
+         */
+        public static Type valueOf(int value)
+                throws EnumValueLookupException
+        {
+            Type t = (value & ~0xFF) == 0 ? BY_VALUE[value] : null;
             if (t != null) {
                 return t;
             }
@@ -1,30 +1,39 @@
 package io.sot.lang;
 
-import com.google.common.io.BaseEncoding;
 import io.sot.Session;
+import io.sot.Socket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
  * {@code PacketReader} reads packet(s) out of a client request.
+ * <p>
+ * Packets are read lazily: only the first packet is read at construction, following packets are read by
+ * {@link PacketDataInput} when parsing reaches them. There is no limit on message size, payloads beyond the session
+ * memory budget are spilled by {@link MessageStore}. Packets are read into buffers of the session
+ * {@link PacketBufferPool}, so a reader must be closed once its message is processed.
+ * <p>
+ * Raw packets are recorded by the session {@link PacketCapture}, if any, trace logging only tells packet type and size.
  *
  * @author user
  */
 public class PacketReader
+        implements Closeable
 {
     private static final Logger LOG = LogManager.getLogger(PacketReader.class);
 
-    private static final int MAX_SIZE = 128 * 1024;
-
     private final Session session;
 
     private final PacketHeader header;
 
     private final PacketDataInput data;
 
+    private boolean eom;
+
     /**
      * @param session
      * @throws PacketRWException
@@ -35,7 +44,7 @@ public class PacketReader
     {
         this.session = session;
         header = new PacketHeader();
-        data = new PacketDataInput(this, readAllPackets());
+        data = new PacketDataInput(this, new MessageStore(session.getMessageBudget(), session.getBufferPool()));
     }
 
     /**
@@ -62,46 +71,81 @@ public class PacketReader
         return data.readBytes(i);
     }
 
-    private byte[] readAllPackets()
-            throws PacketRWException, IOException
+    /**
+     * Whether the last packet (EOM) of this message has been read.
+     *
+     * @return
+     */
+    public boolean isEOM()
     {
-        ByteBuffer bb = ByteBuffer.allocate(MAX_SIZE);
+        return eom;
+    }
 
-        while (true) {
-            // read data
-            byte[][] b = this.session.getSocket().nextPacket();
+    /**
+     * Read next packet of this message, update {@link #header} and return the packet buffer, positioned at its payload.
+     * The buffer is acquired from session pool by {@link Socket#read()}, and must be released by caller.
+     *
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    ByteBuffer nextPacket()
+            throws PacketRWException, IOException
+    {
+        if (eom) {
+            throw new PacketRWException("EOM exception, no more packet in this message.");
+        }
 
-            if (LOG.isTraceEnabled()) {
-                logPacket(b);
-            }
+        // read data
+        ByteBuffer b = this.session.getSocket().read();
+        try {
+            header.read(b);
 
-            header.read(b[0]);
-            if (bb.position() + b[1].length > MAX_SIZE) {
-                throw new PacketRWException(
-                        String.format("Message size %d is greater than %d.", bb.position() + b[1].length, MAX_SIZE));
+            PacketCapture capture = session.getCapture();
+            if (capture != null) {
+                capture.capture(session, PacketCapture.IN, b);
             }
-            else {
-                bb.put(b[1]);
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Read {} message, packet {}, {} bytes.", header.getType(), header.getPacketIDValue(),
+                        b.limit());
             }
+        }
+        catch (PacketRWException | IOException | RuntimeException e) {
+            this.session.getBufferPool().release(b);
+            throw e;
+        }
 
-            if ((header.getStatus().shortValue() & PacketHeader.StatusFlag.EOM.getValue()) != 0) {
-                // EOM - no more data
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("End of message (EOM), no more packet.");
-                }
-
-                // return byte array
-                byte[] ret = new byte[bb.position()];
-                bb.rewind();
-                bb.get(ret);
-                return ret;
+        if (header.isEOM()) {
+            // EOM - no more data
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("End of message (EOM), no more packet.");
             }
+            eom = true;
         }
+
+        return b.position(PacketHeader.LENGTH);
     }
 
-    private void logPacket(byte[][] b)
+    /**
+     * Drop packets of this message left unread, so that the next reader starts at the next message. Then release
+     * payloads of this message, and delete spill file if any.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close()
+            throws IOException
     {
-        LOG.trace(String.format("Read %s message, packet %s:\n", header.getType(), header.getPacketID())
-                + BaseEncoding.base16().encode(b[0]) + (b[1].length == 0 ? "" : "\n" + BaseEncoding.base16().encode(b[1])));
+        try {
+            while (!eom) {
+                session.getBufferPool().release(nextPacket());
+            }
+        }
+        catch (PacketRWException e) {
+            throw new IOException(e);
+        }
+        finally {
+            data.getStore().close();
+        }
     }
 }
@@ -1,19 +1,31 @@
 package io.sot.lang;
 
-import com.google.common.io.BaseEncoding;
 import io.sot.Session;
 import io.sot.Socket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * {@code PacketWriter} writes server response to packet(s).
+ * <p>
+ * Each packet is built in one direct buffer acquired from the session {@link PacketBufferPool}, with the header
+ * reserved at the beginning and patched in place when the packet is full or flushed. The whole packet is then handed
+ * to {@link Socket#write(ByteBuffer...)} in an array kept by the writer, so no array is allocated per packet. A writer
+ * must be closed to return its buffer once the response is flushed.
+ * <p>
+ * Packets are sized with the session packet size. A writer may write several messages, one per {@link #flush()}, and
+ * takes a size negotiated meanwhile from the next message on, since a message is never split in mixed sizes.
+ * <p>
+ * Raw packets are recorded by the session {@link PacketCapture}, if any, trace logging only tells packet type and size.
  *
  * @author user
  */
 public class PacketWriter
+        implements Closeable
 {
     private static final Logger LOG = LogManager.getLogger(PacketWriter.class);
 
@@ -25,15 +37,22 @@ public class PacketWriter
 
     private final PacketDataOutput data;
 
-    private final int bufferSize;
+    private ByteBuffer buffer;
+
+    /**
+     * Argument of {@link Socket#write(ByteBuffer...)}, reused by every packet rather than a varargs array each.
+     */
+    private final ByteBuffer[] packet = new ByteBuffer[1];
+
+    private boolean closed;
 
     public PacketWriter(Session session, PacketHeader header)
     {
         this.session = session;
         socket = this.session.getSocket();
         this.header = header;
-        this.bufferSize = this.session.getPacketSize() - PacketHeader.LENGTH;
-        data = new PacketDataOutput(this, this.bufferSize);
+        this.buffer = this.session.getBufferPool().acquire(this.session.getPacketSize());
+        data = new PacketDataOutput(this, this.buffer);
     }
 
     public PacketHeader getHeader()
@@ -52,31 +71,30 @@ public class PacketWriter
             throws IOException
     {
         // write data
-        header.setStatus(new GenUByte(PacketHeader.StatusFlag.NORMAL.getValue()));
-        header.setLength(new GenUShort((short) (PacketHeader.LENGTH + data.size())));
+        writePacket(PacketHeader.StatusFlag.NORMAL);
 
-        if (LOG.isTraceEnabled()) {
-            logPacket(new byte[][] {header.toByteArray(), data.getData()});
-        }
-
-        socket.writePacket(header, data.getData());
+        // client may cancel meanwhile
+        socket.pollAttention();
     }
 
     public void flush()
             throws IOException
     {
-        // write last part data
-        header.setStatus(new GenUByte(PacketHeader.StatusFlag.EOM.getValue()));
-        header.setLength(new GenUShort((short) (PacketHeader.LENGTH + data.size())));
+        // packets of this message are sized already, apply a size negotiated meanwhile before client may answer
+        session.applyPendingPacketSize();
 
-        if (LOG.isTraceEnabled()) {
-            logPacket(new byte[][] {header.toByteArray(), data.getData()});
-        }
-
-        socket.writePacket(header, data.getData());
+        // write last part data
+        writePacket(PacketHeader.StatusFlag.EOM);
 
         // flush
         socket.flush(header);
+
+        // ready for next message, in the packet size negotiated meanwhile if any
+        if (buffer.capacity() != session.getPacketSize()) {
+            session.getBufferPool().release(buffer);
+            buffer = session.getBufferPool().acquire(session.getPacketSize());
+        }
+        data.reset(buffer);
     }
 
     public void write(PacketDataWriter w)
@@ -85,9 +103,43 @@ public class PacketWriter
         data.write(w);
     }
 
-    private void logPacket(byte[][] b)
+    /**
+     * Return packet buffer to session pool, this writer must not be used any more.
+     */
+    @Override
+    public void close()
+    {
+        if (!closed) {
+            closed = true;
+            session.getBufferPool().release(buffer);
+        }
+    }
+
+    /**
+     * Patch header in place and write the whole packet.
+     *
+     * @param status
+     * @throws IOException
+     */
+    private void writePacket(PacketHeader.StatusFlag status)
+            throws IOException
     {
-        LOG.trace(String.format("Write %s message, packet %s:\n", header.getType(), header.getPacketID())
-                + BaseEncoding.base16().encode(b[0]) + "\n" + BaseEncoding.base16().encode(b[1]));
+        header.setStatusValue(status.getValue());
+        header.setLengthValue(PacketHeader.LENGTH + data.size());
+        header.write(buffer);
+        buffer.limit(PacketHeader.LENGTH + data.size()).position(0);
+
+        PacketCapture capture = session.getCapture();
+        if (capture != null) {
+            capture.capture(session, PacketCapture.OUT, buffer);
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Write {} message, packet {}, {} bytes.", header.getType(), header.getPacketIDValue(),
+                    buffer.limit());
+        }
+
+        packet[0] = buffer;
+        socket.write(packet);
+        buffer.clear();
     }
 }
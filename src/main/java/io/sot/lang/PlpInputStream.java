@@ -0,0 +1,232 @@
+package io.sot.lang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * {@code PlpInputStream} reads a <a href=
+ * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/3f983fde-0509-485a-8c40-a9fa6679a828">PLP</a>
+ * value in place, chunk after chunk, out of the segments of the message which carries it, see
+ * {@link PacketDataInput#readPLPStream()}.
+ * <p>
+ * Nothing is copied until the value is read, then bytes go straight from packet buffers, or spilled chunks, into the
+ * buffer of the reader, so a large RPC parameter bound by {@link #bind(PreparedStatement, int, TypeInfo)} never sits
+ * whole on heap. A stream is only valid as long as its message, i.e. until the {@link MessageStore} is closed once the
+ * message is handled.
+ *
+ * @author user
+ */
+public class PlpInputStream
+        extends InputStream
+{
+    private final PacketDataInput in;
+
+    /**
+     * Message offset of the first chunk length.
+     */
+    private final int start;
+
+    /**
+     * Total length of the value, in bytes.
+     */
+    private final long length;
+
+    /**
+     * Message offset of next byte, and of the end of its chunk.
+     */
+    private int pos;
+    private int chunkEnd;
+
+    private int markPos;
+    private int markChunkEnd;
+
+    private final byte[] one = new byte[1];
+
+    PlpInputStream(PacketDataInput in, int start, long length)
+    {
+        this.in = in;
+        this.start = start;
+        this.length = length;
+        this.pos = start;
+        this.chunkEnd = start;
+        this.markPos = start;
+        this.markChunkEnd = start;
+    }
+
+    /**
+     * Get the total length of the value, in bytes.
+     *
+     * @return
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Get a reader decoding this stream with {@code cs}.
+     *
+     * @param cs
+     * @return
+     */
+    public Reader getReader(Charset cs)
+    {
+        return new InputStreamReader(this, cs);
+    }
+
+    /**
+     * Bind this value as parameter {@code parameterIndex} of {@code ps}, of PLP type {@code ti}: {@code VARBINARY(MAX)}
+     * as a binary stream, {@code NVARCHAR(MAX)} and {@code XML} as a UTF-16LE character stream of known length, and
+     * {@code VARCHAR(MAX)} as a UTF-8 character stream.
+     *
+     * @param ps
+     * @param parameterIndex
+     * @param ti
+     * @throws SQLException
+     * @throws PacketRWException if {@code ti} is not a PLP type
+     */
+    public void bind(PreparedStatement ps, int parameterIndex, TypeInfo ti)
+            throws SQLException, PacketRWException
+    {
+        bind(ps, parameterIndex, ti.getType());
+    }
+
+    /**
+     * Bind this value as parameter {@code parameterIndex} of {@code ps}, of PLP type {@code t}.
+     *
+     * @param ps
+     * @param parameterIndex
+     * @param t
+     * @throws SQLException
+     * @throws PacketRWException if {@code t} is not a PLP type
+     * @see #bind(PreparedStatement, int, TypeInfo)
+     */
+    public void bind(PreparedStatement ps, int parameterIndex, TypeInfo.Type t)
+            throws SQLException, PacketRWException
+    {
+        switch (t) {
+            case BIGVARBINARYTYPE:
+                ps.setBinaryStream(parameterIndex, this, length);
+                break;
+            case NVARCHARTYPE:
+            case XMLTYPE:
+                ps.setCharacterStream(parameterIndex, getReader(StandardCharsets.UTF_16LE), length / 2);
+                break;
+            case BIGVARCHARTYPE:
+            case BIGCHARTYPE:
+                ps.setCharacterStream(parameterIndex, getReader(StandardCharsets.UTF_8));
+                break;
+            default:
+                throw new PacketRWException("%s is not a PLP type.", t);
+        }
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        if (!nextChunk()) {
+            return -1;
+        }
+        in.copy(pos++, one, 0, 1);
+        return one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+
+        int n = Math.min(len, chunkEnd - pos);
+        in.copy(pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n)
+            throws IOException
+    {
+        long skipped = 0;
+        while (skipped < n && nextChunk()) {
+            int k = (int) Math.min(n - skipped, chunkEnd - pos);
+            pos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+        return chunkEnd - pos;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public void mark(int readlimit)
+    {
+        markPos = pos;
+        markChunkEnd = chunkEnd;
+    }
+
+    @Override
+    public void reset()
+    {
+        pos = markPos;
+        chunkEnd = markChunkEnd;
+    }
+
+    /**
+     * Rewind to the first byte of the value, e.g. to read it again.
+     */
+    public void rewind()
+    {
+        pos = start;
+        chunkEnd = start;
+    }
+
+    /**
+     * Move to next non-empty chunk if current one is read.
+     *
+     * @return whether there is a byte to read, false at PLP_TERMINATOR
+     * @throws IOException
+     */
+    private boolean nextChunk()
+            throws IOException
+    {
+        while (pos == chunkEnd) {
+            // PLP_CHUNK = ULONGLEN 1*BYTE, PLP_TERMINATOR = %x00000000
+            int len;
+            try {
+                len = in.readInt(pos);
+            }
+            catch (PacketRWException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            if (len == 0) {
+                return false;
+            }
+            pos += 4;
+            chunkEnd = pos + len;
+        }
+        return true;
+    }
+}
@@ -7,6 +7,7 @@ import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
 
 import java.io.IOException;
+import java.sql.Types;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -31,6 +32,16 @@ import java.util.regex.Pattern;
 public class TypeInfo
         implements PacketDataWriter, PacketDataReader
 {
+    /**
+     * Length of {@code VARCHAR(MAX)}, {@code NVARCHAR(MAX)} and {@code VARBINARY(MAX)}, whose values are PLP.
+     */
+    public static final int MAX_LENGTH = 0xFFFF;
+
+    /**
+     * Largest length of {@code VARCHAR} and {@code VARBINARY} which is not {@code MAX}, in bytes.
+     */
+    private static final int MAX_NON_PLP_LENGTH = 8000;
+
     /*
      * Some static/immutable TypeInfo to be reused
      */
@@ -64,6 +75,10 @@ public class TypeInfo
     private static final TypeInfo TI_DATETIME2_N = new TypeInfo(Type.DATETIME2NTYPE, null, null, new GenScale((byte) 3));
     private static final TypeInfo TI_DATETIME_OFFSET_N = new TypeInfo(Type.DATETIMEOFFSETNTYPE, null, null, new GenScale((byte) 3));
     private static final TypeInfo TI_NVARCHAR_N = new TypeInfo(Type.NVARCHARTYPE, new GenUShort((short) JdbcDataType.NVARCHAR_LENGTH), null, null);
+    private static final TypeInfo TI_VARCHAR_MAX = new TypeInfo(Type.BIGVARCHARTYPE, new GenUShort((short) MAX_LENGTH), null, null);
+    private static final TypeInfo TI_NVARCHAR_MAX = new TypeInfo(Type.NVARCHARTYPE, new GenUShort((short) MAX_LENGTH), null, null);
+    private static final TypeInfo TI_VARBINARY_MAX = new TypeInfo(Type.BIGVARBINARYTYPE, new GenUShort((short) MAX_LENGTH), null, null);
+    private static final TypeInfo TI_XML = new TypeInfo(Type.XMLTYPE, null, null, null);
 
     @XmlAttribute
     private Type type;
@@ -116,6 +131,31 @@ public class TypeInfo
         }
     }
 
+    /**
+     * Get a copy of this with {@code collation}, which is sent instead of the server one, e.g. {@link Collation#UTF8}.
+     *
+     * @param collation
+     * @return
+     */
+    public TypeInfo withCollation(Collation collation)
+    {
+        TypeInfo ti = new TypeInfo(type, length, precision, scale);
+        ti.collation = collation;
+        return ti;
+    }
+
+    /**
+     * Check whether values of this type are <a href=
+     * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/3f983fde-0509-485a-8c40-a9fa6679a828">PLP</a>,
+     * i.e. {@code XML} and {@code MAX} types.
+     *
+     * @return
+     */
+    public boolean isPlp()
+    {
+        return type == Type.XMLTYPE || (type.lengthBytes == 2 && length != null && length.intValue() == MAX_LENGTH);
+    }
+
     public GenPrecision getPrecision()
     {
         return precision;
@@ -187,9 +227,27 @@ public class TypeInfo
             case JdbcDataType.NCHAR:
                 return new TypeInfo(Type.NCHARTYPE, new GenUShort((short) (precision * 2)), null, null);
             case JdbcDataType.VARCHAR:
-                return new TypeInfo(Type.BIGVARCHARTYPE, new GenUShort((short) precision), null, null);
+                return getVarCharTypeInfo(precision);
             case JdbcDataType.NVARCHAR:
-                return new TypeInfo(Type.NVARCHARTYPE, new GenUShort((short) (precision * 2)), null, null);
+                return getNVarCharTypeInfo(precision);
+            // large object types, as drivers report MAX ones
+            case Types.LONGVARCHAR:
+            case Types.CLOB:
+                return TI_VARCHAR_MAX;
+            case Types.LONGNVARCHAR:
+            case Types.NCLOB:
+                return TI_NVARCHAR_MAX;
+            case Types.BINARY:
+                return new TypeInfo(Type.BIGBINARYTYPE, new GenUShort((short) precision), null, null);
+            case Types.VARBINARY:
+                return precision > 0 && precision <= MAX_NON_PLP_LENGTH
+                        ? new TypeInfo(Type.BIGVARBINARYTYPE, new GenUShort((short) precision), null, null)
+                        : TI_VARBINARY_MAX;
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return TI_VARBINARY_MAX;
+            case Types.SQLXML:
+                return TI_XML;
             case JdbcDataType.DATE:
                 return TI_DATE_N;
             case JdbcDataType.TIME:
@@ -221,10 +279,8 @@ public class TypeInfo
         NOT_NULL_TYPE_INFO.put("FLOAT", TI_FLOAT8);
         NOT_NULL_TYPE_INFO.put("SMALLMONEY", TI_MONEY4);
         NOT_NULL_TYPE_INFO.put("MONEY", TI_MONEY);
-        NOT_NULL_TYPE_INFO.put("DATETIIME", TI_DATETIME);
-        NOT_NULL_TYPE_INFO.put("SMALLDATETIME", TI_DATETIME);
-        NOT_NULL_TYPE_INFO.put("DATETIME2", TI_DATETIME);
-        NOT_NULL_TYPE_INFO.put("DATETIMEOFFSET", TI_DATETIME);
+        NOT_NULL_TYPE_INFO.put("DATETIME", TI_DATETIME);
+        NOT_NULL_TYPE_INFO.put("SMALLDATETIME", TI_DATETIM4);
         NOT_NULL_TYPE_INFO.put("TIMESTAMP", TI_DATETIME);
     }
 
@@ -240,11 +296,8 @@ public class TypeInfo
         NULL_TYPE_INFO.put("REAL", TI_FLOAT4_N);
         NULL_TYPE_INFO.put("FLOAT", TI_FLOAT8_N);
         NULL_TYPE_INFO.put("DATE", TI_DATE_N);
-        NULL_TYPE_INFO.put("TIME", TI_TIME_N);
         NULL_TYPE_INFO.put("DATETIME", TI_DATETIME8_N);
-        NULL_TYPE_INFO.put("SMALLDATETIME", TI_DATETIME8_N);
-        NULL_TYPE_INFO.put("DATETIME2", TI_DATETIME8_N);
-        NULL_TYPE_INFO.put("DATETIMEOFFSET", TI_DATETIME8_N);
+        NULL_TYPE_INFO.put("SMALLDATETIME", TI_DATETIME4_N);
         NULL_TYPE_INFO.put("SMALLMONEY", TI_MONEY4_N);
         NULL_TYPE_INFO.put("MONEY", TI_MONEY8_N);
     }
@@ -295,10 +348,28 @@ public class TypeInfo
             ti = new TypeInfo(Type.NCHARTYPE, new GenUShort((short) (precision * 2)), null, null);
         }
         else if ("VARCHAR".equals(sqlType)) {
-            ti = new TypeInfo(Type.BIGVARCHARTYPE, new GenUShort((short) precision), null, null);
+            ti = getVarCharTypeInfo(precision);
         }
         else if ("NVARCHAR".equals(sqlType)) {
-            ti = new TypeInfo(Type.NVARCHARTYPE, new GenUShort((short) (precision * 2)), null, null);
+            ti = getNVarCharTypeInfo(precision);
+        }
+        else if ("VARBINARY".equals(sqlType)) {
+            ti = precision > 0 && precision <= MAX_NON_PLP_LENGTH
+                    ? new TypeInfo(Type.BIGVARBINARYTYPE, new GenUShort((short) precision), null, null)
+                    : TI_VARBINARY_MAX;
+        }
+        else if ("XML".equals(sqlType)) {
+            ti = TI_XML;
+        }
+        // fractional second scale is parsed as precision, e.g. TIME(3)
+        else if ("TIME".equals(sqlType)) {
+            ti = getTemporalTypeInfo(Type.TIMENTYPE, scale >= 0 ? scale : precision);
+        }
+        else if ("DATETIME2".equals(sqlType)) {
+            ti = getTemporalTypeInfo(Type.DATETIME2NTYPE, scale >= 0 ? scale : precision);
+        }
+        else if ("DATETIMEOFFSET".equals(sqlType)) {
+            ti = getTemporalTypeInfo(Type.DATETIMEOFFSETNTYPE, scale >= 0 ? scale : precision);
         }
 
         if (ti == null) {
@@ -308,7 +379,7 @@ public class TypeInfo
         return ti;
     }
 
-    private static final Pattern p = Pattern.compile("^([A-Z]{3,})\\s*(?:\\(\\s*(?:(\\d+|MAX)(?:\\s*,\\s*(\\d+))?)\\s*\\))?\\s*(NOT)?\\s*(?:NULL)?$");
+    private static final Pattern p = Pattern.compile("^([A-Z][A-Z0-9]{2,})\\s*(?:\\(\\s*(?:(\\d+|MAX)(?:\\s*,\\s*(\\d+))?)\\s*\\))?\\s*(NOT)?\\s*(?:NULL)?$");
 
     /**
      * Parse the date type information.
@@ -327,7 +398,9 @@ public class TypeInfo
         Matcher m = p.matcher(tiString.trim().toUpperCase());
         if (m.matches()) {
             String type = m.group(1);
-            int precision = (m.group(2) == null ? -1 : Integer.parseInt(m.group(2)));
+            // MAX as the largest length, which maps to PLP types
+            int precision = (m.group(2) == null ? -1
+                    : "MAX".equals(m.group(2)) ? Integer.MAX_VALUE : Integer.parseInt(m.group(2)));
             int scale = (m.group(3) == null ? -1 : Integer.parseInt(m.group(3)));
             boolean nullable = (m.group(4) == null);
 
@@ -412,22 +485,28 @@ public class TypeInfo
                 case CHAR:
                     return new TypeInfo(Type.BIGCHARTYPE, new GenUShort((short) precision), null, null);
                 case VARCHAR:
+                    // length -1 stands for MAX
+                    return length == -1 ? TI_VARCHAR_MAX : getVarCharTypeInfo(precision);
                 case TEXT:
                     return new TypeInfo(Type.BIGVARCHARTYPE, new GenUShort((short) precision), null, null);
                 case NCHAR:
                     return new TypeInfo(Type.NCHARTYPE, new GenUShort((short) (precision * 2)), null, null);
                 case NVARCHAR:
+                    return length == -1 ? TI_NVARCHAR_MAX : getNVarCharTypeInfo(precision);
                 case NTEXT:
                     return new TypeInfo(Type.NVARCHARTYPE, new GenUShort((short) (precision * 2)), null, null);
                 case DATE:
                     return TI_DATE_N;
                 case TIME:
-                    return TI_TIME_N;
+                    return getTemporalTypeInfo(Type.TIMENTYPE, scale);
                 case DATETIME2:
-                case DATETIME:
-                case SMALLDATETIME:
+                    return getTemporalTypeInfo(Type.DATETIME2NTYPE, scale);
                 case DATETIMEOFFSET:
+                    return getTemporalTypeInfo(Type.DATETIMEOFFSETNTYPE, scale);
+                case DATETIME:
                     return TI_DATETIME8_N;
+                case SMALLDATETIME:
+                    return TI_DATETIME4_N;
                 case UNIQUEIDENTIFIER:
                     return TI_GUID_N;
                 default:
@@ -437,6 +516,51 @@ public class TypeInfo
         }
     }
 
+    /**
+     * Get the TypeInfo of {@code varchar} of {@code precision} characters, {@code varchar(max)} beyond 8000.
+     *
+     * @param precision
+     * @return
+     */
+    private static TypeInfo getVarCharTypeInfo(int precision)
+    {
+        if (precision > MAX_NON_PLP_LENGTH) {
+            return TI_VARCHAR_MAX;
+        }
+        return new TypeInfo(Type.BIGVARCHARTYPE, new GenUShort((short) precision), null, null);
+    }
+
+    /**
+     * Get the TypeInfo of {@code nvarchar} of {@code precision} characters, {@code nvarchar(max)} beyond 4000.
+     *
+     * @param precision
+     * @return
+     */
+    private static TypeInfo getNVarCharTypeInfo(int precision)
+    {
+        if (precision > MAX_NON_PLP_LENGTH / 2) {
+            return TI_NVARCHAR_MAX;
+        }
+        return new TypeInfo(Type.NVARCHARTYPE, new GenUShort((short) (precision * 2)), null, null);
+    }
+
+    /**
+     * Get the TypeInfo of {@code time}, {@code datetime2} or {@code datetimeoffset} at {@code scale}, 7 if it is not
+     * within [0, 7].
+     *
+     * @param type
+     * @param scale
+     * @return
+     */
+    private static TypeInfo getTemporalTypeInfo(Type type, int scale)
+    {
+        if (scale == 3) {
+            return type == Type.TIMENTYPE ? TI_TIME_N
+                    : type == Type.DATETIME2NTYPE ? TI_DATETIME2_N : TI_DATETIME_OFFSET_N;
+        }
+        return new TypeInfo(type, null, null, new GenScale((byte) (scale < 0 || scale > 7 ? 7 : scale)));
+    }
+
     /*
      * https://docs.microsoft.com/en-us/sql/t-sql/data-types/decimal-and-numeric-transact-sql?view=sql-server-ver15
      */
@@ -462,6 +586,16 @@ public class TypeInfo
     {
         type = Type.valueOf(in.readGenUByte());
 
+        if (type == Type.XMLTYPE) {
+            // SCHEMA_PRESENT, then database, owning schema and collection names if present
+            if (in.readGenUByte().intValue() != 0) {
+                in.readGenBVarChar();
+                in.readGenBVarChar();
+                in.readGenUSVarChar();
+            }
+            return;
+        }
+
         switch (type.lengthBytes) {
             case 1:
                 length = in.readGenUByte();
@@ -484,6 +618,7 @@ public class TypeInfo
             }
             catch (EnumValueLookupException e) {
                 // client may send an invalid collation with all bytes set to 0
+                collation = null;
                 in.reset();
                 in.skip(Collation.LENGTH);
             }
@@ -504,12 +639,18 @@ public class TypeInfo
     {
         out.write(type.value);
 
+        if (type == Type.XMLTYPE) {
+            // SCHEMA_PRESENT, untyped
+            out.write((byte) 0);
+            return;
+        }
+
         if (type.lengthBytes > 0) {
             out.write(length);
         }
 
         if (type.hasCollation) {
-            out.write(SqlServer.COLLATION);
+            out.write(collation != null ? collation : SqlServer.COLLATION);
         }
 
         if (type.hasPrecision) {
@@ -599,12 +740,8 @@ public class TypeInfo
         IMAGETYPE(0x22, 4, false, false, false), // Image
         NTEXTTYPE(0x63, 4, true, false, false), // NText
         SSVARIANTTYPE(0x62, 4, false, false, false); // _Variant (introduced in TDS 7.2)
-        // Partially Length-Prefixed Data Types - don't support
-        //XMLTYPE
-        //BIGVARCHARTYPE
-        //BIGVARBINARYTYPE
-        //NVARCHARTYPE
-        //UDTTYPE
+        // Partially Length-Prefixed Data Types: XMLTYPE, and BIGVARCHARTYPE, BIGVARBINARYTYPE and NVARCHARTYPE of
+        // MAX_LENGTH, see isPlp(), UDTTYPE is not supported
 
         final GenUByte value;
         final int lengthBytes;
@@ -652,5 +789,38 @@ public class TypeInfo
                 throw new EnumValueLookupException(TypeInfo.class, TypeInfo.Type.class, value);
             }
         }
+
+        /**
+         * Types indexed by unsigned byte value.
+         */
+        private static final Type[] BY_VALUE = initByValue();
+
+        private static Type[] initByValue()
+        {
+            Type[] a = new Type[256];
+            for (Type t : Type.values()) {
+                a[t.value.intValue()] = t;
+            }
+            return a;
+        }
+
+        /**
+         * Get type of unsigned byte {@code value}, without boxing it.
+         *
+         * @param value
+         * @return
+         * @throws EnumValueLookupException
+         */
+        public static Type valueOf(int value)
+                throws EnumValueLookupException
+        {
+            Type t = (value & ~0xFF) == 0 ? BY_VALUE[value] : null;
+            if (t != null) {
+                return t;
+            }
+            else {
+                throw new EnumValueLookupException(TypeInfo.class, TypeInfo.Type.class, value);
+            }
+        }
     }
 }
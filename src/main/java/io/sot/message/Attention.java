@@ -3,11 +3,21 @@ package io.sot.message;
 import io.sot.Session;
 import io.sot.lang.PacketDataInput;
 import io.sot.lang.PacketDataReader;
+import io.sot.lang.PacketHeader;
 import io.sot.lang.PacketRWException;
+import io.sot.lang.PacketWriter;
+
+import java.io.IOException;
 
 /**
  * The client can interrupt and cancel the current request by sending an Attention message.
  * <p>
+ * Transports signal the attention to {@link Session} as soon as its packet arrives, which cancels the backend
+ * statement registered with {@link Session#setStatement(java.sql.Statement)}. A request being answered then stops at a
+ * token boundary, e.g. {@link Row#writeAll(PacketWriter, ColMetaData, java.sql.ResultSet)}, and ends its response with
+ * {@link #acknowledge(Session, PacketWriter)}. The message itself is handled afterwards with {@link #respond()}, which
+ * answers only if no response has acknowledged the attention, since the client expects exactly one {@code DONE_ATTN}.
+ * <p>
  * <a href=
  * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/dc28579f-49b1-4a78-9c5f-63fbda002d2e">Attention</a>
  *
@@ -16,7 +26,6 @@ import io.sot.lang.PacketRWException;
 public class Attention
         implements PacketDataReader
 {
-    @SuppressWarnings("unused")
     private final Session session;
 
     public Attention(Session session)
@@ -30,4 +39,46 @@ public class Attention
     {
         // no data
     }
+
+    /**
+     * Answer this attention with a {@code DONE_ATTN}, unless the request it interrupted did, and clear it.
+     *
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public void respond()
+            throws PacketRWException, IOException
+    {
+        if (session.resetAttention()) {
+            return;
+        }
+
+        try (PacketWriter w = new PacketWriter(session, PacketHeader.response(PacketHeader.Type.TABULAR))) {
+            writeDone(session, w);
+        }
+    }
+
+    /**
+     * End the response being written by {@code writer} with a {@code DONE_ATTN}, once it has stopped upon attention.
+     *
+     * @param session
+     * @param writer
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public static void acknowledge(Session session, PacketWriter writer)
+            throws PacketRWException, IOException
+    {
+        writeDone(session, writer);
+        session.acknowledgeAttention();
+    }
+
+    private static void writeDone(Session session, PacketWriter writer)
+            throws PacketRWException, IOException
+    {
+        Done done = new Done(session);
+        done.setStatusFlag(AbstractDone.DONE_ATTN);
+        writer.write(done);
+        writer.flush();
+    }
 }
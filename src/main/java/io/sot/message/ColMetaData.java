@@ -1,6 +1,7 @@
 package io.sot.message;
 
 import io.sot.Session;
+import io.sot.lang.Collation;
 import io.sot.lang.EnumValueLookupException;
 import io.sot.lang.GenBVarChar;
 import io.sot.lang.GenUByte;
@@ -11,10 +12,15 @@ import io.sot.lang.PacketDataWriter;
 import io.sot.lang.PacketRWException;
 import io.sot.lang.TypeInfo;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,6 +31,8 @@ import java.util.List;
  * <a href=
  * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/58880b9f-381c-43b2-bf8b-0727a98c4f4c">COLMETADATA</a>
  * <p>
+ * It also compiles the encoder plan of its result shape, one {@link ColumnEncoder} per column chosen from its JDBC type
+ * and {@link TypeInfo}, which {@link Row} runs for each row without metadata calls nor type switches.
  *
  * @author user
  */
@@ -34,10 +42,21 @@ public class ColMetaData
 {
     private final List<ColumnData> columns = new ArrayList<>();
 
+    /**
+     * Encoder of each column, compiled once per result shape.
+     */
+    private ColumnEncoder[] plan;
+
+    /**
+     * Whether any column of plan is streamed, see {@link ColumnEncoder#isStreamed()}.
+     */
+    private boolean streamed;
+
     public ColMetaData(Session session, ResultSetMetaData rsmd)
             throws SQLException, PacketRWException
     {
         super(session);
+        plan = new ColumnEncoder[rsmd.getColumnCount()];
         for (int i = 1; i <= rsmd.getColumnCount(); i++) {
             ColumnData cd = new ColumnData();
 
@@ -56,6 +75,11 @@ public class ColMetaData
 
             cd.typeInfo = TypeInfo.getTypeInfo(rsmd.getColumnType(i), rsmd.getPrecision(i), rsmd.getScale(i),
                     cd.nullable);
+            // VARCHAR and CHAR values go UTF-8 encoded, which clients decode by collation
+            if (session.isUtf8Supported() && (cd.typeInfo.getType() == TypeInfo.Type.BIGVARCHARTYPE
+                    || cd.typeInfo.getType() == TypeInfo.Type.BIGCHARTYPE)) {
+                cd.typeInfo = cd.typeInfo.withCollation(Collation.UTF8);
+            }
 
             // valid values are 0x0000 or 0x00000000, with the exceptions of data type timestamp (0x0050 or 0x00000050)
             // and alias types (greater than 0x00FF or 0x000000FF).
@@ -69,6 +93,8 @@ public class ColMetaData
             cd.setColumnName(new GenBVarChar(rsmd.getColumnName(i)));
 
             columns.add(cd);
+            plan[i - 1] = compile(i, rsmd.getColumnType(i), cd.typeInfo);
+            streamed |= plan[i - 1].isStreamed();
         }
     }
 
@@ -90,6 +116,39 @@ public class ColMetaData
         return columns.get(columnIndex - 1);
     }
 
+    /**
+     * Get the encoder plan of rows of {@code rs}, compiling it from {@code rs} metadata if this was not created from
+     * them.
+     *
+     * @param rs
+     * @return encoder of each column, in column order
+     * @throws SQLException
+     */
+    public ColumnEncoder[] getEncoderPlan(ResultSet rs)
+            throws SQLException
+    {
+        if (plan == null) {
+            ResultSetMetaData rsmd = rs.getMetaData();
+            ColumnEncoder[] p = new ColumnEncoder[columns.size()];
+            for (int i = 1; i <= p.length; i++) {
+                p[i - 1] = compile(i, rsmd.getColumnType(i), getColumnMetaData(i).getTypeInfo());
+                streamed |= p[i - 1].isStreamed();
+            }
+            plan = p;
+        }
+        return plan;
+    }
+
+    /**
+     * Check whether the encoder plan streams any column, after it is compiled.
+     *
+     * @return
+     */
+    boolean isStreamed()
+    {
+        return streamed;
+    }
+
     @Override
     public Token getToken()
     {
@@ -113,6 +172,323 @@ public class ColMetaData
         }
     }
 
+    /**
+     * Choose the encoder of column {@code index} by its JDBC type, once per result shape.
+     *
+     * @param index
+     * @param jdbcType
+     * @param ti
+     * @return
+     */
+    private static ColumnEncoder compile(int index, int jdbcType, TypeInfo ti)
+    {
+        // MAX and XML values go in PLP chunks as read from JDBC, never held whole
+        if (ti.isPlp()) {
+            if (ti.getType() == TypeInfo.Type.BIGVARBINARYTYPE) {
+                return new StreamEncoder<>(rs -> rs.getBinaryStream(index), (out, x, n) -> out.write(ti, x, n));
+            }
+            return new StreamEncoder<>(rs -> rs.getCharacterStream(index), (out, x, n) -> out.write(ti, x, n));
+        }
+
+        switch (jdbcType) {
+            case JdbcDataType.TINYINT:
+                return new ColumnEncoder()
+                {
+                    private byte value;
+
+                    @Override
+                    boolean fetch(ResultSet rs)
+                            throws SQLException
+                    {
+                        value = (byte) rs.getShort(index);
+                        return isNull = rs.wasNull();
+                    }
+
+                    @Override
+                    void write(PacketDataOutput out)
+                            throws PacketRWException, IOException
+                    {
+                        out.write(ti, value, isNull);
+                    }
+                };
+            case JdbcDataType.SMALLINT:
+                return new ColumnEncoder()
+                {
+                    private short value;
+
+                    @Override
+                    boolean fetch(ResultSet rs)
+                            throws SQLException
+                    {
+                        value = rs.getShort(index);
+                        return isNull = rs.wasNull();
+                    }
+
+                    @Override
+                    void write(PacketDataOutput out)
+                            throws PacketRWException, IOException
+                    {
+                        out.write(ti, value, isNull);
+                    }
+                };
+            case JdbcDataType.INTEGER:
+                return new ColumnEncoder()
+                {
+                    private int value;
+
+                    @Override
+                    boolean fetch(ResultSet rs)
+                            throws SQLException
+                    {
+                        value = rs.getInt(index);
+                        return isNull = rs.wasNull();
+                    }
+
+                    @Override
+                    void write(PacketDataOutput out)
+                            throws PacketRWException, IOException
+                    {
+                        out.write(ti, value, isNull);
+                    }
+                };
+            case JdbcDataType.BIGINT:
+                return new ColumnEncoder()
+                {
+                    private long value;
+
+                    @Override
+                    boolean fetch(ResultSet rs)
+                            throws SQLException
+                    {
+                        value = rs.getLong(index);
+                        return isNull = rs.wasNull();
+                    }
+
+                    @Override
+                    void write(PacketDataOutput out)
+                            throws PacketRWException, IOException
+                    {
+                        out.write(ti, value, isNull);
+                    }
+                };
+            case JdbcDataType.REAL:
+                return new ColumnEncoder()
+                {
+                    private float value;
+
+                    @Override
+                    boolean fetch(ResultSet rs)
+                            throws SQLException
+                    {
+                        value = rs.getFloat(index);
+                        return isNull = rs.wasNull();
+                    }
+
+                    @Override
+                    void write(PacketDataOutput out)
+                            throws PacketRWException, IOException
+                    {
+                        out.write(ti, value, isNull);
+                    }
+                };
+            case JdbcDataType.DOUBLE:
+            case JdbcDataType.FLOAT:
+                return new ColumnEncoder()
+                {
+                    private double value;
+
+                    @Override
+                    boolean fetch(ResultSet rs)
+                            throws SQLException
+                    {
+                        value = rs.getDouble(index);
+                        return isNull = rs.wasNull();
+                    }
+
+                    @Override
+                    void write(PacketDataOutput out)
+                            throws PacketRWException, IOException
+                    {
+                        out.write(ti, value, isNull);
+                    }
+                };
+            case JdbcDataType.BOOLEAN:
+                return new ColumnEncoder()
+                {
+                    private boolean value;
+
+                    @Override
+                    boolean fetch(ResultSet rs)
+                            throws SQLException
+                    {
+                        value = rs.getBoolean(index);
+                        return isNull = rs.wasNull();
+                    }
+
+                    @Override
+                    void write(PacketDataOutput out)
+                            throws PacketRWException, IOException
+                    {
+                        out.write(ti, value, isNull);
+                    }
+                };
+            case JdbcDataType.DECIMAL:
+            case JdbcDataType.NUMERIC:
+                return new ObjectEncoder<>(rs -> rs.getBigDecimal(index), (out, x, n) -> out.write(ti, x, n));
+            // java.time values, encoded by arithmetic without going through java.sql ones
+            case JdbcDataType.DATE:
+                return new ObjectEncoder<>(rs -> rs.getObject(index, LocalDate.class),
+                        (out, x, n) -> out.write(ti, x, n));
+            case JdbcDataType.TIME:
+                return new ObjectEncoder<>(rs -> rs.getObject(index, LocalTime.class),
+                        (out, x, n) -> out.write(ti, x, n));
+            case JdbcDataType.TIMESTAMP:
+                return new ObjectEncoder<>(rs -> rs.getObject(index, LocalDateTime.class),
+                        (out, x, n) -> out.write(ti, x, n));
+            case JdbcDataType.BINARY:
+            case JdbcDataType.VARBINARY:
+                return new ObjectEncoder<>(rs -> rs.getBytes(index), (out, x, n) -> out.write(ti, x, n));
+            case JdbcDataType.CHAR:
+            case JdbcDataType.NCHAR:
+            case JdbcDataType.VARCHAR:
+            case JdbcDataType.NVARCHAR:
+            case JdbcDataType.UNKNOWN:
+            default:
+                return new ObjectEncoder<>(rs -> rs.getString(index), (out, x, n) -> out.write(ti, x, n));
+        }
+    }
+
+    /**
+     * {@code ColumnEncoder} writes the value of one column of current row, with the {@link TypeInfo} it was compiled
+     * for. The value is fetched first, so that the row knows its NULL columns before choosing between ROW and NBCROW,
+     * then written, or skipped if NULL in an NBCROW. Primitive values are held unboxed.
+     * <p>
+     * A streamed value is only valid until the next column is fetched, so the row fetches each column of a streamed
+     * plan just before writing it.
+     */
+    public abstract static class ColumnEncoder
+    {
+        /**
+         * Whether the fetched value is NULL.
+         */
+        boolean isNull;
+
+        /**
+         * Fetch the value of current row of {@code rs}.
+         *
+         * @param rs
+         * @return whether it is NULL
+         * @throws SQLException
+         */
+        abstract boolean fetch(ResultSet rs)
+                throws SQLException;
+
+        /**
+         * Write the fetched value, NULL included.
+         *
+         * @param out
+         * @throws PacketRWException
+         * @throws IOException
+         */
+        abstract void write(PacketDataOutput out)
+                throws PacketRWException, IOException;
+
+        /**
+         * Check whether the fetched value is a stream read while written.
+         *
+         * @return
+         */
+        boolean isStreamed()
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Encoder of values which JDBC returns as objects.
+     *
+     * @param <T>
+     */
+    private static class ObjectEncoder<T>
+            extends ColumnEncoder
+    {
+        private final Getter<T> getter;
+
+        private final Writer<T> writer;
+
+        T value;
+
+        ObjectEncoder(Getter<T> getter, Writer<T> writer)
+        {
+            this.getter = getter;
+            this.writer = writer;
+        }
+
+        @Override
+        boolean fetch(ResultSet rs)
+                throws SQLException
+        {
+            value = getter.get(rs);
+            return isNull = rs.wasNull() || value == null;
+        }
+
+        @Override
+        void write(PacketDataOutput out)
+                throws PacketRWException, IOException
+        {
+            writer.write(out, value, isNull);
+        }
+
+        @FunctionalInterface
+        interface Getter<T>
+        {
+            T get(ResultSet rs)
+                    throws SQLException;
+        }
+
+        @FunctionalInterface
+        interface Writer<T>
+        {
+            void write(PacketDataOutput out, T x, boolean bNull)
+                    throws PacketRWException, IOException;
+        }
+    }
+
+    /**
+     * Encoder of values which JDBC returns as streams, i.e. {@code Reader} or {@code InputStream}, closed once written.
+     *
+     * @param <T>
+     */
+    private static class StreamEncoder<T extends Closeable>
+            extends ObjectEncoder<T>
+    {
+        StreamEncoder(Getter<T> getter, Writer<T> writer)
+        {
+            super(getter, writer);
+        }
+
+        @Override
+        void write(PacketDataOutput out)
+                throws PacketRWException, IOException
+        {
+            try {
+                super.write(out);
+            }
+            finally {
+                if (value != null) {
+                    value.close();
+                    value = null;
+                }
+            }
+        }
+
+        @Override
+        boolean isStreamed()
+        {
+            return true;
+        }
+    }
+
     public static class ColumnData
     {
         // compatible with TDS 7.3B and above (SQL Server 2008 R2 or later)
@@ -0,0 +1,71 @@
+package io.sot.message;
+
+import io.sot.Session;
+import io.sot.lang.PacketDataOutput;
+import io.sot.lang.PacketDataWriter;
+import io.sot.lang.PacketRWException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Used to acknowledge to client the feature extensions of its login request (LOGIN7) which server supports, sent
+ * right after {@link LoginAck}, see {@link Login7#acknowledgeFeatures()}.
+ * <p>
+ * <a href=
+ * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/2eb82f8e-11f0-46dc-b42d-27302fa4701a">FEATUREEXTACK</a>
+ *
+ * @author user
+ */
+public class FeatureExtAck
+        extends TokenStream
+        implements PacketDataWriter
+{
+    /**
+     * Feature id of UTF-8 support, whose acknowledgement data is a single byte, 1 if supported.
+     */
+    public static final byte UTF8_SUPPORT = 0x0A;
+
+    private static final byte TERMINATOR = (byte) 0xFF;
+
+    private final List<Byte> featureIds = new ArrayList<>();
+
+    private final List<byte[]> featureData = new ArrayList<>();
+
+    public FeatureExtAck(Session session)
+    {
+        super(session);
+    }
+
+    /**
+     * Acknowledge feature {@code featureId}.
+     *
+     * @param featureId
+     * @param data feature specific acknowledgement data
+     */
+    public void add(byte featureId, byte[] data)
+    {
+        featureIds.add(featureId);
+        featureData.add(data);
+    }
+
+    @Override
+    public Token getToken()
+    {
+        return Token.FEATURE_EXT_ACK;
+    }
+
+    @Override
+    public void write(PacketDataOutput out)
+            throws PacketRWException, IOException
+    {
+        out.write(getToken().getValue());
+        for (int i = 0; i < featureIds.size(); i++) {
+            out.write(featureIds.get(i).byteValue());
+            out.write(featureData.get(i).length);
+            out.write(featureData.get(i));
+        }
+        out.write(TERMINATOR);
+    }
+}
@@ -1,5 +1,6 @@
 package io.sot.message;
 
+import io.sot.PacketSizePolicy;
 import io.sot.Session;
 import io.sot.lang.ByteOrder;
 import io.sot.lang.CharSet;
@@ -15,6 +16,7 @@ import io.sot.lang.GenUShort;
 import io.sot.lang.LCID;
 import io.sot.lang.PacketDataInput;
 import io.sot.lang.PacketDataReader;
+import io.sot.lang.PacketHeader;
 import io.sot.lang.PacketRWException;
 import io.sot.lang.SortId;
 import io.sot.lang.SqlInterface;
@@ -41,12 +43,10 @@ import java.util.Map;
 public class Login7
         implements PacketDataReader
 {
-    @SuppressWarnings("unused")
     private static final Logger LOG = LogManager.getLogger(Login7.class);
 
     private final Charset csUTF16LE = StandardCharsets.UTF_16LE;
 
-    @SuppressWarnings("unused")
     private final Session session;
 
     private TdsVersion tdsVersion;
@@ -101,6 +101,7 @@ public class Login7
     private String attachDBFile;
     private byte[] newPassword;
     private FedAuth fedAuth;
+    private boolean utf8Support;
 
     public Login7(Session session)
     {
@@ -116,15 +117,16 @@ public class Login7
          */
         // The length of a LOGIN7 stream MUST NOT be longer than 128K-1(byte) bytes.
         @SuppressWarnings("unused")
-        long packetLength = data.readGenDWord().longValue();
+        long packetLength = data.readUIntLong();
         this.tdsVersion = TdsVersion.valueOf(data.readGenDWord());
+        session.setTdsVersion(tdsVersion);
         this.packetSize = data.readGenDWord();
         this.clientProgVer = data.readGenDWord();
         this.clientPID = data.readGenDWord();
         this.clientConnID = data.readGenDWord();
 
         // OptionFlags1
-        byte flags = (byte) data.readGenUByte().shortValue();
+        byte flags = data.read();
         this.byteOrder = ByteOrder.values()[flags & 0x01];
         this.charSet = CharSet.values()[(flags >> 1) & 0x01];
         this.floatRep = FloatRepresentation.values()[(flags >> 2) & 0x03];
@@ -134,20 +136,20 @@ public class Login7
         this.warnSetLang = (((flags >> 7) & 0x01) == 1);
 
         // OptionFlags2
-        flags = (byte) data.readGenUByte().shortValue();
+        flags = data.read();
         this.needInitLanguage = ((flags & 0x01) == 1);
         this.isODBC = (((flags >> 1) & 0x01) == 1);
         this.userType = UserType.values()[(flags >> 4) & 0x03];
         this.intSecurity = (((flags >> 7) & 0x01) == 1);
 
         // TypeFlags
-        flags = (byte) data.readGenUByte().shortValue();
+        flags = data.read();
         this.sqlInterface = SqlInterface.values()[flags & 0x0F];
         this.isOLEDB = (((flags >> 5) & 0x01) == 1);
         this.readOnly = (((flags >> 6) & 0x01) == 1);
 
         // OptionFlags3
-        flags = (byte) data.readGenUByte().shortValue();
+        flags = data.read();
         this.changePoassword = ((flags & 0x01) == 1);
         this.userInstance = (((flags >> 1) & 0x01) == 1);
         this.sendYukonBinaryXML = (((flags >> 2) & 0x01) == 1);
@@ -160,14 +162,14 @@ public class Login7
         /*
          * Offsets and lengths, followed by data
          */
-        this.hostName = data.readGenUnicodeStream(data.readGenUShort().intValue(), data.readGenUShort().intValue()).getString();
-        this.userName = data.readGenUnicodeStream(data.readGenUShort().intValue(), data.readGenUShort().intValue()).getString();
-        this.password = decodePassword(data.readBytes(data.readGenUShort().intValue(), data.readGenUShort().intValue() * 2));
-        this.appName = data.readGenUnicodeStream(data.readGenUShort().intValue(), data.readGenUShort().intValue()).getString();
-        this.serverName = data.readGenUnicodeStream(data.readGenUShort().intValue(), data.readGenUShort().intValue()).getString();
+        this.hostName = data.readGenUnicodeStream(data.readUShortInt(), data.readUShortInt()).getString();
+        this.userName = data.readGenUnicodeStream(data.readUShortInt(), data.readUShortInt()).getString();
+        this.password = decodePassword(data.readBytes(data.readUShortInt(), data.readUShortInt() * 2));
+        this.appName = data.readGenUnicodeStream(data.readUShortInt(), data.readUShortInt()).getString();
+        this.serverName = data.readGenUnicodeStream(data.readUShortInt(), data.readUShortInt()).getString();
 
         if (this.useExtension) {
-            this.extOffset = data.readGenDWord(data.readGenUShort().intValue());
+            this.extOffset = data.readGenDWord(data.readUShortInt());
             data.skip(GenUShort.LENGTH);
         }
         else {
@@ -175,15 +177,15 @@ public class Login7
             data.skip(GenUShort.LENGTH);
         }
 
-        this.libraryName = data.readGenUnicodeStream(data.readGenUShort().intValue(), data.readGenUShort().intValue()).getString();
-        this.initLanguage = data.readGenUnicodeStream(data.readGenUShort().intValue(), data.readGenUShort().intValue()).getString();
-        this.initDatabase = data.readGenUnicodeStream(data.readGenUShort().intValue(), data.readGenUShort().intValue()).getString();
+        this.libraryName = data.readGenUnicodeStream(data.readUShortInt(), data.readUShortInt()).getString();
+        this.initLanguage = data.readGenUnicodeStream(data.readUShortInt(), data.readUShortInt()).getString();
+        this.initDatabase = data.readGenUnicodeStream(data.readUShortInt(), data.readUShortInt()).getString();
         this.clientID = data.readBytes(6);
-        int ibSSPI = data.readGenUShort().intValue();
-        int cbSSPI = data.readGenUShort().intValue();
-        this.attachDBFile = data.readGenUnicodeStream(data.readGenUShort().intValue(), data.readGenUShort().intValue()).getString();
-        this.newPassword = decodePassword(data.readBytes(data.readGenUShort().intValue(), data.readGenUShort().intValue() * 2));
-        long cbSSPILong = data.readGenDWord().longValue();
+        int ibSSPI = data.readUShortInt();
+        int cbSSPI = data.readUShortInt();
+        this.attachDBFile = data.readGenUnicodeStream(data.readUShortInt(), data.readUShortInt()).getString();
+        this.newPassword = decodePassword(data.readBytes(data.readUShortInt(), data.readUShortInt() * 2));
+        long cbSSPILong = data.readUIntLong();
 
         if (cbSSPI < GenUShort.MAX_VALUE) {
             this.SSPI = data.readBytes(ibSSPI, cbSSPI);
@@ -240,8 +242,9 @@ public class Login7
                         data.skip(data.readInt());
                         break;
                     case (byte) 0x0a:
-                        // UTF8_SUPPORT - not supported
+                        // UTF8_SUPPORT - acknowledged by acknowledgeFeatures()
                         data.skip(data.readInt());
+                        this.utf8Support = true;
                         break;
                     case (byte) 0x0b:
                         // AZURESQLDNSCACHING - not supported
@@ -279,6 +282,33 @@ public class Login7
         return packetSize;
     }
 
+    /**
+     * Decide the packet size of session with its {@link PacketSizePolicy}, and get the {@code PACKET_SIZE} change to
+     * send in login response. The response itself is still sent in the initial packet size, the new one applies once
+     * it is written, see {@link io.sot.Session#setPendingPacketSize(int)}.
+     *
+     * @return
+     * @throws PacketRWException if the policy decides a size out of the negotiable range
+     */
+    public EnvChange negotiatePacketSize()
+            throws PacketRWException
+    {
+        // unsigned, sizes beyond int range are as good as the largest one
+        int requested = packetSize == null ? 0 : (int) Math.min(packetSize.longValue(), Integer.MAX_VALUE);
+        int size = session.getPacketSizePolicy().negotiate(this, requested);
+        if (size < PacketHeader.MIN_NEG_LENGTH || size > PacketHeader.MAX_NEG_LENGTH) {
+            throw new PacketRWException("Negotiated packet size %d is not within [%d, %d].", size,
+                    PacketHeader.MIN_NEG_LENGTH, PacketHeader.MAX_NEG_LENGTH);
+        }
+
+        int old = session.getPacketSize();
+        session.setPendingPacketSize(size);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Packet size {} requested, {} negotiated.", requested, size);
+        }
+        return new EnvChange(session, EnvChange.Type.PACKET_SIZE, Integer.toString(old), Integer.toString(size));
+    }
+
     public GenDWord getClientProgVer()
     {
         return clientProgVer;
@@ -464,6 +494,37 @@ public class Login7
         return fedAuth;
     }
 
+    /**
+     * Check whether client asked for UTF-8 support in a feature extension.
+     *
+     * @return
+     */
+    public boolean isUtf8Support()
+    {
+        return utf8Support;
+    }
+
+    /**
+     * Enable on session the feature extensions asked by client which server supports, and get the
+     * {@link FeatureExtAck} to send in login response, right after {@link LoginAck}. Only UTF-8 support is acknowledged
+     * so far, after which VARCHAR and CHAR columns are sent UTF-8 encoded, see {@link Session#isUtf8Supported()}.
+     *
+     * @return null if client sent no feature extension, and expects no acknowledgement
+     */
+    public FeatureExtAck acknowledgeFeatures()
+    {
+        if (!useExtension) {
+            return null;
+        }
+
+        FeatureExtAck ack = new FeatureExtAck(session);
+        if (utf8Support) {
+            session.setUtf8Supported(true);
+            ack.add(FeatureExtAck.UTF8_SUPPORT, new byte[] {1});
+        }
+        return ack;
+    }
+
     public static class ClientLCID
             extends Collation
     {
@@ -483,14 +544,14 @@ public class Login7
             ClientLCID lcid = new ClientLCID();
             lcid.lcid = LCID.valueOf(new GenDWord((int) (value.longValue() & 0xFFFFF)));
             int flags = (int) ((value.longValue() >> 20) & 0xFFF);
-            lcid.ignoreCase = ((flags & 0x01) == 1);
-            lcid.ignoreAccent = ((flags & 0x02) == 1);
-            lcid.ignoreWidth = ((flags & 0x04) == 1);
-            lcid.ignoreKana = ((flags & 0x08) == 1);
-            lcid.binary = ((flags & 0x10) == 1);
-            lcid.binary2 = ((flags & 0x20) == 1);
-            lcid.utf8 = ((flags & 0x40) == 1);
-            lcid.version = (byte) (flags & 0x0780);
+            lcid.ignoreCase = ((flags & 0x01) != 0);
+            lcid.ignoreAccent = ((flags & 0x02) != 0);
+            lcid.ignoreWidth = ((flags & 0x04) != 0);
+            lcid.ignoreKana = ((flags & 0x08) != 0);
+            lcid.binary = ((flags & 0x10) != 0);
+            lcid.binary2 = ((flags & 0x20) != 0);
+            lcid.utf8 = ((flags & 0x40) != 0);
+            lcid.version = (byte) ((flags >> 8) & 0x0F);
             return lcid;
         }
     }
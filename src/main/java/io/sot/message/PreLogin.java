@@ -11,7 +11,10 @@ import io.sot.lang.PacketDataInput;
 import io.sot.lang.PacketDataOutput;
 import io.sot.lang.PacketDataReader;
 import io.sot.lang.PacketDataWriter;
+import io.sot.lang.PacketHeader;
 import io.sot.lang.PacketRWException;
+import io.sot.lang.PacketReader;
+import io.sot.lang.PacketWriter;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -141,6 +144,12 @@ public class PreLogin
         this.threadID = threadID;
     }
 
+    /**
+     * Get MARS option, which is echoed as is: transports demultiplex SMP frames of a MARS client, see
+     * {@link io.sot.SmpConnection}.
+     *
+     * @return
+     */
     public GenUByte getMars()
     {
         return mars;
@@ -211,6 +220,55 @@ public class PreLogin
         this.sslPayload = sslPayload;
     }
 
+    /**
+     * Answer this PRELOGIN of client, as server, with the same options but encryption, see
+     * {@link #negotiateEncryption(Encryption, boolean)}. Other options are sent as set, e.g. server version with
+     * {@link #setMajorVersion(GenUByte)}.
+     * <p>
+     * If encryption is on, session goes to {@link Session.State#SSL_NEG} once the response is sent, so that following
+     * PRELOGIN messages, which carry the TLS handshake, are passed to
+     * {@link io.sot.TlsEngine#handshake(Session, PacketReader)} by {@link io.sot.MessageDispatcher}.
+     *
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public void respond()
+            throws PacketRWException, IOException
+    {
+        encryption = negotiateEncryption(encryption, session.getSslContext() != null);
+        if (instValidity == null) {
+            // B_INSTVALIDITY of no instance name
+            instValidity = new byte[] {0};
+        }
+        if (mars == null) {
+            mars = new GenUByte((byte) 0);
+        }
+
+        try (PacketWriter w = new PacketWriter(session, PacketHeader.response(PacketHeader.Type.TABULAR))) {
+            w.write(this);
+            w.flush();
+        }
+
+        if (encryption == Encryption.ENCRYPT_ON) {
+            session.setState(Session.State.SSL_NEG);
+        }
+    }
+
+    /**
+     * Decide the encryption option of server response to {@code client} option. Server encrypts the whole connection
+     * whenever it can and client does not refuse it, login-only encryption is not supported.
+     *
+     * @param client encryption option of client, null if absent
+     * @param supported whether server has an SSL context
+     * @return {@link Encryption#ENCRYPT_ON}, or {@link Encryption#ENCRYPT_NOT_SUP}, which fails a client requiring
+     *         encryption
+     */
+    public static Encryption negotiateEncryption(Encryption client, boolean supported)
+    {
+        return supported && client != null && client != Encryption.ENCRYPT_NOT_SUP ? Encryption.ENCRYPT_ON
+                : Encryption.ENCRYPT_NOT_SUP;
+    }
+
     @Override
     public void read(PacketDataInput data)
             throws PacketRWException, IOException
@@ -304,8 +362,8 @@ public class PreLogin
             }
         }
         else if (Session.State.SSL_NEG.equals(this.session.getState())) {
-            // SSL_PAYLOAD
-            sslPayload = data.readBytes();
+            // SSL_PAYLOAD is fed to TLS engine in place, never read whole
+            throw new PacketRWException("TLS handshake payload of PRELOGIN is read by TlsEngine.handshake().");
         }
     }
 
@@ -9,6 +9,7 @@ import io.sot.lang.GenUShort;
 import io.sot.lang.PacketDataInput;
 import io.sot.lang.PacketDataReader;
 import io.sot.lang.PacketRWException;
+import io.sot.lang.PlpInputStream;
 import io.sot.lang.SqlDataValue;
 import io.sot.lang.TypeInfo;
 import org.apache.logging.log4j.LogManager;
@@ -30,10 +31,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
 
 /**
  * Request to execute an RPC.
@@ -76,6 +79,23 @@ public class RPC
     @XmlElement(name = "params")
     private final List<ParameterData> params;
 
+    /**
+     * Whether PLP parameter values are read as streams, see {@link ParameterData#getStream()}.
+     */
+    private boolean plpStreamed;
+
+    /**
+     * Whether parameters are only located when read, see {@link #setLazyParameters(boolean)}.
+     */
+    private boolean lazyParameters;
+
+    /**
+     * Input of lazily read parameters, and their offsets in it.
+     */
+    private PacketDataInput in;
+    private int[] paramOffsets = new int[8];
+    private int paramCount;
+
     // The EnclavePackage parameter is not supported by SQL Server 7.0, SQL Server 2000, SQL Server 2005, SQL Server
     // 2008, SQL Server 2008 R2, SQL Server 2012, SQL Server 2014, SQL Server 2016, and SQL Server 2017
 
@@ -116,11 +136,117 @@ public class RPC
         return reuseMetaData;
     }
 
+    /**
+     * Get parameters read eagerly, empty if they are read lazily, see {@link #getParameter(int)}.
+     *
+     * @return
+     */
     public List<ParameterData> getParameters()
     {
         return params;
     }
 
+    /**
+     * Get the number of parameters, read eagerly or lazily.
+     *
+     * @return
+     */
+    public int getParameterCount()
+    {
+        return in == null ? params.size() : paramCount;
+    }
+
+    /**
+     * Get parameter at {@code index}, decoded from its offset if parameters are read lazily.
+     *
+     * @param index
+     * @return
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public ParameterData getParameter(int index)
+            throws PacketRWException, IOException
+    {
+        if (in == null) {
+            return params.get(index);
+        }
+
+        Objects.checkIndex(index, paramCount);
+        ParameterData p = new ParameterData();
+        in.seek(paramOffsets[index]);
+        p.read(in, procID, index, plpStreamed);
+        return p;
+    }
+
+    public boolean isLazyParameters()
+    {
+        return lazyParameters;
+    }
+
+    /**
+     * Only locate parameters when reading the request, rather than decode them, so that their values may be bound
+     * straight from the message with {@link #bind(PreparedStatement, int, int)}, or decoded one by one with
+     * {@link #getParameter(int)}, while the message is being handled. Many tiny requests, e.g. single-row inserts by
+     * {@code sp_execute}, then allocate neither {@link TypeInfo} nor {@link SqlDataValue} per parameter.
+     *
+     * @param lazyParameters
+     */
+    public void setLazyParameters(boolean lazyParameters)
+    {
+        this.lazyParameters = lazyParameters;
+    }
+
+    /**
+     * Bind values of lazily read parameters from index {@code from} on, to parameters of {@code ps} from
+     * {@code parameterIndex} on, e.g. from 1 on for the bound parameters of {@code sp_execute}, whose parameter 0 is
+     * the handle. Values are decoded straight into the typed setters of {@code ps}, PLP values are bound as streams,
+     * see {@link PacketDataInput#bindTypedValue(PreparedStatement, int)}.
+     *
+     * @param ps
+     * @param from
+     * @param parameterIndex
+     * @return number of parameters bound
+     * @throws PacketRWException if parameters are not read lazily, or a value can not be bound
+     * @throws IOException
+     * @throws SQLException
+     */
+    public int bind(PreparedStatement ps, int from, int parameterIndex)
+            throws PacketRWException, IOException, SQLException
+    {
+        if (in == null) {
+            throw new PacketRWException("Parameters of %s are not read lazily.", procID != null ? procID : procName);
+        }
+        if (from >= paramCount) {
+            return 0;
+        }
+
+        // parameters are contiguous, so seek once
+        in.seek(paramOffsets[from]);
+        for (int i = from; i < paramCount; i++) {
+            // name, as B_VARCHAR, and status flags
+            in.skip(in.readUByteInt() * 2 + 1);
+            in.bindTypedValue(ps, parameterIndex++);
+        }
+        return paramCount - from;
+    }
+
+    public boolean isPlpStreamed()
+    {
+        return plpStreamed;
+    }
+
+    /**
+     * Read values of PLP parameters, e.g. {@code NVARCHAR(MAX)} or {@code VARBINARY(MAX)}, as streams over the message
+     * rather than as {@link SqlDataValue}, so that a large value is not copied on heap, to be bound with
+     * {@link PlpInputStream#bind(java.sql.PreparedStatement, int, TypeInfo)} while the message is being handled.
+     *
+     * @param plpStreamed
+     */
+    public void setPlpStreamed(boolean plpStreamed)
+    {
+        this.plpStreamed = plpStreamed;
+    }
+
     @Override
     public void read(PacketDataInput in)
             throws PacketRWException, IOException
@@ -128,25 +254,41 @@ public class RPC
         allHeaders = new AllHeaders();
         allHeaders.read(in);
 
-        GenUShort len = in.readGenUShort();
-        if (len.equals(PROC_ID_SWITCH)) {
-            procID = ProcID.valueOf(in.readGenUShort());
+        int len = in.readUShortInt();
+        if (len == PROC_ID_SWITCH.intValue()) {
+            procID = ProcID.valueOf(in.readUShortInt());
         }
         else {
-            procName = new GenUSVarChar(in.readGenUniCodeStream(len.intValue()).getString());
+            procName = new GenUSVarChar(in.readGenUniCodeStream(len).getString());
         }
 
-        short opts = (byte) in.readGenUShort().intValue();
+        short opts = (byte) in.readUShortInt();
         withRecomp = ((opts & 0x01) == 0x01);
         noMetaData = ((opts & 0x02) == 0x02);
         reuseMetaData = ((opts & 0x08) == 0x08);
 
         params.clear();
+        paramCount = 0;
+
+        if (lazyParameters) {
+            // locate rest stream as parameters
+            this.in = in;
+            while (in.hasMore()) {
+                if (paramCount == paramOffsets.length) {
+                    paramOffsets = Arrays.copyOf(paramOffsets, paramCount * 2);
+                }
+                paramOffsets[paramCount++] = in.position();
+                in.skip(in.readUByteInt() * 2 + 1);
+                in.skipTypedValue();
+            }
+            return;
+        }
 
         // read rest stream as parameters
+        this.in = null;
         while (in.hasMore()) {
             ParameterData p = new ParameterData();
-            p.read(in, procID, params.size());
+            p.read(in, procID, params.size(), plpStreamed);
             params.add(p);
         }
     }
@@ -250,21 +392,37 @@ public class RPC
             return value;
         }
 
-        private static final Map<GenUShort, ProcID> genUShortTypeMap = initGenUShortTypeMap();
+        /**
+         * Procedures indexed by id, all ids are less than 256.
+         */
+        private static final ProcID[] BY_VALUE = initByValue();
 
-        private static Map<GenUShort, ProcID> initGenUShortTypeMap()
+        private static ProcID[] initByValue()
         {
-            Map<GenUShort, ProcID> m = new HashMap<>();
+            ProcID[] a = new ProcID[256];
             for (ProcID p : ProcID.values()) {
-                m.put(p.value, p);
+                a[p.value.intValue()] = p;
             }
-            return m;
+            return a;
         }
 
         public static ProcID valueOf(GenUShort value)
                 throws EnumValueLookupException
         {
-            ProcID p = genUShortTypeMap.get(value);
+            return valueOf(value.intValue());
+        }
+
+        /**
+         * Get procedure of unsigned short {@code value}.
+         *
+         * @param value
+         * @return
+         * @throws EnumValueLookupException
+         */
+        public static ProcID valueOf(int value)
+                throws EnumValueLookupException
+        {
+            ProcID p = (value & ~0xFF) == 0 ? BY_VALUE[value] : null;
             if (p != null) {
                 return p;
             }
@@ -297,6 +455,11 @@ public class RPC
         @XmlJavaTypeAdapter(SqlDataValueAdapter.class)
         private SqlDataValue value;
 
+        /**
+         * Value of a PLP parameter read as a stream, instead of {@link #value}.
+         */
+        private PlpInputStream stream;
+
         public ParameterData()
         {
         }
@@ -346,12 +509,39 @@ public class RPC
             this.value = value;
         }
 
+        /**
+         * Get the value of a PLP parameter read as a stream, valid while its message is being handled.
+         *
+         * @return the stream, or {@code null} if the value is NULL or not read as a stream
+         * @see RPC#setPlpStreamed(boolean)
+         */
+        public PlpInputStream getStream()
+        {
+            return stream;
+        }
+
         public void read(PacketDataInput in, ProcID procID, int index)
                 throws PacketRWException, IOException
+        {
+            read(in, procID, index, false);
+        }
+
+        /**
+         * Read parameter from {@code in}, its value as a stream if {@code plpStreamed} and of a PLP type.
+         *
+         * @param in
+         * @param procID
+         * @param index
+         * @param plpStreamed
+         * @throws PacketRWException
+         * @throws IOException
+         */
+        public void read(PacketDataInput in, ProcID procID, int index, boolean plpStreamed)
+                throws PacketRWException, IOException
         {
             name = in.readGenBVarChar();
 
-            byte status = (byte) in.readGenUByte().shortValue();
+            byte status = in.read();
             byRefValue = ((status & 0x01) == 0x01);
             defaultValue = ((status & 0x02) == 0x02);
             encrypted = ((status & 0x08) == 0x0F);
@@ -359,7 +549,14 @@ public class RPC
             typeInfo = new TypeInfo();
             typeInfo.read(in);
 
-            value = in.read(typeInfo);
+            if (plpStreamed && typeInfo.isPlp()) {
+                value = null;
+                stream = in.readPLPStream();
+            }
+            else {
+                value = in.read(typeInfo);
+                stream = null;
+            }
         }
 
         @Override
@@ -4,16 +4,24 @@ import io.sot.Session;
 import io.sot.lang.PacketDataOutput;
 import io.sot.lang.PacketDataWriter;
 import io.sot.lang.PacketRWException;
-import io.sot.lang.TypeInfo;
+import io.sot.lang.PacketWriter;
+import io.sot.lang.TdsVersion;
 
 import java.io.IOException;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 
 /**
  * Used to send a complete row, as defined by the COLMETADATA token, to the client, defined in <a href=
  * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/3840ef93-3b10-4aca-9fd1-a210b8bb6d0c">ROW</a>
+ * <p>
+ * Column values are written by the encoder plan of {@link ColMetaData}, compiled once per result shape. For clients of
+ * TDS 7.3 or later, a row whose NULL columns outweigh a null bitmap is sent as <a href=
+ * "https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-tds/3ee6c9b3-6a3d-4d7a-bd8e-4bc9ae3b8b93">NBCROW</a>
+ * instead, i.e. the bitmap, one bit per column, followed by the values of non-NULL columns only.
+ * <p>
+ * A row of streamed columns, e.g. {@code NVARCHAR(MAX)}, is always sent as ROW, each column fetched just before it is
+ * written, since a JDBC stream may be closed once a later column is fetched.
  *
  * @author user
  */
@@ -24,7 +32,11 @@ public class Row
 
     private final ColMetaData dsMD;
     private final ResultSet rs;
-    private final int rowNum;
+    private int rowNum;
+    /**
+     * Whether client understands NBCROW.
+     */
+    private final boolean nbcRowSupported;
 
     public Row(Session session, ColMetaData colMetaData, ResultSet rs, int rowNum)
     {
@@ -32,6 +44,58 @@ public class Row
         this.dsMD = colMetaData;
         this.rs = rs;
         this.rowNum = rowNum;
+        nbcRowSupported = isNbcRowSupported(session);
+    }
+
+    /**
+     * Check whether the client of {@code session} understands NBCROW, which comes with TDS 7.3.
+     *
+     * @param session
+     * @return
+     */
+    public static boolean isNbcRowSupported(Session session)
+    {
+        TdsVersion v = session.getTdsVersion();
+        return v != null && v.compareTo(TdsVersion.TDS73A) >= 0;
+    }
+
+    /**
+     * Write a ROW token for each remaining row of {@code rs}, checking for attention between rows.
+     *
+     * @param writer
+     * @param colMetaData
+     * @param rs
+     * @return number of rows written, or -1 if stopped by attention, in which case the response is to be ended with
+     * {@link Attention#acknowledge(Session, PacketWriter)}
+     * @throws PacketRWException
+     * @throws IOException
+     */
+    public static long writeAll(PacketWriter writer, ColMetaData colMetaData, ResultSet rs)
+            throws PacketRWException, IOException
+    {
+        Session session = colMetaData.session;
+        // one token for all rows, so that rows of a numeric result are written without allocating
+        Row row = new Row(session, colMetaData, rs, 0);
+        int rowNum = 0;
+        try {
+            while (true) {
+                if (session.isAttention()) {
+                    return -1;
+                }
+                if (!rs.next()) {
+                    return rowNum;
+                }
+                row.rowNum = ++rowNum;
+                writer.write(row);
+            }
+        }
+        catch (SQLException e) {
+            if (session.isAttention()) {
+                // cancelled statement fails its fetch
+                return -1;
+            }
+            throw new PacketRWException(e, "Failed to fetch row %d.", rowNum + 1);
+        }
     }
 
     @Override
@@ -45,57 +109,45 @@ public class Row
             throws PacketRWException, IOException
     {
         try {
-            out.write(Token.ROW.getValue());
+            ColMetaData.ColumnEncoder[] plan = dsMD.getEncoderPlan(rs);
+            if (dsMD.isStreamed()) {
+                out.write(Token.ROW.getValue());
+                for (ColMetaData.ColumnEncoder encoder : plan) {
+                    encoder.fetch(rs);
+                    encoder.write(out);
+                }
+                return;
+            }
 
-            ResultSetMetaData rsMD = rs.getMetaData();
-            for (int index = 1; index <= rsMD.getColumnCount(); index++) {
-                TypeInfo ti = this.dsMD.getColumnMetaData(index).getTypeInfo();
+            int nulls = 0;
+            for (ColMetaData.ColumnEncoder encoder : plan) {
+                if (encoder.fetch(rs)) {
+                    nulls++;
+                }
+            }
 
-                switch (rsMD.getColumnType(index)) {
-                    case JdbcDataType.TINYINT:
-                        out.write(ti, (byte) rs.getShort(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.SMALLINT:
-                        out.write(ti, rs.getShort(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.INTEGER:
-                        out.write(ti, rs.getInt(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.BIGINT:
-                        out.write(ti, rs.getLong(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.REAL:
-                        out.write(ti, rs.getFloat(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.DOUBLE:
-                    case JdbcDataType.FLOAT:
-                        out.write(ti, rs.getDouble(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.DECIMAL:
-                    case JdbcDataType.NUMERIC:
-                        out.write(ti, rs.getBigDecimal(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.CHAR:
-                    case JdbcDataType.NCHAR:
-                    case JdbcDataType.VARCHAR:
-                    case JdbcDataType.NVARCHAR:
-                        out.write(ti, rs.getString(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.DATE:
-                        out.write(ti, rs.getDate(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.TIME:
-                        out.write(ti, rs.getTime(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.TIMESTAMP:
-                        out.write(ti, rs.getTimestamp(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.BOOLEAN:
-                        out.write(ti, rs.getBoolean(index), rs.wasNull());
-                        break;
-                    case JdbcDataType.UNKNOWN:
-                    default:
-                        out.write(ti, rs.getString(index), rs.wasNull());
+            // each NULL takes at least one byte in ROW, the bitmap one bit per column
+            if (nbcRowSupported && nulls > (plan.length + 7) >> 3) {
+                out.write(Token.NBC_ROW.getValue());
+                for (int i = 0; i < plan.length; i += 8) {
+                    int bits = 0;
+                    for (int j = i; j < plan.length && j < i + 8; j++) {
+                        if (plan[j].isNull) {
+                            bits |= 1 << (j - i);
+                        }
+                    }
+                    out.write((byte) bits);
+                }
+                for (ColMetaData.ColumnEncoder encoder : plan) {
+                    if (!encoder.isNull) {
+                        encoder.write(out);
+                    }
+                }
+            }
+            else {
+                out.write(Token.ROW.getValue());
+                for (ColMetaData.ColumnEncoder encoder : plan) {
+                    encoder.write(out);
                 }
             }
         }
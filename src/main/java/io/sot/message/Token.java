@@ -3,9 +3,6 @@ package io.sot.message;
 import io.sot.lang.EnumValueLookupException;
 import io.sot.lang.GenUByte;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * <p>
  * This section describes the various tokens supported in a token-based packet data stream, as described in section
@@ -30,10 +27,12 @@ public enum Token
     ERROR((byte) 0xAA),
     INFO((byte) 0xAB),
     LOGIN_ACK((byte) 0xAD),
+    FEATURE_EXT_ACK((byte) 0xAE),
     ORDER((byte) 0xA9),
     RETURN_STATUS((byte) 0x79),
     RETURN_VALUE((byte) 0xAC),
     ROW((byte) 0xD1),
+    NBC_ROW((byte) 0xD2),
     SSPI((byte) 0xED),
     FED_AUTH_INFO((byte) 0xEE);
 
@@ -49,18 +48,34 @@ public enum Token
         return this.value;
     }
 
-    private static final Map<GenUByte, Token> m = new HashMap<>();
+    /**
+     * Tokens indexed by unsigned byte value, so that a token byte is decoded without boxing or hashing.
+     */
+    private static final Token[] BY_VALUE = new Token[256];
 
     static {
         for (Token tt : Token.values()) {
-            m.put(tt.value, tt);
+            BY_VALUE[tt.value.intValue()] = tt;
         }
     }
 
     public static Token valueOf(GenUByte value)
             throws EnumValueLookupException
     {
-        Token tt = m.get(value);
+        return valueOf(value.intValue());
+    }
+
+    /**
+     * Get token of unsigned byte {@code value}.
+     *
+     * @param value
+     * @return
+     * @throws EnumValueLookupException
+     */
+    public static Token valueOf(int value)
+            throws EnumValueLookupException
+    {
+        Token tt = (value & ~0xFF) == 0 ? BY_VALUE[value] : null;
         if (tt == null) {
             throw new EnumValueLookupException(Token.class, value);
         }
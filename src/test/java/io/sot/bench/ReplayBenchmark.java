@@ -0,0 +1,332 @@
+package io.sot.bench;
+
+import io.sot.MessageDispatcher;
+import io.sot.NioServer;
+import io.sot.Session;
+import io.sot.lang.EnumValueLookupException;
+import io.sot.lang.PacketCapture;
+import io.sot.lang.PacketCaptureReader;
+import io.sot.lang.PacketDataReader;
+import io.sot.lang.PacketDataWriter;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketRWException;
+import io.sot.lang.PacketWriter;
+import io.sot.message.Attention;
+import io.sot.message.Done;
+import io.sot.message.Login7;
+import io.sot.message.PreLogin;
+import io.sot.message.RPC;
+import io.sot.message.SqlBatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * {@code ReplayBenchmark} replays conversations recorded by {@link PacketCapture} against a server, and reports
+ * throughput and latency per message type.
+ * <p>
+ * Usage: {@code ReplayBenchmark <capture file or directory> [speed] [concurrency] [host:port]}.
+ * <ul>
+ * <li>speed: multiplier of recorded pace, e.g. 10 replays ten times as fast as recorded, 0 sends each message as soon
+ * as the response to the previous one is read. Defaults to 1.</li>
+ * <li>concurrency: max number of conversations replayed at the same time. Defaults to 64.</li>
+ * <li>host:port: server to replay against. By default an in-process {@link NioServer} is started with a stand-in
+ * backend, which parses each message with the regular message classes and answers with a canned DONE, so runs only
+ * depend on the codec paths and are repeatable.</li>
+ * </ul>
+ * Inbound packets of each recorded session make one conversation, e.g. PreLogin, Login7, then SQL batches, RPCs and
+ * attentions, replayed on its own connection in recorded order. Conversations start at their recorded offsets from
+ * the first one, so the recorded load shape is kept. Each message is sent once the response to the previous
+ * one has been read, and its latency is measured from the first packet sent to the last packet of its response. To
+ * record, give a started {@link PacketCapture} to the server with {@code setCapture} and enable it. Conversations of
+ * encrypted sessions cannot be replayed.
+ *
+ * @author user
+ */
+public class ReplayBenchmark
+{
+    public static void main(String[] args)
+            throws Exception
+    {
+        if (args.length == 0) {
+            System.err.println("Usage: ReplayBenchmark <capture file or directory> [speed] [concurrency] [host:port]");
+            System.exit(1);
+        }
+        Path path = Paths.get(args[0]);
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        List<Conversation> conversations = load(path);
+        long messages = conversations.stream().mapToLong(c -> c.messages.size()).sum();
+        System.out.printf("Loaded %d conversations, %d messages from %s%n", conversations.size(), messages, path);
+
+        NioServer server = null;
+        ExecutorService workers = null;
+        InetSocketAddress address;
+        if (args.length > 3) {
+            String[] hp = args[3].split(":");
+            address = new InetSocketAddress(hp[0], Integer.parseInt(hp[1]));
+        }
+        else {
+            workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            server = new NioServer(new InetSocketAddress("127.0.0.1", 0), workers, standIn());
+            server.start();
+            address = server.getLocalAddress();
+        }
+
+        ExecutorService drivers = Executors.newFixedThreadPool(concurrency);
+        AtomicLong failures = new AtomicLong();
+        long origin = conversations.stream().mapToLong(c -> c.messages.get(0).timestamp).min().orElse(0);
+        long start = System.nanoTime();
+        List<Future<Map<PacketHeader.Type, long[]>>> results = new ArrayList<>();
+        for (Conversation c : conversations) {
+            results.add(drivers.submit(() -> replay(c, address, speed, origin, start, failures)));
+        }
+        Map<PacketHeader.Type, long[]> latencies = new EnumMap<>(PacketHeader.Type.class);
+        for (Future<Map<PacketHeader.Type, long[]>> f : results) {
+            f.get().forEach((type, lat) -> latencies.merge(type, lat, ReplayBenchmark::concat));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        drivers.shutdown();
+
+        long replayed = latencies.values().stream().mapToLong(l -> l.length).sum();
+        System.out.printf("Replayed %d messages in %.2f s, %.0f msg/s, %d conversations failed%n", replayed, seconds,
+                replayed / seconds, failures.get());
+        System.out.printf("%-24s %10s %12s %12s %12s%n", "type", "count", "p50 us", "p99 us", "p99.9 us");
+        latencies.forEach((type, lat) -> {
+            Arrays.sort(lat);
+            System.out.printf("%-24s %10d %12.1f %12.1f %12.1f%n", type.name(), lat.length, percentile(lat, 0.50),
+                    percentile(lat, 0.99), percentile(lat, 0.999));
+        });
+
+        if (server != null) {
+            server.close();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Group inbound packets of capture files into conversations by session, and packets into messages by EOM.
+     */
+    static List<Conversation> load(Path path)
+            throws IOException
+    {
+        List<Path> files;
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> s = Files.list(path)) {
+                files = s.filter(p -> p.getFileName().toString().endsWith(".cap")).sorted().toList();
+            }
+        }
+        else {
+            files = List.of(path);
+        }
+
+        Map<Integer, Conversation> sessions = new LinkedHashMap<>();
+        for (Path file : files) {
+            try (PacketCaptureReader r = new PacketCaptureReader(file)) {
+                while (r.next()) {
+                    if (r.getDirection() != PacketCapture.IN) {
+                        continue;
+                    }
+                    Conversation c = sessions.computeIfAbsent(r.getSessionId(), id -> new Conversation());
+                    c.add(r.getTimestamp(), r.getPacket());
+                }
+            }
+        }
+
+        List<Conversation> conversations = new ArrayList<>(sessions.size());
+        for (Conversation c : sessions.values()) {
+            if (!c.messages.isEmpty()) {
+                conversations.add(c);
+            }
+        }
+        return conversations;
+    }
+
+    /**
+     * Replay {@code c} on a new connection, return latencies in nanoseconds by message type. A message recorded at
+     * {@code origin + t} is due at {@code begin + t / speed}, so conversations keep their recorded overlap.
+     */
+    private static Map<PacketHeader.Type, long[]> replay(Conversation c, InetSocketAddress address, double speed,
+            long origin, long begin, AtomicLong failures)
+    {
+        Map<PacketHeader.Type, long[]> latencies = new EnumMap<>(PacketHeader.Type.class);
+        Map<PacketHeader.Type, Integer> counts = new EnumMap<>(PacketHeader.Type.class);
+        byte[] header = new byte[PacketHeader.LENGTH];
+        try (Socket s = new Socket(address.getAddress(), address.getPort())) {
+            s.setTcpNoDelay(true);
+            OutputStream out = s.getOutputStream();
+            DataInputStream in = new DataInputStream(s.getInputStream());
+
+            for (Message m : c.messages) {
+                if (speed > 0) {
+                    long due = begin + (long) ((m.timestamp - origin) / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                long start = System.nanoTime();
+                out.write(m.packets);
+                out.flush();
+                boolean eom = false;
+                while (!eom) {
+                    in.readFully(header);
+                    eom = (header[PacketHeader.STATUS_POS] & PacketHeader.StatusFlag.EOM.getValue()) != 0;
+                    int length = ((header[PacketHeader.LENGTH_POS] & 0xFF) << 8)
+                            | (header[PacketHeader.LENGTH_POS + 1] & 0xFF);
+                    in.skipNBytes(length - PacketHeader.LENGTH);
+                }
+                long latency = System.nanoTime() - start;
+
+                int n = counts.merge(m.type, 1, Integer::sum);
+                long[] lat = latencies.get(m.type);
+                if (lat == null || lat.length < n) {
+                    lat = lat == null ? new long[16] : Arrays.copyOf(lat, lat.length * 2);
+                    latencies.put(m.type, lat);
+                }
+                lat[n - 1] = latency;
+            }
+        }
+        catch (IOException e) {
+            failures.incrementAndGet();
+        }
+        latencies.replaceAll((type, lat) -> Arrays.copyOf(lat, counts.get(type)));
+        return latencies;
+    }
+
+    /**
+     * Stand-in backend: parse each message and answer with a final DONE, with DONE_ATTN to an attention, and the
+     * negotiated packet size to a login.
+     */
+    private static MessageDispatcher standIn()
+    {
+        MessageDispatcher d = new MessageDispatcher();
+        for (PacketHeader.Type type : PacketHeader.Type.values()) {
+            d.register(type, (session, reader) -> {
+                reader.read(in -> in.readBytes());
+                done(session, (short) 0);
+            });
+        }
+        register(d, PacketHeader.Type.PRE_LOGIN, PreLogin::new);
+        d.register(PacketHeader.Type.TDS7_LOGIN, Login7::new,
+                (session, login) -> done(session, (short) 0, login.negotiatePacketSize()));
+        register(d, PacketHeader.Type.SQL_BATCH, SqlBatch::new);
+        register(d, PacketHeader.Type.RPC, RPC::new);
+        d.register(PacketHeader.Type.ATTENTION, Attention::new, (session, message) -> message.respond());
+        return d;
+    }
+
+    private static <T extends PacketDataReader> void register(MessageDispatcher d, PacketHeader.Type type,
+            Function<Session, T> factory)
+    {
+        d.register(type, factory, (session, message) -> done(session, (short) 0));
+    }
+
+    private static void done(Session session, short status, PacketDataWriter... tokens)
+            throws PacketRWException, IOException
+    {
+        PacketHeader header = PacketHeader.response(PacketHeader.Type.TABULAR);
+        Done done = new Done(session);
+        done.setStatusFlag(status);
+        try (PacketWriter w = new PacketWriter(session, header)) {
+            for (PacketDataWriter token : tokens) {
+                w.write(token);
+            }
+            w.write(done);
+            w.flush();
+        }
+    }
+
+    private static long[] concat(long[] a, long[] b)
+    {
+        long[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)] / 1000.0;
+    }
+
+    /**
+     * Recorded inbound messages of one session.
+     */
+    static class Conversation
+    {
+        final List<Message> messages = new ArrayList<>();
+
+        private ByteArrayOutputStream pending;
+        private PacketHeader.Type pendingType;
+        private long pendingTimestamp;
+
+        void add(long timestamp, ByteBuffer packet)
+                throws IOException
+        {
+            if (pending == null) {
+                try {
+                    pendingType = PacketHeader.Type.valueOf(packet.get(PacketHeader.TYPE_POS) & 0xFF);
+                }
+                catch (EnumValueLookupException e) {
+                    throw new IOException(e);
+                }
+                pending = new ByteArrayOutputStream();
+                pendingTimestamp = timestamp;
+            }
+            byte[] b = new byte[packet.remaining()];
+            packet.get(b);
+            pending.writeBytes(b);
+
+            if ((b[PacketHeader.STATUS_POS] & PacketHeader.StatusFlag.EOM.getValue()) != 0) {
+                messages.add(new Message(pendingType, pendingTimestamp, pending.toByteArray()));
+                pending = null;
+            }
+        }
+    }
+
+    /**
+     * Recorded inbound message.
+     */
+    static class Message
+    {
+        final PacketHeader.Type type;
+        /**
+         * Capture time of first packet.
+         */
+        final long timestamp;
+        final byte[] packets;
+
+        Message(PacketHeader.Type type, long timestamp, byte[] packets)
+        {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.packets = packets;
+        }
+    }
+}
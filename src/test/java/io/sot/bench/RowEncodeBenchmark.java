@@ -0,0 +1,229 @@
+package io.sot.bench;
+
+import io.sot.Session;
+import io.sot.Socket;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketWriter;
+import io.sot.lang.TdsVersion;
+import io.sot.message.ColMetaData;
+import io.sot.message.Row;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * {@code RowEncodeBenchmark} measures the encoding of all-numeric result sets into packets, in time and bytes allocated
+ * per row.
+ * <p>
+ * Usage: {@code RowEncodeBenchmark [rows] [iterations] [warmups]}, defaults are 1000000 rows per iteration, 10
+ * measured iterations and 5 warmup iterations. Each row has TINYINT, SMALLINT, INT, BIGINT, REAL, FLOAT and BIT
+ * columns, both nullable and not, every tenth value of nullable columns being NULL. Rows are written by
+ * {@link Row#writeAll(PacketWriter, ColMetaData, java.sql.ResultSet)} with the encoder plan of {@link ColMetaData},
+ * for a TDS 7.4 client, so rows of NULLs go as NBCROW, from a result set whose values derive from the row index.
+ * That result set is a proxy, which allocates argument arrays and boxed primitives, so each iteration first fetches
+ * the same values without encoding them, and the bytes it allocates are subtracted to tell the allocation of the
+ * encoder. Packets go to a socket which drops them. Allocation is read from the thread allocation counter of
+ * HotSpot, run with {@code -XX:-UseTLAB} for a byte-exact count, otherwise it is rounded to allocation buffers.
+ *
+ * @author user
+ */
+public class RowEncodeBenchmark
+{
+    /**
+     * JDBC type of each column, non-nullable ones then nullable ones.
+     */
+    private static final int[] TYPES = {Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT, Types.REAL,
+            Types.DOUBLE, Types.BOOLEAN};
+
+    /**
+     * Sum of fetched values, so that fetching is not optimized away.
+     */
+    private static volatile long consumed;
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int warmups = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Sink sink = new Sink();
+        Session session = new Session();
+        session.setSocket(sink);
+        session.setTdsVersion(TdsVersion.TDS74);
+        NumericResultSet results = new NumericResultSet();
+        ResultSet rs = results.proxy(ResultSet.class);
+        ColMetaData colMetaData = new ColMetaData(session, results.proxy(ResultSetMetaData.class));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        try (PacketWriter writer = new PacketWriter(session, header())) {
+            for (int i = -warmups; i < iterations; i++) {
+                results.rows = rows;
+                results.index = -1;
+                long fetched = threads.getThreadAllocatedBytes(thread);
+                fetchAll(rs);
+                fetched = threads.getThreadAllocatedBytes(thread) - fetched;
+
+                results.index = -1;
+                long bytes = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                long written = Row.writeAll(writer, colMetaData, rs);
+                writer.flush();
+                long nanos = System.nanoTime() - start;
+                bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+                if (written != rows) {
+                    throw new IllegalStateException(String.format("%d rows written out of %d.", written, rows));
+                }
+
+                System.out.printf("%s %3d: %8.1f ns/row, %8.3f B/row encoding, %8.3f B/row fetching, %6.1f MB/s%n",
+                        i < 0 ? "warmup" : "measure", i < 0 ? i + warmups + 1 : i + 1, nanos / (double) rows,
+                        (bytes - fetched) / (double) rows, fetched / (double) rows, sink.bytes * 1e3 / nanos);
+                sink.bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Fetch each value of remaining rows of {@code rs} as the encoder plan does, i.e. by its typed getter then
+     * {@code wasNull()}, without encoding it.
+     *
+     * @param rs
+     * @throws SQLException
+     */
+    private static void fetchAll(ResultSet rs)
+            throws SQLException
+    {
+        long sum = 0;
+        while (rs.next()) {
+            for (int c = 1; c <= 2 * TYPES.length; c++) {
+                switch (TYPES[(c - 1) % TYPES.length]) {
+                    case Types.TINYINT:
+                    case Types.SMALLINT:
+                        sum += rs.getShort(c);
+                        break;
+                    case Types.INTEGER:
+                        sum += rs.getInt(c);
+                        break;
+                    case Types.BIGINT:
+                        sum += rs.getLong(c);
+                        break;
+                    case Types.REAL:
+                        sum += (long) rs.getFloat(c);
+                        break;
+                    case Types.DOUBLE:
+                        sum += (long) rs.getDouble(c);
+                        break;
+                    default:
+                        sum += rs.getBoolean(c) ? 1 : 0;
+                        break;
+                }
+                sum += rs.wasNull() ? 1 : 0;
+            }
+        }
+        consumed = sum;
+    }
+
+    private static PacketHeader header()
+    {
+        return PacketHeader.response(PacketHeader.Type.TABULAR);
+    }
+
+    /**
+     * Result set, and its metadata, of numeric columns, whose values derive from the row index.
+     */
+    private static class NumericResultSet
+            implements InvocationHandler
+    {
+        private int rows;
+        private int index;
+        private boolean wasNull;
+
+        <T> T proxy(Class<T> cls)
+        {
+            return cls.cast(Proxy.newProxyInstance(RowEncodeBenchmark.class.getClassLoader(), new Class<?>[] {cls},
+                    this));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            switch (method.getName()) {
+                // ResultSet
+                case "next":
+                    return ++index < rows;
+                case "wasNull":
+                    return wasNull;
+                case "getShort":
+                    return (short) (getValue((Integer) args[0]) ? index : 0);
+                case "getInt":
+                    return getValue((Integer) args[0]) ? index : 0;
+                case "getLong":
+                    return getValue((Integer) args[0]) ? (long) index * index : 0L;
+                case "getFloat":
+                    return getValue((Integer) args[0]) ? index * 0.5f : 0f;
+                case "getDouble":
+                    return getValue((Integer) args[0]) ? index * 0.25 : 0d;
+                case "getBoolean":
+                    return getValue((Integer) args[0]) && (index & 1) != 0;
+                // ResultSetMetaData
+                case "getColumnCount":
+                    return 2 * TYPES.length;
+                case "getColumnType":
+                    return TYPES[((Integer) args[0] - 1) % TYPES.length];
+                case "getPrecision":
+                case "getScale":
+                    return 0;
+                case "isNullable":
+                    return (Integer) args[0] > TYPES.length ? ResultSetMetaData.columnNullable
+                            : ResultSetMetaData.columnNoNulls;
+                case "isCaseSensitive":
+                case "isAutoIncrement":
+                    return false;
+                case "isReadOnly":
+                    return true;
+                case "getColumnName":
+                    return "c" + args[0];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        /**
+         * Tell whether column {@code column} of current row has a value, i.e. is not NULL.
+         *
+         * @param column
+         * @return
+         */
+        private boolean getValue(int column)
+        {
+            wasNull = column > TYPES.length && index % 10 == 0;
+            return !wasNull;
+        }
+    }
+
+    /**
+     * Socket dropping packets, counting their bytes.
+     */
+    private static class Sink
+            extends Socket
+    {
+        private long bytes;
+
+        @Override
+        public void write(ByteBuffer... packets)
+        {
+            for (ByteBuffer p : packets) {
+                bytes += p.remaining();
+                p.position(p.limit());
+            }
+        }
+    }
+}
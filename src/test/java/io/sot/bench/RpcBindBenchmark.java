@@ -0,0 +1,90 @@
+package io.sot.bench;
+
+import io.sot.lang.PacketDataInput;
+import io.sot.lang.SqlDataValue;
+import io.sot.message.RPC;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+
+/**
+ * {@code RpcBindBenchmark} measures the decoding of tiny {@code sp_execute} requests, as sent by single-row inserts,
+ * in time and bytes allocated per request.
+ * <p>
+ * Usage: {@code RpcBindBenchmark [eager|lazy] [requests] [iterations] [warmups]}, defaults are lazy, 1000000
+ * requests per iteration, 10 measured iterations and 5 warmup iterations. Each request has the handle, then INT,
+ * FLOAT, BIT and NVARCHAR parameters. In eager mode, parameters are read as {@link SqlDataValue}, in lazy
+ * mode they are located, then bound with {@link RPC#bind(PreparedStatement, int, int)} to a statement which drops
+ * them. That statement is a proxy, whose argument arrays and boxed primitives are counted as well. Allocation is read
+ * from the thread allocation counter of HotSpot, run with {@code -XX:-UseTLAB} for a byte-exact count, otherwise it is
+ * rounded to allocation buffers.
+ *
+ * @author user
+ */
+public class RpcBindBenchmark
+{
+    public static void main(String[] args)
+            throws Exception
+    {
+        boolean lazy = args.length == 0 || !"eager".equals(args[0]);
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int warmups = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        byte[] message = request();
+        PreparedStatement ps = (PreparedStatement) Proxy.newProxyInstance(RpcBindBenchmark.class.getClassLoader(),
+                new Class<?>[] {PreparedStatement.class}, (proxy, method, a) -> null);
+        RPC rpc = new RPC();
+        rpc.setLazyParameters(lazy);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long params = 0;
+        for (int i = -warmups; i < iterations; i++) {
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int r = 0; r < requests; r++) {
+                rpc.read(new PacketDataInput(null, message));
+                if (lazy) {
+                    params += rpc.bind(ps, 1, 1);
+                }
+                else {
+                    params += rpc.getParameters().size();
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+            System.out.printf("%s %3d: %8.1f ns/request, %8.1f B/request%n", i < 0 ? "warmup" : "measure",
+                    i < 0 ? i + warmups + 1 : i + 1, nanos / (double) requests, bytes / (double) requests);
+        }
+        System.out.printf("%d parameters%n", params);
+    }
+
+    /**
+     * Build the payload of an {@code sp_execute} request of an insert.
+     *
+     * @return
+     */
+    private static byte[] request()
+    {
+        ByteBuffer b = ByteBuffer.allocate(256).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        // ALL_HEADERS of no header, proc id of sp_execute, no option
+        b.putInt(4).putShort((short) 0xFFFF).putShort((short) 12).putShort((short) 0);
+        byte[] collation = {0x09, 0x04, (byte) 0xD0, 0x00, 0x34};
+
+        // unnamed parameters, each of name length 0 then status 0, handle first
+        b.put((byte) 0).put((byte) 0).put((byte) 0x26).put((byte) 4).put((byte) 4).putInt(1);
+        b.put((byte) 0).put((byte) 0).put((byte) 0x26).put((byte) 4).put((byte) 4).putInt(4711);
+        b.put((byte) 0).put((byte) 0).put((byte) 0x6D).put((byte) 8).put((byte) 8).putDouble(21.5);
+        b.put((byte) 0).put((byte) 0).put((byte) 0x68).put((byte) 1).put((byte) 1).put((byte) 1);
+        byte[] tag = "sensor-42".getBytes(StandardCharsets.UTF_16LE);
+        b.put((byte) 0).put((byte) 0).put((byte) 0xE7).putShort((short) 100).put(collation).putShort((short) tag.length)
+                .put(tag);
+        return Arrays.copyOf(b.array(), b.position());
+    }
+}
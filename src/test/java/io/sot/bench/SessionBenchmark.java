@@ -0,0 +1,211 @@
+package io.sot.bench;
+
+import io.sot.BlockingServer;
+import io.sot.MessageHandler;
+import io.sot.NioServer;
+import io.sot.Session;
+import io.sot.lang.PacketBufferPool;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketRWException;
+import io.sot.lang.PacketReader;
+import io.sot.lang.PacketWriter;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code SessionBenchmark} compares server execution modes with many concurrent, mostly idle sessions.
+ * <p>
+ * Usage: {@code SessionBenchmark <mode> [sessions] [drivers] [seconds] [payload]}, where mode is one of
+ * <ul>
+ * <li>{@code session}: {@link BlockingServer} with {@link BlockingServer#newSessionExecutor()}, i.e. virtual thread
+ * per session where supported</li>
+ * <li>{@code platform}: {@link BlockingServer} with a fixed pool of one platform thread per session</li>
+ * <li>{@code nio}: {@link NioServer} with a worker pool of one thread per processor</li>
+ * </ul>
+ * Defaults are 10000 sessions, 64 drivers, 30 seconds and 64 bytes of payload. All sessions are opened first, then
+ * each driver thread sends a request to its sessions in turn and waits for the response, so there are as many active
+ * sessions as drivers while the rest are idle. Throughput, latency percentiles, live threads and heap used are
+ * printed at the end. 10000 sessions need a file descriptor limit above 20000 ({@code ulimit -n}).
+ *
+ * @author user
+ */
+public class SessionBenchmark
+{
+    private static final int PACKET_SIZE = 8192;
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        String mode = args.length > 0 ? args[0] : "session";
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int drivers = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int payload = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+        MessageHandler handler = SessionBenchmark::echo;
+        InetSocketAddress any = new InetSocketAddress("127.0.0.1", 0);
+        ExecutorService executor;
+        Closeable server;
+        InetSocketAddress address;
+        switch (mode) {
+            case "session":
+                executor = BlockingServer.newSessionExecutor();
+                BlockingServer bs = new BlockingServer(any, executor, handler);
+                bs.start();
+                server = bs;
+                address = bs.getLocalAddress();
+                break;
+            case "platform":
+                executor = Executors.newFixedThreadPool(sessions);
+                BlockingServer ps = new BlockingServer(any, executor, handler);
+                ps.start();
+                server = ps;
+                address = ps.getLocalAddress();
+                break;
+            case "nio":
+                executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                NioServer ns = new NioServer(any, executor, handler);
+                ns.start();
+                server = ns;
+                address = ns.getLocalAddress();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+
+        List<Socket> clients = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            Socket s = new Socket(address.getAddress(), address.getPort());
+            s.setTcpNoDelay(true);
+            clients.add(s);
+        }
+        System.out.printf("%s: %d sessions open, %d live threads%n", mode, sessions,
+                ManagementFactory.getThreadMXBean().getThreadCount());
+
+        byte[] request = packet(payload);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong requests = new AtomicLong();
+        long[][] latencies = new long[drivers][];
+        Thread[] threads = new Thread[drivers];
+        for (int d = 0; d < drivers; d++) {
+            int id = d;
+            threads[d] = new Thread(() -> latencies[id] = drive(clients, id, drivers, request, deadline, requests));
+            threads[d].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long threadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+        Runtime rt = Runtime.getRuntime();
+        long heap = rt.totalMemory() - rt.freeMemory();
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%s: %d requests, %.0f req/s, p50 %.1f us, p99 %.1f us, p99.9 %.1f us%n", mode,
+                requests.get(), requests.get() / (double) seconds, percentile(all, 0.50), percentile(all, 0.99),
+                percentile(all, 0.999));
+        System.out.printf("%s: %d live threads, %d MB heap used, pool hits %d, misses %d%n", mode, threadCount,
+                heap >> 20, PacketBufferPool.SHARED.getHits(), PacketBufferPool.SHARED.getMisses());
+
+        for (Socket s : clients) {
+            s.close();
+        }
+        server.close();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Echo the payload of request message.
+     */
+    private static void echo(Session session, PacketReader reader)
+            throws PacketRWException, IOException
+    {
+        byte[][] body = new byte[1][];
+        reader.read(in -> body[0] = in.readBytes());
+
+        PacketHeader header = PacketHeader.response(PacketHeader.Type.TABULAR);
+        try (PacketWriter w = new PacketWriter(session, header)) {
+            w.write(out -> out.write(body[0]));
+            w.flush();
+        }
+    }
+
+    private static long[] drive(List<Socket> clients, int id, int drivers, byte[] request, long deadline,
+            AtomicLong requests)
+    {
+        long[] lat = new long[1 << 20];
+        int n = 0;
+        byte[] header = new byte[PacketHeader.LENGTH];
+        try {
+            while (System.nanoTime() < deadline) {
+                for (int i = id; i < clients.size() && System.nanoTime() < deadline; i += drivers) {
+                    Socket s = clients.get(i);
+                    long start = System.nanoTime();
+                    OutputStream out = s.getOutputStream();
+                    out.write(request);
+                    out.flush();
+
+                    DataInputStream in = new DataInputStream(s.getInputStream());
+                    boolean eom = false;
+                    while (!eom) {
+                        in.readFully(header);
+                        eom = (header[PacketHeader.STATUS_POS] & PacketHeader.StatusFlag.EOM.getValue()) != 0;
+                        int length = ((header[PacketHeader.LENGTH_POS] & 0xFF) << 8)
+                                | (header[PacketHeader.LENGTH_POS + 1] & 0xFF);
+                        in.skipNBytes(length - PacketHeader.LENGTH);
+                    }
+
+                    if (n == lat.length) {
+                        lat = Arrays.copyOf(lat, n * 2);
+                    }
+                    lat[n++] = System.nanoTime() - start;
+                    requests.incrementAndGet();
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Arrays.copyOf(lat, n);
+    }
+
+    /**
+     * Build a single packet SQL batch request with {@code payload} bytes of data.
+     */
+    private static byte[] packet(int payload)
+    {
+        if (payload + PacketHeader.LENGTH > PACKET_SIZE) {
+            throw new IllegalArgumentException("Payload must fit into one packet.");
+        }
+        byte[] b = new byte[PacketHeader.LENGTH + payload];
+        b[PacketHeader.TYPE_POS] = 1;
+        b[PacketHeader.STATUS_POS] = PacketHeader.StatusFlag.EOM.getValue();
+        b[PacketHeader.LENGTH_POS] = (byte) (b.length >> 8);
+        b[PacketHeader.LENGTH_POS + 1] = (byte) b.length;
+        for (int i = PacketHeader.LENGTH; i < b.length; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)] / 1000.0;
+    }
+}
@@ -0,0 +1,360 @@
+package io.sot.bench;
+
+import io.sot.MessageDispatcher;
+import io.sot.NioServer;
+import io.sot.Session;
+import io.sot.lang.PacketHeader;
+import io.sot.lang.PacketWriter;
+import io.sot.message.Done;
+import io.sot.message.PreLogin;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@code TlsHandshakeBenchmark} measures TLS negotiation of connections to {@link NioServer}, full and resumed, in time
+ * per connection.
+ * <p>
+ * Usage: {@code TlsHandshakeBenchmark [connections] [iterations] [warmups] [keystore] [password]}, defaults are 200
+ * connections per iteration, 5 measured iterations and 2 warmup iterations, and a throwaway EC key generated with
+ * {@code keytool}. Each connection is made by a client on an {@link SSLEngine}, the way drivers do: PRELOGIN with
+ * encryption on, which the server answers with {@link PreLogin#respond()}, then the TLS handshake in PRELOGIN messages,
+ * then an encrypted SQL batch, which the server answers with an encrypted DONE. Full handshakes are made by engines
+ * without peer, which never resume, resumed ones by engines of the same peer, and the run fails unless every one of
+ * them resumes the session of the first.
+ *
+ * @author user
+ */
+public class TlsHandshakeBenchmark
+{
+    private static final String HOST = "localhost";
+
+    private static final int PRE_LOGIN = PacketHeader.Type.PRE_LOGIN.getValue().intValue();
+    private static final int SQL_BATCH = PacketHeader.Type.SQL_BATCH.getValue().intValue();
+    private static final int TABULAR = PacketHeader.Type.TABULAR.getValue().intValue();
+
+    private static final int EOM = PacketHeader.StatusFlag.EOM.getValue();
+
+    /**
+     * PRELOGIN option tokens.
+     */
+    private static final int VERSION = 0x00;
+    private static final int ENCRYPTION = 0x01;
+    private static final int INST_OPT = 0x02;
+    private static final int MARS = 0x04;
+    private static final int TERMINATOR = 0xFF;
+
+    private static final int ENCRYPT_ON = 0x01;
+
+    private static final int DONE = 0xFD;
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int warmups = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        char[] password = (args.length > 4 ? args[4] : "changeit").toCharArray();
+        Path keyStore = args.length > 3 ? Paths.get(args[3]) : generateKeyStore(password);
+
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore.toFile())) {
+            ks.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, tmf.getTrustManagers(), null);
+
+        MessageDispatcher dispatcher = new MessageDispatcher()
+                .register(PacketHeader.Type.PRE_LOGIN, PreLogin::new, (session, preLogin) -> preLogin.respond())
+                .register(PacketHeader.Type.SQL_BATCH, (session, reader) -> {
+                    reader.read(in -> in.readBytes());
+                    done(session);
+                });
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        NioServer server = new NioServer(new InetSocketAddress("127.0.0.1", 0), workers, dispatcher);
+        server.setSslContext(serverContext);
+        server.start();
+        int port = server.getLocalAddress().getPort();
+        try {
+            SSLSession first = connect(clientContext.createSSLEngine(HOST, port), port);
+            for (int i = -warmups; i < iterations; i++) {
+                long start = System.nanoTime();
+                for (int c = 0; c < connections; c++) {
+                    connect(clientContext.createSSLEngine(), port);
+                }
+                long full = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int c = 0; c < connections; c++) {
+                    SSLSession s = connect(clientContext.createSSLEngine(HOST, port), port);
+                    if (!Arrays.equals(s.getId(), first.getId())) {
+                        throw new IllegalStateException("TLS session was not resumed.");
+                    }
+                }
+                long resumed = System.nanoTime() - start;
+
+                System.out.printf("%s %3d: %8.1f us/full handshake, %8.1f us/resumed handshake, %s%n",
+                        i < 0 ? "warmup" : "measure", i < 0 ? i + warmups + 1 : i + 1,
+                        full / 1e3 / connections, resumed / 1e3 / connections, first.getProtocol());
+            }
+        }
+        finally {
+            server.close();
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Connect to server with TLS, run one encrypted request and close.
+     *
+     * @param engine client engine
+     * @param port
+     * @return TLS session of connection
+     * @throws IOException
+     */
+    private static SSLSession connect(SSLEngine engine, int port)
+            throws IOException
+    {
+        engine.setUseClientMode(true);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            send(out, PRE_LOGIN, preLogin());
+            byte[] response = receive(in, TABULAR);
+            if (getOption(response, ENCRYPTION) != ENCRYPT_ON) {
+                throw new IllegalStateException("Server does not encrypt.");
+            }
+
+            // handshake flights in PRELOGIN messages
+            ByteBuffer netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            ByteBuffer netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            ByteBuffer app = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            ByteBuffer empty = ByteBuffer.allocate(0);
+            ByteArrayOutputStream flight = new ByteArrayOutputStream();
+            engine.beginHandshake();
+            while (true) {
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    netOut.clear();
+                    engine.wrap(empty, netOut);
+                    flight.write(netOut.array(), 0, netOut.flip().limit());
+                    continue;
+                }
+                if (flight.size() > 0) {
+                    send(out, PRE_LOGIN, flight.toByteArray());
+                    flight.reset();
+                }
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                }
+                else if (hs == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                    netIn.flip();
+                    app.clear();
+                    SSLEngineResult r = engine.unwrap(netIn, app);
+                    netIn.compact();
+                    if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        netIn.put(receive(in, PRE_LOGIN));
+                    }
+                }
+                else {
+                    break;
+                }
+            }
+
+            // the whole stream is encrypted from now on, packet headers included
+            netOut.clear();
+            engine.wrap(ByteBuffer.wrap(packet(SQL_BATCH, new byte[] {4, 0, 0, 0, 's', 0}, true)), netOut);
+            out.write(netOut.array(), 0, netOut.flip().limit());
+
+            app.clear();
+            byte[] raw = new byte[netIn.capacity()];
+            while (app.position() < PacketHeader.LENGTH
+                    || app.position() < (((app.get(2) & 0xFF) << 8) | (app.get(3) & 0xFF))) {
+                netIn.flip();
+                SSLEngineResult r = engine.unwrap(netIn, app);
+                netIn.compact();
+                if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    int n = in.read(raw, 0, netIn.remaining());
+                    if (n < 0) {
+                        throw new IOException("Connection closed by server.");
+                    }
+                    netIn.put(raw, 0, n);
+                }
+            }
+            if ((app.get(0) & 0xFF) != TABULAR || (app.get(PacketHeader.LENGTH) & 0xFF) != DONE) {
+                throw new IllegalStateException("Unexpected response to encrypted request.");
+            }
+            return engine.getSession();
+        }
+    }
+
+    /**
+     * Build PRELOGIN of client, with encryption on.
+     *
+     * @return
+     */
+    private static byte[] preLogin()
+    {
+        int[] tokens = {VERSION, ENCRYPTION, INST_OPT, MARS};
+        byte[][] data = {{16, 0, 0, 0, 0, 0}, {ENCRYPT_ON}, {0}, {0}};
+        ByteBuffer b = ByteBuffer.allocate(64);
+        int offset = tokens.length * 5 + 1;
+        for (int i = 0; i < tokens.length; i++) {
+            // offset and length are big-endian
+            b.put((byte) tokens[i]).putShort((short) offset).putShort((short) data[i].length);
+            offset += data[i].length;
+        }
+        b.put((byte) TERMINATOR);
+        for (byte[] d : data) {
+            b.put(d);
+        }
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    /**
+     * Get the first byte of option {@code token} of PRELOGIN {@code payload}.
+     *
+     * @param payload
+     * @param token
+     * @return
+     */
+    private static int getOption(byte[] payload, int token)
+    {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        int t;
+        while ((t = b.get() & 0xFF) != TERMINATOR) {
+            int offset = b.getShort() & 0xFFFF;
+            b.getShort();
+            if (t == token) {
+                return payload[offset] & 0xFF;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] packet(int type, byte[] payload, boolean eom)
+    {
+        ByteBuffer b = ByteBuffer.allocate(PacketHeader.LENGTH + payload.length);
+        b.put((byte) type).put((byte) (eom ? EOM : 0)).putShort((short) b.capacity()).putInt(0).put(payload);
+        return b.array();
+    }
+
+    /**
+     * Send {@code payload} as a plaintext message, in packets of initial size.
+     *
+     * @param out
+     * @param type
+     * @param payload
+     * @throws IOException
+     */
+    private static void send(OutputStream out, int type, byte[] payload)
+            throws IOException
+    {
+        int max = Session.INITIAL_PACKET_SIZE - PacketHeader.LENGTH;
+        for (int off = 0; off < payload.length; off += max) {
+            int n = Math.min(max, payload.length - off);
+            out.write(packet(type, Arrays.copyOfRange(payload, off, off + n), off + n == payload.length));
+        }
+        out.flush();
+    }
+
+    /**
+     * Receive a plaintext message of {@code type}.
+     *
+     * @param in
+     * @param type
+     * @return payload of message
+     * @throws IOException
+     */
+    private static byte[] receive(DataInputStream in, int type)
+            throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte[] header = new byte[PacketHeader.LENGTH];
+        do {
+            in.readFully(header);
+            if ((header[0] & 0xFF) != type) {
+                throw new IOException(String.format("Unexpected packet type 0x%02X.", header[0]));
+            }
+            byte[] data = new byte[(((header[2] & 0xFF) << 8) | (header[3] & 0xFF)) - PacketHeader.LENGTH];
+            in.readFully(data);
+            payload.write(data);
+        }
+        while ((header[1] & EOM) == 0);
+        return payload.toByteArray();
+    }
+
+    private static void done(Session session)
+            throws IOException, io.sot.lang.PacketRWException
+    {
+        PacketHeader header = PacketHeader.response(PacketHeader.Type.TABULAR);
+        try (PacketWriter w = new PacketWriter(session, header)) {
+            Done done = new Done(session);
+            done.setStatusFlag((short) 0);
+            w.write(done);
+            w.flush();
+        }
+    }
+
+    /**
+     * Generate a throwaway PKCS12 key store of a self-signed EC key for {@link #HOST}, with {@code keytool}.
+     *
+     * @param password
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static Path generateKeyStore(char[] password)
+            throws IOException, InterruptedException
+    {
+        Path dir = Files.createTempDirectory("sot-tls");
+        Path file = dir.resolve("server.p12");
+        file.toFile().deleteOnExit();
+        dir.toFile().deleteOnExit();
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "sot", "-keyalg", "EC", "-groupname",
+                "secp256r1", "-dname", "CN=" + HOST, "-validity", "2", "-storetype", "PKCS12", "-keystore",
+                file.toString(), "-storepass", new String(password), "-keypass", new String(password))
+                .redirectErrorStream(true)
+                .redirectOutput(new File(dir.toFile(), "keytool.log"))
+                .start();
+        if (p.waitFor() != 0) {
+            throw new IOException("keytool failed, see " + dir.resolve("keytool.log"));
+        }
+        new File(dir.toFile(), "keytool.log").deleteOnExit();
+        return file;
+    }
+}